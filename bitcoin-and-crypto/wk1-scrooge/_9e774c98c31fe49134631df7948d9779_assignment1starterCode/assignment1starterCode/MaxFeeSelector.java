@@ -0,0 +1,479 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Chooses the mutually valid subset of a batch of transactions that pays the greatest total fee.
+ *
+ * <p>
+ * Once every input is resolved against the UTXO pool or the outputs of the batch itself, a
+ * transaction's validity and fee no longer depend on the order it is processed in. What remains
+ * is a dependency DAG, where a transaction needs every batch transaction it spends from, and a
+ * conflict graph, where two transactions spending the same output exclude each other. The batch
+ * splits into components that share neither, and a component without conflicts is taken whole.
+ * The others are searched exactly with branch-and-bound, branching only on conflicting
+ * transactions and memoizing each search state. A search still running when the time budget runs
+ * out is abandoned, and its component is filled greedily by ancestor package fee instead.
+ */
+final class MaxFeeSelector {
+
+    /** The most search states remembered per component */
+    private static final int MAX_MEMO_ENTRIES = 1 << 18;
+
+    /** A set of transactions of a component and the total fee they pay */
+    private static final class Selection {
+        private final double fee;
+        private final BitSet chosen;
+
+        private Selection(double fee, BitSet chosen) {
+            this.fee = fee;
+            this.chosen = chosen;
+        }
+    }
+
+    /** Returned up through an exact search to abandon it once the time budget is spent */
+    private static final Selection OUT_OF_TIME = new Selection(Double.NaN, new BitSet());
+
+    /** The transactions of a component still to be decided on, and which of them remain possible */
+    private static final class SearchState {
+        private final int next;
+        private final BitSet available;
+
+        private SearchState(int next, BitSet available) {
+            this.next = next;
+            this.available = available;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof SearchState)) {
+                return false;
+            }
+            SearchState state = (SearchState) other;
+            return next == state.next && available.equals(state.available);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(next, available);
+        }
+    }
+
+    /**
+     * What is known about the best selection from a search state: either the selection itself, or
+     * only that no selection pays more than {@code upperBound}
+     */
+    private static final class Memo {
+        private final Selection exact;
+        private final double upperBound;
+
+        private Memo(Selection exact, double upperBound) {
+            this.exact = exact;
+            this.upperBound = upperBound;
+        }
+    }
+
+    /** The valid transactions of the batch, in topological order */
+    private final List<Transaction> _txs = new ArrayList<>();
+    private final List<Double> _fees = new ArrayList<>();
+    private final List<List<Integer>> _parents = new ArrayList<>();
+    private final List<List<Integer>> _children = new ArrayList<>();
+    private final List<List<Integer>> _conflicts = new ArrayList<>();
+    private final long _deadline;
+
+    MaxFeeSelector(UTXOPool utxoPool, Transaction[] possibleTxs, long timeBudgetNanos) {
+        _deadline = System.nanoTime() + timeBudgetNanos;
+
+        Map<ByteBuffer, Transaction> txsByHash = new LinkedHashMap<>();
+        for (Transaction tx : possibleTxs) {
+            if (tx != null && tx.getHash() != null
+                    && tx.getInputs().stream().allMatch(input -> input.prevTxHash != null)) {
+                txsByHash.putIfAbsent(ByteBuffer.wrap(tx.getHash()), tx);
+            }
+        }
+
+        // Every output a transaction could claim, whether it is unspent already or created in the batch
+        UTXOPool claimablePool = new UTXOPool(utxoPool);
+        for (Transaction tx : txsByHash.values()) {
+            for (int outputIndex = 0; outputIndex < tx.numOutputs(); outputIndex++) {
+                claimablePool.addUTXO(new UTXO(tx.getHash(), outputIndex), tx.getOutput(outputIndex));
+            }
+        }
+
+        orderTopologically(txsByHash, claimablePool);
+        findConflicts();
+    }
+
+    /** @return the selected transactions, each after every transaction of the batch it spends from */
+    List<Transaction> select() {
+        List<List<Integer>> components = getComponents();
+        BitSet selected = new BitSet(_txs.size());
+
+        for (List<Integer> component : components) {
+            if (component.stream().allMatch(tx -> _conflicts.get(tx).isEmpty())) {
+                component.forEach(selected::set);
+            } else {
+                new ComponentSearch(component).select(selected);
+            }
+        }
+
+        List<Transaction> selectedTxs = new ArrayList<>(selected.cardinality());
+        selected.stream().forEach(tx -> selectedTxs.add(_txs.get(tx)));
+        return selectedTxs;
+    }
+
+    /**
+     * Keeps the transactions that are valid against {@code claimablePool} and whose batch parents
+     * are all kept too, in an order where parents come first
+     */
+    private void orderTopologically(Map<ByteBuffer, Transaction> txsByHash, UTXOPool claimablePool) {
+        Map<Transaction, List<Transaction>> batchChildren = new HashMap<>();
+        Map<Transaction, Integer> pendingParents = new HashMap<>();
+        ArrayDeque<Transaction> ready = new ArrayDeque<>();
+
+        for (Transaction tx : txsByHash.values()) {
+            if (!MaxFeeTxHandler.isValidTx(claimablePool, tx)) {
+                continue;
+            }
+            int parentCount = 0;
+            for (Transaction parent : getBatchParents(tx, txsByHash)) {
+                batchChildren.computeIfAbsent(parent, key -> new ArrayList<>()).add(tx);
+                parentCount++;
+            }
+            pendingParents.put(tx, parentCount);
+            if (parentCount == 0) {
+                ready.add(tx);
+            }
+        }
+
+        // Transactions whose parents are invalid never become ready and are dropped
+        Map<Transaction, Integer> indices = new HashMap<>();
+        while (!ready.isEmpty()) {
+            Transaction tx = ready.poll();
+            int index = _txs.size();
+            indices.put(tx, index);
+            _txs.add(tx);
+            _fees.add(getFee(claimablePool, tx));
+            _parents.add(new ArrayList<>());
+            _children.add(new ArrayList<>());
+
+            for (Transaction parent : getBatchParents(tx, txsByHash)) {
+                int parentIndex = indices.get(parent);
+                _parents.get(index).add(parentIndex);
+                _children.get(parentIndex).add(index);
+            }
+
+            for (Transaction child : batchChildren.getOrDefault(tx, new ArrayList<>())) {
+                if (pendingParents.merge(child, -1, Integer::sum) == 0) {
+                    ready.add(child);
+                }
+            }
+        }
+    }
+
+    /** Records, for each transaction, every other transaction that spends one of the same outputs */
+    private void findConflicts() {
+        Map<UTXO, List<Integer>> spendersByUTXO = new HashMap<>();
+        for (int tx = 0; tx < _txs.size(); tx++) {
+            for (Transaction.Input input : _txs.get(tx).getInputs()) {
+                spendersByUTXO
+                        .computeIfAbsent(new UTXO(input.prevTxHash, input.outputIndex), utxo -> new ArrayList<>())
+                        .add(tx);
+            }
+        }
+
+        for (int tx = 0; tx < _txs.size(); tx++) {
+            BitSet conflicts = new BitSet();
+            for (Transaction.Input input : _txs.get(tx).getInputs()) {
+                spendersByUTXO.get(new UTXO(input.prevTxHash, input.outputIndex)).forEach(conflicts::set);
+            }
+            conflicts.clear(tx);
+
+            List<Integer> conflictList = new ArrayList<>(conflicts.cardinality());
+            conflicts.stream().forEach(conflictList::add);
+            _conflicts.add(conflictList);
+        }
+    }
+
+    /** @return the transactions linked by dependencies or conflicts, each list in topological order */
+    private List<List<Integer>> getComponents() {
+        int[] roots = new int[_txs.size()];
+        for (int tx = 0; tx < roots.length; tx++) {
+            roots[tx] = tx;
+        }
+        for (int tx = 0; tx < roots.length; tx++) {
+            for (int parent : _parents.get(tx)) {
+                union(roots, tx, parent);
+            }
+            for (int conflict : _conflicts.get(tx)) {
+                union(roots, tx, conflict);
+            }
+        }
+
+        Map<Integer, List<Integer>> componentsByRoot = new LinkedHashMap<>();
+        for (int tx = 0; tx < roots.length; tx++) {
+            componentsByRoot.computeIfAbsent(find(roots, tx), root -> new ArrayList<>()).add(tx);
+        }
+        return new ArrayList<>(componentsByRoot.values());
+    }
+
+    /**
+     * The search over one component, in local indices that follow the topological order of the
+     * batch. Including a transaction rules out everything it conflicts with and their descendants;
+     * excluding it rules out its descendants. A transaction without conflicts rules out nothing, so
+     * it is taken whenever its parents are, without branching.
+     */
+    private final class ComponentSearch {
+        private final List<Integer> _component;
+        private final double[] _fees;
+        private final boolean[] _hasConflicts;
+        private final BitSet[] _excludedWith;
+        private final BitSet[] _excludedBy;
+        private final BitSet[] _ancestors;
+        private final Map<SearchState, Memo> _memo = new HashMap<>();
+
+        private ComponentSearch(List<Integer> component) {
+            _component = component;
+            int size = component.size();
+            Map<Integer, Integer> localIndices = new HashMap<>();
+            for (int local = 0; local < size; local++) {
+                localIndices.put(component.get(local), local);
+            }
+
+            _fees = new double[size];
+            _hasConflicts = new boolean[size];
+            _ancestors = new BitSet[size];
+            for (int local = 0; local < size; local++) {
+                int tx = component.get(local);
+                _fees[local] = MaxFeeSelector.this._fees.get(tx);
+                _hasConflicts[local] = !_conflicts.get(tx).isEmpty();
+                _ancestors[local] = new BitSet(size);
+                for (int parent : _parents.get(tx)) {
+                    int localParent = localIndices.get(parent);
+                    _ancestors[local].set(localParent);
+                    _ancestors[local].or(_ancestors[localParent]);
+                }
+            }
+
+            // Excluding a transaction excludes itself and its descendants
+            _excludedWith = new BitSet[size];
+            for (int local = size - 1; local >= 0; local--) {
+                _excludedWith[local] = new BitSet(size);
+                _excludedWith[local].set(local);
+                for (int child : _children.get(component.get(local))) {
+                    _excludedWith[local].or(_excludedWith[localIndices.get(child)]);
+                }
+            }
+
+            _excludedBy = new BitSet[size];
+            for (int local = 0; local < size; local++) {
+                _excludedBy[local] = new BitSet(size);
+                for (int conflict : _conflicts.get(component.get(local))) {
+                    _excludedBy[local].or(_excludedWith[localIndices.get(conflict)]);
+                }
+            }
+        }
+
+        /** Adds the best selection found for this component to {@code selected} */
+        private void select(BitSet selected) {
+            int size = _component.size();
+            BitSet available = new BitSet(size);
+            available.set(0, size);
+
+            Selection best = solve(0, available, Double.NEGATIVE_INFINITY);
+            BitSet chosen = best == OUT_OF_TIME ? selectGreedily() : best.chosen;
+
+            fillUp(chosen);
+            chosen.stream().forEach(local -> selected.set(_component.get(local)));
+        }
+
+        /**
+         * @return the best selection from the state where the transactions before {@code next} are
+         *         decided and only those in {@code available} remain possible, null if no
+         *         selection from it pays more than {@code floor}, or {@link #OUT_OF_TIME} if the
+         *         time budget ran out first
+         */
+        private Selection solve(int next, BitSet available, double floor) {
+            if (System.nanoTime() > _deadline) {
+                return OUT_OF_TIME;
+            }
+
+            int size = _component.size();
+            SearchState state = new SearchState(next, available.get(next, size));
+            Memo memo = _memo.get(state);
+            if (memo != null) {
+                if (memo.exact != null) {
+                    return memo.exact.fee > floor ? memo.exact : null;
+                }
+                if (memo.upperBound <= floor) {
+                    return null;
+                }
+            }
+
+            double upperBound = 0;
+            for (int local = available.nextSetBit(next); local >= 0; local = available.nextSetBit(local + 1)) {
+                upperBound += _fees[local];
+            }
+            if (upperBound <= floor) {
+                remember(state, new Memo(null, upperBound));
+                return null;
+            }
+
+            // Take every transaction up to the next one worth branching on
+            double gained = 0;
+            BitSet taken = new BitSet(size);
+            int local = next;
+            while (local < size && !(available.get(local) && _hasConflicts[local])) {
+                if (available.get(local)) {
+                    gained += _fees[local];
+                    taken.set(local);
+                }
+                local++;
+            }
+
+            Selection best;
+            if (local == size) {
+                best = gained > floor ? new Selection(gained, taken) : null;
+            } else {
+                BitSet withIncluded = (BitSet) available.clone();
+                withIncluded.andNot(_excludedBy[local]);
+                Selection includedRest = solve(local + 1, withIncluded, floor - gained - _fees[local]);
+                if (includedRest == OUT_OF_TIME) {
+                    return OUT_OF_TIME;
+                }
+                Selection included = combine(gained + _fees[local], taken, local, includedRest);
+
+                BitSet withExcluded = (BitSet) available.clone();
+                withExcluded.andNot(_excludedWith[local]);
+                double excludedFloor = included == null ? floor : included.fee;
+                Selection excludedRest = solve(local + 1, withExcluded, excludedFloor - gained);
+                if (excludedRest == OUT_OF_TIME) {
+                    return OUT_OF_TIME;
+                }
+                Selection excluded = combine(gained, taken, -1, excludedRest);
+
+                best = excluded != null ? excluded : included;
+            }
+
+            remember(state, best == null ? new Memo(null, floor) : new Memo(best, best.fee));
+            return best;
+        }
+
+        private Selection combine(double fee, BitSet taken, int branch, Selection rest) {
+            if (rest == null) {
+                return null;
+            }
+            BitSet chosen = (BitSet) taken.clone();
+            chosen.or(rest.chosen);
+            if (branch >= 0) {
+                chosen.set(branch);
+            }
+            return new Selection(fee + rest.fee, chosen);
+        }
+
+        private void remember(SearchState state, Memo memo) {
+            if (_memo.size() < MAX_MEMO_ENTRIES || _memo.containsKey(state)) {
+                _memo.put(state, memo);
+            }
+        }
+
+        /**
+         * Takes ancestor packages from the highest total fee down, skipping any package that some
+         * earlier choice rules out
+         */
+        private BitSet selectGreedily() {
+            int size = _component.size();
+            double[] packageFees = new double[size];
+            List<Integer> order = new ArrayList<>(size);
+            for (int local = 0; local < size; local++) {
+                packageFees[local] = _fees[local];
+                for (int ancestor = _ancestors[local].nextSetBit(0); ancestor >= 0;
+                        ancestor = _ancestors[local].nextSetBit(ancestor + 1)) {
+                    packageFees[local] += _fees[ancestor];
+                }
+                order.add(local);
+            }
+            order.sort(Comparator.comparingDouble((Integer local) -> packageFees[local]).reversed());
+
+            BitSet chosen = new BitSet(size);
+            BitSet ruledOut = new BitSet(size);
+            for (int local : order) {
+                BitSet pkg = (BitSet) _ancestors[local].clone();
+                pkg.set(local);
+                pkg.andNot(chosen);
+                BitSet ruledOutByPkg = new BitSet(size);
+                for (int member = pkg.nextSetBit(0); member >= 0; member = pkg.nextSetBit(member + 1)) {
+                    ruledOutByPkg.or(_excludedBy[member]);
+                }
+                // A package can also rule itself out, when a member spends what an ancestor does
+                if (pkg.intersects(ruledOut) || pkg.intersects(ruledOutByPkg)) {
+                    continue;
+                }
+                chosen.or(pkg);
+                ruledOut.or(ruledOutByPkg);
+            }
+            return chosen;
+        }
+
+        /**
+         * Adds every transaction that {@code chosen} leaves possible, such as those paying no fee,
+         * so that the selection is maximal
+         */
+        private void fillUp(BitSet chosen) {
+            int size = _component.size();
+            BitSet ruledOut = new BitSet(size);
+            for (int local = chosen.nextSetBit(0); local >= 0; local = chosen.nextSetBit(local + 1)) {
+                ruledOut.or(_excludedBy[local]);
+            }
+            for (int local = 0; local < size; local++) {
+                BitSet missingAncestors = (BitSet) _ancestors[local].clone();
+                missingAncestors.andNot(chosen);
+                if (!chosen.get(local) && !ruledOut.get(local) && missingAncestors.isEmpty()) {
+                    chosen.set(local);
+                    ruledOut.or(_excludedBy[local]);
+                }
+            }
+        }
+    }
+
+    private static List<Transaction> getBatchParents(Transaction tx, Map<ByteBuffer, Transaction> txsByHash) {
+        List<Transaction> parents = new ArrayList<>();
+        for (Transaction.Input input : tx.getInputs()) {
+            Transaction parent = txsByHash.get(ByteBuffer.wrap(input.prevTxHash));
+            if (parent != null && !parents.contains(parent)) {
+                parents.add(parent);
+            }
+        }
+        return parents;
+    }
+
+    private static double getFee(UTXOPool claimablePool, Transaction tx) {
+        double fee = 0.0;
+        for (Transaction.Input input : tx.getInputs()) {
+            fee += claimablePool.getTxOutput(new UTXO(input.prevTxHash, input.outputIndex)).value;
+        }
+        for (Transaction.Output output : tx.getOutputs()) {
+            fee -= output.value;
+        }
+        return fee;
+    }
+
+    private static int find(int[] roots, int tx) {
+        while (roots[tx] != tx) {
+            roots[tx] = roots[roots[tx]];
+            tx = roots[tx];
+        }
+        return tx;
+    }
+
+    private static void union(int[] roots, int a, int b) {
+        roots[find(roots, a)] = find(roots, b);
+    }
+}
@@ -1,8 +1,13 @@
 import java.security.PublicKey;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 public class MaxFeeTxHandler {
+    /** How long {@link #handleTxs} searches for the best selection before settling for a good one */
+    public static final long DEFAULT_TIME_BUDGET_MILLIS = 1000;
+
     private UTXOPool _utxoPool;
+    private final long _timeBudgetNanos;
 
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
@@ -10,6 +15,16 @@ public class MaxFeeTxHandler {
      * constructor.
      */
     public MaxFeeTxHandler(UTXOPool utxoPool) {
+        this(utxoPool, DEFAULT_TIME_BUDGET_MILLIS);
+    }
+
+    /**
+     * Creates a public ledger like {@link #MaxFeeTxHandler(UTXOPool)} whose {@link #handleTxs}
+     * searches for the best selection for at most {@code timeBudgetMillis} milliseconds, then falls
+     * back to a greedy one for whatever it has not yet solved.
+     */
+    public MaxFeeTxHandler(UTXOPool utxoPool, long timeBudgetMillis) {
+        _timeBudgetNanos = TimeUnit.MILLISECONDS.toNanos(timeBudgetMillis);
         if (utxoPool == null) {
             _utxoPool = new UTXOPool();
         } else {
@@ -80,8 +95,9 @@ public class MaxFeeTxHandler {
 
     /**
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
-     * transaction for correctness, returning a mutually valid array of accepted transactions, and
-     * updating the current UTXO pool as appropriate.
+     * transaction for correctness, returning a mutually valid array of accepted transactions that
+     * pays the greatest total fee, and updating the current UTXO pool as appropriate. Accepted
+     * transactions are returned after any of the proposed transactions they spend from.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
         // IMPLEMENT THIS
@@ -89,83 +105,12 @@ public class MaxFeeTxHandler {
             return new Transaction[0];
         }
 
-        List<List<Transaction>> transactionPermutations = getPermutations(Arrays.asList(possibleTxs));
-
-        double maxFee = 0.0;
-        List<Transaction> maxTransactionPermutation = transactionPermutations.get(0);
-        UTXOPool maxUTXOPool = _utxoPool;
-
-        for (List<Transaction> transactionPermutation : transactionPermutations) {
-            TransactionsResult currentPermutationResult = new TransactionsResult(_utxoPool);
-            currentPermutationResult.processTransactions(transactionPermutation);
-
-            if (currentPermutationResult.totalFee > maxFee) {
-                maxFee = currentPermutationResult.totalFee;
-                maxTransactionPermutation = currentPermutationResult.validTransactions;
-                maxUTXOPool = currentPermutationResult.utxoPool;
-            }
-        }
-
-        this._utxoPool = maxUTXOPool;
-        return maxTransactionPermutation.toArray(new Transaction[0]);
-    }
-
-    private class TransactionsResult {
-        private List<Transaction> validTransactions;
-        private double totalFee;
-        private UTXOPool utxoPool;
-        private TransactionsResult(final UTXOPool utxoPool) {
-            this.validTransactions = new ArrayList<>();
-            this.totalFee = 0;
-            this.utxoPool = new UTXOPool(utxoPool);
-        }
-        private void processTransactions(List<Transaction> transactionsToProcess) {
-            transactionsToProcess.stream()
-                    .filter(transaction -> MaxFeeTxHandler.isValidTx(this.utxoPool, transaction))
-                    .forEach(transaction -> {
-                        validTransactions.add(transaction);
-                        updatedUTXOPool(transaction, this.utxoPool);
-                        totalFee += getFee(transaction);
-                    });
-        }
-    }
-
-    private List<List<Transaction>> getPermutations(List<Transaction> possibleTxs) {
-        List<List<Transaction>> permutations = new ArrayList<>();
-        List<Transaction> currentTransactions = Collections.emptyList();
-
-        addPermutations(currentTransactions, possibleTxs, permutations);
-
-        return permutations;
-    }
-
-    private void addPermutations(
-            final List<Transaction> currentTransactions,
-            final List<Transaction> leftoverTransactions,
-            List<List<Transaction>> resultingArray) {
-        if (leftoverTransactions.isEmpty()) {
-            resultingArray.add(currentTransactions);
-            return;
-        }
-
-        for (int leftoverIndex = 0; leftoverIndex < leftoverTransactions.size(); leftoverIndex++) {
-            Transaction currentLeftoverTransaction = leftoverTransactions.get(leftoverIndex);
-
-            List<Transaction> newLeftoverTransactions = new ArrayList<>();
-            if (leftoverIndex > 0) {
-                newLeftoverTransactions.addAll(leftoverTransactions.subList(0, leftoverIndex));
-            }
-
-            if (leftoverIndex < leftoverTransactions.size() - 1) {
-                newLeftoverTransactions
-                        .addAll(leftoverTransactions.subList(leftoverIndex + 1, leftoverTransactions.size()));
-            }
+        List<Transaction> maxFeeTransactions
+                = new MaxFeeSelector(_utxoPool, possibleTxs, _timeBudgetNanos).select();
 
-            List<Transaction> newCurrentTransactions = new ArrayList<>(currentTransactions);
-            newCurrentTransactions.add(currentLeftoverTransaction);
+        maxFeeTransactions.forEach(transaction -> updatedUTXOPool(transaction, _utxoPool));
 
-            addPermutations(newCurrentTransactions, newLeftoverTransactions, resultingArray);
-        }
+        return maxFeeTransactions.toArray(new Transaction[0]);
     }
 
     private void updatedUTXOPool(Transaction transactionToApply, UTXOPool utxoPool) {
@@ -183,22 +128,4 @@ public class MaxFeeTxHandler {
             utxoPool.addUTXO(newUTXO, transactionToApply.getOutput(outputIndex));
         }
     }
-
-    private double getFee(Transaction tx) {
-        double inputSum = 0.0;
-        double outputSum = 0.0;
-
-        for (Transaction.Output output : tx.getOutputs()) {
-            outputSum += output.value;
-        }
-
-        for (Transaction.Input input : tx.getInputs()) {
-            UTXO claimedUTXO = new UTXO(input.prevTxHash, input.outputIndex);
-            Transaction.Output inputUTXOTransactionOutput = _utxoPool.getTxOutput(claimedUTXO);
-
-            inputSum += inputUTXOTransactionOutput.value;
-        }
-
-        return inputSum - outputSum;
-    }
 }
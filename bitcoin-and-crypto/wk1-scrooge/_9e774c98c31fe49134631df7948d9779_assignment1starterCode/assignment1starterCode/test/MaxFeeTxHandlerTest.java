@@ -0,0 +1,172 @@
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares MaxFeeTxHandler with a brute-force search over every processing order on small random
+ * batches full of chains and double spends
+ */
+public class MaxFeeTxHandlerTest {
+
+    private static KeyPair[] keys;
+
+    /** An output a generated transaction may spend */
+    private static final class Spendable {
+        private final byte[] txHash;
+        private final int index;
+        private final int owner;
+        private final double value;
+
+        private Spendable(byte[] txHash, int index, int owner, double value) {
+            this.txHash = txHash;
+            this.index = index;
+            this.owner = owner;
+            this.value = value;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        SecureRandom keyRandom = SecureRandom.getInstance("SHA1PRNG");
+        keyRandom.setSeed(3);
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(512, keyRandom);
+        keys = new KeyPair[3];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = generator.generateKeyPair();
+        }
+
+        Random random = new Random(11);
+        for (int trial = 0; trial < 150; trial++) {
+            UTXOPool utxoPool = new UTXOPool();
+            List<Transaction> txs = randomBatch(utxoPool, random);
+            double best = bestFee(utxoPool, txs);
+
+            double exact = acceptedFee(utxoPool, new MaxFeeTxHandler(utxoPool).handleTxs(toArray(txs)));
+            check(Math.abs(exact - best) < 1e-9, "trial " + trial + ": exact search got " + exact + ", best is " + best);
+
+            // With no time at all, every component falls back to the greedy selection
+            double greedy = acceptedFee(utxoPool, new MaxFeeTxHandler(utxoPool, 0).handleTxs(toArray(txs)));
+            check(greedy <= best + 1e-9, "trial " + trial + ": greedy selection beat the optimum");
+        }
+        System.out.println("ok   the exact search matches brute force, and the fallback stays valid");
+    }
+
+    private static List<Transaction> randomBatch(UTXOPool utxoPool, Random random) throws GeneralSecurityException {
+        Transaction root = new Transaction();
+        List<Spendable> spendables = new ArrayList<>();
+        for (int owner = 0; owner < keys.length; owner++) {
+            root.addOutput(10, keys[owner].getPublic());
+        }
+        root.finalize();
+        for (int owner = 0; owner < keys.length; owner++) {
+            utxoPool.addUTXO(new UTXO(root.getHash(), owner), root.getOutput(owner));
+            spendables.add(new Spendable(root.getHash(), owner, owner, 10));
+        }
+
+        List<Transaction> txs = new ArrayList<>();
+        int count = 2 + random.nextInt(5);
+        for (int k = 0; k < count; k++) {
+            List<Spendable> spent = new ArrayList<>();
+            double inputValue = 0;
+            for (int i = 1 + random.nextInt(2); i > 0; i--) {
+                Spendable spendable = spendables.get(random.nextInt(spendables.size()));
+                spent.add(spendable);
+                inputValue += spendable.value;
+            }
+
+            Transaction tx = new Transaction();
+            for (Spendable spendable : spent) {
+                tx.addInput(spendable.txHash, spendable.index);
+            }
+            int outputCount = 1 + random.nextInt(2);
+            int[] owners = new int[outputCount];
+            double[] values = new double[outputCount];
+            for (int i = 0; i < outputCount; i++) {
+                owners[i] = random.nextInt(keys.length);
+                // Sometimes more than the inputs are worth, making the transaction invalid
+                values[i] = Math.floor(random.nextDouble() * inputValue / outputCount * 1.1);
+                tx.addOutput(values[i], keys[owners[i]].getPublic());
+            }
+            for (int i = 0; i < spent.size(); i++) {
+                Signature signature = Signature.getInstance("SHA256withRSA");
+                signature.initSign(keys[spent.get(i).owner].getPrivate());
+                signature.update(tx.getRawDataToSign(i));
+                tx.addSignature(signature.sign(), i);
+            }
+            tx.finalize();
+
+            for (int i = 0; i < outputCount; i++) {
+                spendables.add(new Spendable(tx.getHash(), i, owners[i], values[i]));
+            }
+            txs.add(tx);
+        }
+        Collections.shuffle(txs, random);
+        return txs;
+    }
+
+    /** @return the greatest total fee of any sequence of mutually valid transactions from {@code txs} */
+    private static double bestFee(UTXOPool utxoPool, List<Transaction> txs) {
+        double best = 0;
+        for (int i = 0; i < txs.size(); i++) {
+            Transaction tx = txs.get(i);
+            if (!MaxFeeTxHandler.isValidTx(utxoPool, tx)) {
+                continue;
+            }
+            double fee = getFee(utxoPool, tx);
+            UTXOPool next = new UTXOPool(utxoPool);
+            apply(next, tx);
+            List<Transaction> rest = new ArrayList<>(txs);
+            rest.remove(i);
+            best = Math.max(best, fee + bestFee(next, rest));
+        }
+        return best;
+    }
+
+    /** @return the total fee of {@code accepted}, checking that they are valid in the order given */
+    private static double acceptedFee(UTXOPool utxoPool, Transaction[] accepted) {
+        UTXOPool pool = new UTXOPool(utxoPool);
+        double fee = 0;
+        for (Transaction tx : accepted) {
+            check(MaxFeeTxHandler.isValidTx(pool, tx), "accepted transactions should be valid in order");
+            fee += getFee(pool, tx);
+            apply(pool, tx);
+        }
+        return fee;
+    }
+
+    private static double getFee(UTXOPool utxoPool, Transaction tx) {
+        double fee = 0;
+        for (Transaction.Input input : tx.getInputs()) {
+            fee += utxoPool.getTxOutput(new UTXO(input.prevTxHash, input.outputIndex)).value;
+        }
+        for (Transaction.Output output : tx.getOutputs()) {
+            fee -= output.value;
+        }
+        return fee;
+    }
+
+    private static void apply(UTXOPool utxoPool, Transaction tx) {
+        for (Transaction.Input input : tx.getInputs()) {
+            utxoPool.removeUTXO(new UTXO(input.prevTxHash, input.outputIndex));
+        }
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            utxoPool.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+        }
+    }
+
+    private static Transaction[] toArray(List<Transaction> txs) {
+        return txs.toArray(new Transaction[0]);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
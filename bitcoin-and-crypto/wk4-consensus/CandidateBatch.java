@@ -0,0 +1,58 @@
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The candidates delivered to one node in a round, packed as parallel arrays of sender index and
+ * transaction id rather than as one {@link Candidate} object per pair.
+ */
+public final class CandidateBatch {
+
+    private int[] _senders;
+    private int[] _txIds;
+    private int _size;
+
+    public CandidateBatch(int capacity) {
+        _senders = new int[capacity];
+        _txIds = new int[capacity];
+    }
+
+    /** Appends the candidate of transaction {@code txId} proposed by node {@code sender} */
+    public void add(int sender, int txId) {
+        if (_size == _senders.length) {
+            int capacity = Math.max(8, _size * 2);
+            _senders = Arrays.copyOf(_senders, capacity);
+            _txIds = Arrays.copyOf(_txIds, capacity);
+        }
+        _senders[_size] = sender;
+        _txIds[_size] = txId;
+        _size++;
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    public boolean isEmpty() {
+        return _size == 0;
+    }
+
+    /** @return the index of the node that proposed candidate {@code i} */
+    public int getSender(int i) {
+        return _senders[i];
+    }
+
+    /** @return the id of the transaction in candidate {@code i} */
+    public int getTxId(int i) {
+        return _txIds[i];
+    }
+
+    /** @return a {@link Candidate} for each pair, in batch order */
+    public Set<Candidate> toCandidates() {
+        Set<Candidate> candidates = new LinkedHashSet<>();
+        for (int i = 0; i < _size; i++) {
+            candidates.add(new Candidate(new Transaction(_txIds[i]), _senders[i]));
+        }
+        return candidates;
+    }
+}
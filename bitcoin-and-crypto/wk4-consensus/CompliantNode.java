@@ -1,5 +1,4 @@
 import java.util.*;
-import java.util.stream.Collectors;
 
 /* CompliantNode refers to a node that follows the rules (not malicious)*/
 public class CompliantNode implements Node {
@@ -8,11 +7,26 @@ public class CompliantNode implements Node {
 
     private final int _numRounds;
 
-    private Set<Integer> _validFollowees = new HashSet<>();
+    /*
+     * Transactions are interned to dense indices, in the order this node first hears of them, and
+     * sets of transactions are bitsets over those indices. Followees are likewise referred to by
+     * their position in _followees, so that comparing and tallying what followees propose is done
+     * a word at a time.
+     */
+    private final List<Transaction> _transactions = new ArrayList<>();
+    /** Open addressing from transaction id to 1 + its index, 0 marking an empty slot */
+    private int[] _internedIds = new int[64];
+    private int[] _internedIndices = new int[64];
+
+    /** The ids of the nodes this node follows, ascending */
+    private int[] _followees = new int[0];
+    private long[] _validFollowees = new long[0];
+    private long[] _transactionsHaveChanged = new long[0];
     private Set<Transaction> _allTransactions = new HashSet<>();
+    private long[] _allTransactionBits = new long[0];
     private int _roundsCompleted = 0;
-    private Map<Integer, Set<Transaction>> _lastRoundTransactions;
-    private Map<Integer, Boolean> _transactionsHaveChanged;
+    /** The transactions each valid followee proposed last round, by followee position; null if none */
+    private long[][] _lastRoundTransactions;
 
     public CompliantNode(double p_graph, double p_malicious, double p_txDistribution, int numRounds) {
       _numRounds = numRounds;
@@ -20,45 +34,76 @@ public class CompliantNode implements Node {
     }
 
     public void setFollowees(boolean[] followees) {
-        _transactionsHaveChanged = new HashMap<>();
+        int followeeCount = 0;
+        for (boolean followee : followees) {
+            if (followee) {
+                followeeCount++;
+            }
+        }
 
-        for (int i = 0; i < followees.length; i++) {
+        int[] sortedFollowees = new int[followeeCount];
+        for (int i = 0, position = 0; i < followees.length; i++) {
           if (followees[i]) {
-            _validFollowees.add(i);
-            _transactionsHaveChanged.put(i, false);
+            sortedFollowees[position++] = i;
           }
         }
+        setFollowees(sortedFollowees, followees.length);
+    }
+
+    @Override
+    public void setFollowees(int[] sortedFollowees, int numNodes) {
+        int followeeCount = sortedFollowees.length;
+        _followees = sortedFollowees.clone();
+
+        _validFollowees = new long[words(followeeCount)];
+        for (int position = 0; position < followeeCount; position++) {
+            set(_validFollowees, position);
+        }
+        _transactionsHaveChanged = new long[words(followeeCount)];
     }
 
     public void setPendingTransaction(Set<Transaction> pendingTransactions) {
-        _allTransactions.addAll(pendingTransactions);
+        for (Transaction transaction : pendingTransactions) {
+            addToAllTransactions(intern(transaction.id, transaction));
+        }
     }
 
     public Set<Transaction> sendToFollowers() {
       if (_roundsCompleted >= _numRounds) {
-        Set<Integer> validNodes = _lastRoundTransactions == null ? new HashSet<>(_validFollowees)
-                : _validFollowees
-                .stream()
-                .filter(nodeId -> _lastRoundTransactions.containsKey(nodeId))
-                .filter(nodeId -> _transactionsHaveChanged.containsKey(nodeId))
-                .collect(Collectors.toSet());
+        long[] validNodes = _validFollowees.clone();
 
-        Map<Transaction, Integer> transactionCounts = new HashMap<>();
+        if (_lastRoundTransactions != null) {
+            for (int position = 0; position < _followees.length; position++) {
+                if (_lastRoundTransactions[position] == null) {
+                    clear(validNodes, position);
+                }
+            }
+        }
+
+        int[] transactionCounts = new int[_transactions.size()];
 
         if (_lastRoundTransactions != null) {
-            _lastRoundTransactions.forEach((nodeId, transactionSet) -> {
-                for (Transaction transaction : transactionSet) {
-                    transactionCounts.put(transaction, transactionCounts.getOrDefault(transaction, 0) + 1);
+            for (long[] transactionSet : _lastRoundTransactions) {
+                if (transactionSet == null) {
+                    continue;
+                }
+                for (int word = 0; word < transactionSet.length; word++) {
+                    for (long bits = transactionSet[word]; bits != 0; bits &= bits - 1) {
+                        transactionCounts[word * Long.SIZE + Long.numberOfTrailingZeros(bits)]++;
+                    }
                 }
-            });
+            }
         }
 
-        return transactionCounts
-          .entrySet()
-          .stream()
-          .filter(entry -> entry.getValue() >= validNodes.size() / 2)
-          .map(Map.Entry::getKey)
-          .collect(Collectors.toSet());
+        // A transaction needs a vote from at least half of the valid nodes, and at least one vote
+        int threshold = Math.max(1, cardinality(validNodes) / 2);
+        Set<Transaction> consensusTransactions = new HashSet<>();
+        for (int index = 0; index < transactionCounts.length; index++) {
+            if (transactionCounts[index] >= threshold) {
+                consensusTransactions.add(_transactions.get(index));
+            }
+        }
+        return consensusTransactions;
       }
 
       _roundsCompleted++;
@@ -66,7 +111,17 @@ public class CompliantNode implements Node {
     }
 
     public void receiveFromFollowees(Set<Candidate> candidates) {
-      Map<Integer, Set<Transaction>> newRoundTransactions = getRoundTransactions(candidates);
+      CandidateBatch batch = new CandidateBatch(candidates.size());
+      for (Candidate candidate : candidates) {
+        intern(candidate.tx.id, candidate.tx);
+        batch.add(candidate.sender, candidate.tx.id);
+      }
+      receiveFromFollowees(batch);
+    }
+
+    @Override
+    public void receiveFromFollowees(CandidateBatch candidates) {
+      long[][] newRoundTransactions = getRoundTransactions(candidates);
 
       // If in the first round, record the round transactions and move on
       if (_lastRoundTransactions == null) {
@@ -74,31 +129,35 @@ public class CompliantNode implements Node {
         return;
       }
 
-      for (Integer nodeId : _lastRoundTransactions.keySet()) {
-          // If a followee randomly sends no transactions anymore, remove from valid followees
-          if (!newRoundTransactions.containsKey(nodeId)) {
-              _validFollowees.remove(nodeId);
+      for (int position = 0; position < _followees.length; position++) {
+          long[] lastRoundNodeTransactions = _lastRoundTransactions[position];
+          if (lastRoundNodeTransactions == null) {
               continue;
           }
 
-          Set<Transaction> lastRoundNodeTransactions = _lastRoundTransactions.get(nodeId);
-          Set<Transaction> newRoundNodeTransactions = newRoundTransactions.get(nodeId);
+          // If a followee randomly sends no transactions anymore, remove from valid followees
+          long[] newRoundNodeTransactions = newRoundTransactions[position];
+          if (newRoundNodeTransactions == null) {
+              clear(_validFollowees, position);
+              continue;
+          }
 
           if (_roundsCompleted <= _collectRounds) {
               // If any transaction becomes removed by a followee, remove from valid followees
-              lastRoundNodeTransactions.stream()
-                      .filter(lastRoundNodeTransaction -> !newRoundNodeTransactions.contains(lastRoundNodeTransaction))
-                      .forEach(lastRoundNodeTransaction -> _validFollowees.remove(nodeId));
+              if (hasBitsNotIn(lastRoundNodeTransactions, newRoundNodeTransactions)) {
+                  clear(_validFollowees, position);
+              }
 
               // Mark that the followee has modified their transactions to later indicate any invalid nodes who aren't
               // increasing proposed transactions
-              newRoundNodeTransactions.stream()
-                      .filter(newRoundNodeTransaction -> !lastRoundNodeTransactions.contains(newRoundNodeTransaction))
-                      .forEach(newRoundTransaction -> _transactionsHaveChanged.put(nodeId, true));
+              if (hasBitsNotIn(newRoundNodeTransactions, lastRoundNodeTransactions)) {
+                  set(_transactionsHaveChanged, position);
+              }
           } else {
               // In the last rounds, if any change in transactions occurs, remove from valid followees
-              if (!lastRoundNodeTransactions.equals(newRoundNodeTransactions)) {
-                  _validFollowees.remove(nodeId);
+              if (hasBitsNotIn(lastRoundNodeTransactions, newRoundNodeTransactions)
+                      || hasBitsNotIn(newRoundNodeTransactions, lastRoundNodeTransactions)) {
+                  clear(_validFollowees, position);
               }
           }
       }
@@ -106,31 +165,125 @@ public class CompliantNode implements Node {
       _lastRoundTransactions = newRoundTransactions;
     }
 
-    private Map<Integer, Set<Transaction>> getRoundTransactions(Set<Candidate> candidates) {
-      Map<Integer, Set<Transaction>> newRoundTransactions = new HashMap<>();
+    private long[][] getRoundTransactions(CandidateBatch candidates) {
+      long[][] newRoundTransactions = new long[_followees.length][];
 
-      for (Candidate candidate : candidates) {
-        Transaction candidateTransaction = candidate.tx;
-        Integer candidateSender = candidate.sender;
+      for (int i = 0; i < candidates.size(); i++) {
+        int candidateTransactionIndex = intern(candidates.getTxId(i), null);
+        int candidateSender = candidates.getSender(i);
 
         // Add all transactions to the proposal list if within the collect rounds
         if (_roundsCompleted <= _collectRounds) {
-            _allTransactions.add(candidateTransaction);
+            addToAllTransactions(candidateTransactionIndex);
         }
 
         // Ignore transaction if not from a valid followee
-        if (!_validFollowees.contains(candidateSender)) {
+        int position = Arrays.binarySearch(_followees, candidateSender);
+        if (position < 0 || !get(_validFollowees, position)) {
             continue;
         }
 
-        if (!newRoundTransactions.containsKey(candidateSender)) {
-          newRoundTransactions.put(candidateSender, new HashSet<>());
+        if (newRoundTransactions[position] == null
+                || newRoundTransactions[position].length <= candidateTransactionIndex / Long.SIZE) {
+          newRoundTransactions[position] = Arrays.copyOf(
+                  newRoundTransactions[position] == null ? new long[0] : newRoundTransactions[position],
+                  words(_transactions.size()));
         }
 
-        newRoundTransactions.get(candidateSender)
-          .add(candidateTransaction);
+        set(newRoundTransactions[position], candidateTransactionIndex);
       }
 
       return newRoundTransactions;
     }
+
+    /**
+     * @param transaction the transaction with id {@code txId}, or null to create one if it is new
+     * @return the dense index of the transaction with id {@code txId}, assigning the next one if it
+     *         is new
+     */
+    private int intern(int txId, Transaction transaction) {
+        int mask = _internedIds.length - 1;
+        int slot = mix(txId) & mask;
+        while (_internedIndices[slot] != 0) {
+            if (_internedIds[slot] == txId) {
+                return _internedIndices[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int index = _transactions.size();
+        _transactions.add(transaction == null ? new Transaction(txId) : transaction);
+        _internedIds[slot] = txId;
+        _internedIndices[slot] = index + 1;
+
+        // Keep the table at most half full
+        if (2 * _transactions.size() > _internedIds.length) {
+            int[] ids = _internedIds;
+            int[] indices = _internedIndices;
+            _internedIds = new int[ids.length * 2];
+            _internedIndices = new int[ids.length * 2];
+            mask = _internedIds.length - 1;
+            for (int old = 0; old < ids.length; old++) {
+                if (indices[old] != 0) {
+                    int rehashed = mix(ids[old]) & mask;
+                    while (_internedIndices[rehashed] != 0) {
+                        rehashed = (rehashed + 1) & mask;
+                    }
+                    _internedIds[rehashed] = ids[old];
+                    _internedIndices[rehashed] = indices[old];
+                }
+            }
+        }
+        return index;
+    }
+
+    private void addToAllTransactions(int index) {
+        if (_allTransactionBits.length <= index / Long.SIZE) {
+            _allTransactionBits = Arrays.copyOf(_allTransactionBits, words(_transactions.size()));
+        }
+        if (!get(_allTransactionBits, index)) {
+            set(_allTransactionBits, index);
+            _allTransactions.add(_transactions.get(index));
+        }
+    }
+
+    /** Spreads the bits of a transaction id, which may be small and sequential, across the table */
+    private static int mix(int txId) {
+        int h = txId * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int words(int bits) {
+        return (bits + Long.SIZE - 1) / Long.SIZE;
+    }
+
+    private static boolean get(long[] bitset, int bit) {
+        return (bitset[bit / Long.SIZE] & (1L << bit)) != 0;
+    }
+
+    private static void set(long[] bitset, int bit) {
+        bitset[bit / Long.SIZE] |= 1L << bit;
+    }
+
+    private static void clear(long[] bitset, int bit) {
+        bitset[bit / Long.SIZE] &= ~(1L << bit);
+    }
+
+    private static int cardinality(long[] bitset) {
+        int cardinality = 0;
+        for (long word : bitset) {
+            cardinality += Long.bitCount(word);
+        }
+        return cardinality;
+    }
+
+    /** @return true if some bit set in {@code a} is not set in {@code b}; missing words count as zero */
+    private static boolean hasBitsNotIn(long[] a, long[] b) {
+        for (int word = 0; word < a.length; word++) {
+            if ((a[word] & ~(word < b.length ? b[word] : 0)) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
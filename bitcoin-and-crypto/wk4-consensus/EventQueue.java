@@ -0,0 +1,175 @@
+import java.util.Arrays;
+
+/**
+ * A priority queue of timed events for a discrete-event simulation, earliest first, and in the
+ * order they were added among events at the same time. Events live in slots of parallel primitive
+ * arrays that are recycled once polled. The binary heap keeps each event's time and sequence
+ * number next to its slot number, so sifting compares without leaving the heap arrays, and adding
+ * and polling allocate nothing once the queue has grown to its working size.
+ */
+public class EventQueue {
+
+    private int[] _kinds;
+    private int[] _targets;
+    private int[] _sources;
+    private int[][] _payloads;
+
+    /** Event times, sequence numbers and slot numbers, in heap order */
+    private double[] _heapTimes;
+    private long[] _heapSequences;
+    private int[] _heapSlots;
+    private int _size;
+    /** Slots not holding an event, as a stack */
+    private int[] _freeSlots;
+    private int _freeSlotCount;
+    private long _nextSequence;
+
+    private double _time;
+    private int _kind;
+    private int _target;
+    private int _source;
+    private int[] _payload;
+
+    public EventQueue(int initialCapacity) {
+        int capacity = Math.max(1, initialCapacity);
+        _kinds = new int[capacity];
+        _targets = new int[capacity];
+        _sources = new int[capacity];
+        _payloads = new int[capacity][];
+        _heapTimes = new double[capacity];
+        _heapSequences = new long[capacity];
+        _heapSlots = new int[capacity];
+        _freeSlots = new int[capacity];
+        for (int slot = 0; slot < capacity; slot++) {
+            _freeSlots[slot] = capacity - 1 - slot;
+        }
+        _freeSlotCount = capacity;
+    }
+
+    /**
+     * Schedules an event of type {@code kind} at {@code time}, addressed to {@code target} from
+     * {@code source} and carrying {@code payload}, which may be null
+     */
+    public void add(double time, int kind, int target, int source, int[] payload) {
+        if (Double.isNaN(time)) {
+            throw new IllegalArgumentException("Event time should be a number.");
+        }
+        if (_freeSlotCount == 0) {
+            grow();
+        }
+
+        int slot = _freeSlots[--_freeSlotCount];
+        _kinds[slot] = kind;
+        _targets[slot] = target;
+        _sources[slot] = source;
+        _payloads[slot] = payload;
+
+        siftUp(_size++, time, _nextSequence++, slot);
+    }
+
+    public boolean isEmpty() {
+        return _size == 0;
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    /**
+     * Removes the earliest event, which the getters then describe until the next call. The queue
+     * must not be empty.
+     */
+    public void poll() {
+        int slot = _heapSlots[0];
+        _time = _heapTimes[0];
+        _kind = _kinds[slot];
+        _target = _targets[slot];
+        _source = _sources[slot];
+        _payload = _payloads[slot];
+
+        _payloads[slot] = null;
+        _freeSlots[_freeSlotCount++] = slot;
+        int last = --_size;
+        if (_size > 0) {
+            siftDown(0, _heapTimes[last], _heapSequences[last], _heapSlots[last]);
+        }
+    }
+
+    public double getTime() {
+        return _time;
+    }
+
+    public int getKind() {
+        return _kind;
+    }
+
+    public int getTarget() {
+        return _target;
+    }
+
+    public int getSource() {
+        return _source;
+    }
+
+    public int[] getPayload() {
+        return _payload;
+    }
+
+    private boolean isBefore(double time, long sequence, int index) {
+        return time < _heapTimes[index] || (time == _heapTimes[index] && sequence < _heapSequences[index]);
+    }
+
+    private void siftUp(int index, double time, long sequence, int slot) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!isBefore(time, sequence, parent)) {
+                break;
+            }
+            move(parent, index);
+            index = parent;
+        }
+        set(index, time, sequence, slot);
+    }
+
+    private void siftDown(int index, double time, long sequence, int slot) {
+        int half = _size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            if (child + 1 < _size && isBefore(_heapTimes[child + 1], _heapSequences[child + 1], child)) {
+                child++;
+            }
+            if (isBefore(time, sequence, child)) {
+                break;
+            }
+            move(child, index);
+            index = child;
+        }
+        set(index, time, sequence, slot);
+    }
+
+    private void move(int from, int to) {
+        set(to, _heapTimes[from], _heapSequences[from], _heapSlots[from]);
+    }
+
+    private void set(int index, double time, long sequence, int slot) {
+        _heapTimes[index] = time;
+        _heapSequences[index] = sequence;
+        _heapSlots[index] = slot;
+    }
+
+    private void grow() {
+        int capacity = _kinds.length;
+        int newCapacity = capacity * 2;
+        _kinds = Arrays.copyOf(_kinds, newCapacity);
+        _targets = Arrays.copyOf(_targets, newCapacity);
+        _sources = Arrays.copyOf(_sources, newCapacity);
+        _payloads = Arrays.copyOf(_payloads, newCapacity);
+        _heapTimes = Arrays.copyOf(_heapTimes, newCapacity);
+        _heapSequences = Arrays.copyOf(_heapSequences, newCapacity);
+        _heapSlots = Arrays.copyOf(_heapSlots, newCapacity);
+        _freeSlots = Arrays.copyOf(_freeSlots, newCapacity);
+        for (int slot = newCapacity - 1; slot >= capacity; slot--) {
+            _freeSlots[_freeSlotCount++] = slot;
+        }
+    }
+}
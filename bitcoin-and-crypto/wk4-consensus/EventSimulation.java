@@ -0,0 +1,286 @@
+// A discrete-event version of the Simulation. Instead of lock-step rounds with
+// instant, perfect delivery, every node runs its own round clock and every
+// proposal travels to each follower as a message that takes time to arrive, may
+// be lost, and queues behind the sender's other messages on a capped uplink.
+//
+// Usage: java EventSimulation p_graph p_malicious p_txDistribution numRounds
+//                             [-nodes 100] [-seed n] [-delay 20,200] [-jitter 10]
+//                             [-drop 0] [-bandwidth Infinity] [-period 1000] [-skew 0]
+// -delay gives the range of each link's fixed delay and -jitter the mean of the
+// random delay added to each message, in milliseconds. -bandwidth caps each
+// node's uplink in transaction ids per millisecond. Each node ticks every
+// -period milliseconds, its first tick at a random offset of up to -skew.
+
+import java.util.*;
+import java.util.function.Consumer;
+
+public class EventSimulation {
+
+    private static final int TICK = 0;
+    private static final int DELIVERY = 1;
+
+    /**
+     * The messages a node has received since its last tick. Each keeps a reference to the payload
+     * its sender shares among all followers; the candidates are only unpacked at the tick.
+     */
+    private static final class Inbox {
+        private int[] _senders = new int[4];
+        private int[][] _payloads = new int[4][];
+        private int _size;
+        private int _candidateCount;
+
+        private void add(int sender, int[] payload) {
+            if (_size == _senders.length) {
+                _senders = Arrays.copyOf(_senders, _size * 2);
+                _payloads = Arrays.copyOf(_payloads, _size * 2);
+            }
+            _senders[_size] = sender;
+            _payloads[_size] = payload;
+            _size++;
+            _candidateCount += payload.length;
+        }
+
+        /** @return the candidates of every message, in the order the messages arrived */
+        private CandidateBatch toCandidateBatch() {
+            CandidateBatch batch = new CandidateBatch(_candidateCount);
+            for (int i = 0; i < _size; i++) {
+                for (int txId : _payloads[i]) {
+                    batch.add(_senders[i], txId);
+                }
+            }
+            return batch;
+        }
+    }
+
+    private final Node[] _nodes;
+    private final FollowGraph _followGraph;
+    private final Set<Integer> _validTxIds;
+    private final LinkModel _linkModel;
+    /** The transaction ids each node can put on the wire per unit of time */
+    private final double _uploadBandwidth;
+    private final double _roundPeriod;
+    private final double _clockSkew;
+    private final Random _random;
+    private final EventQueue _events;
+
+    /** The number of times each node's clock has ticked */
+    private final int[] _ticks;
+    /** The time at which each node's uplink has sent everything queued on it */
+    private final double[] _uplinkFreeAt;
+    /** The messages each node has received since its last tick; null if none */
+    private final Inbox[] _inboxes;
+    private int _numRounds;
+    private double _now;
+
+    private long _eventCount;
+    private long _messageCount;
+    private long _droppedCount;
+    private long _lateCount;
+
+    /**
+     * @param uploadBandwidth the transaction ids each node can send per unit of time, or
+     *        {@link Double#POSITIVE_INFINITY} for no cap
+     * @param roundPeriod the time between two ticks of a node's round clock
+     * @param clockSkew the most by which a node's first tick may trail time 0
+     */
+    public EventSimulation(Node[] nodes, FollowGraph followGraph, Set<Integer> validTxIds,
+                           LinkModel linkModel, double uploadBandwidth, double roundPeriod,
+                           double clockSkew, Random random) {
+        if (nodes.length != followGraph.getNumNodes()) {
+            throw new IllegalArgumentException("Follow graph should have one node for each of the nodes.");
+        }
+        if (!(uploadBandwidth > 0) || !(roundPeriod > 0) || !(clockSkew >= 0)) {
+            throw new IllegalArgumentException(
+                    "Bandwidth and round period should be positive, and clock skew not negative.");
+        }
+
+        _nodes = nodes;
+        _followGraph = followGraph;
+        _validTxIds = validTxIds;
+        _linkModel = linkModel;
+        _uploadBandwidth = uploadBandwidth;
+        _roundPeriod = roundPeriod;
+        _clockSkew = clockSkew;
+        _random = random;
+        _events = new EventQueue(nodes.length + followGraph.getNumEdges());
+        _ticks = new int[nodes.length];
+        _uplinkFreeAt = new double[nodes.length];
+        _inboxes = new Inbox[nodes.length];
+    }
+
+    /**
+     * @return a driver that runs each simulation through an {@code EventSimulation} with these
+     *         network settings, handing each finished one to {@code onFinished}
+     */
+    public static Simulation.RoundDriver driver(LinkModel linkModel, double uploadBandwidth,
+                                                double roundPeriod, double clockSkew,
+                                                Consumer<EventSimulation> onFinished) {
+        return (nodes, followGraph, validTxIds, numRounds, random) -> {
+            EventSimulation simulation = new EventSimulation(
+                    nodes, followGraph, validTxIds, linkModel, uploadBandwidth, roundPeriod, clockSkew, random);
+            simulation.run(numRounds);
+            onFinished.accept(simulation);
+        };
+    }
+
+    /**
+     * Runs every node through {@code numRounds} rounds. At each tick a node first receives the
+     * candidates that arrived since its previous tick, then sends its proposals to its followers;
+     * its last tick only receives. Candidates arriving after that are counted as late. With
+     * {@link LinkModel#perfect()} and no clock skew, each round plays out as in the lock-step
+     * {@link Simulation}.
+     */
+    public void run(int numRounds) {
+        _numRounds = numRounds;
+        for (int node = 0; node < _nodes.length; node++) {
+            _events.add(_clockSkew == 0 ? 0 : _clockSkew * _random.nextDouble(), TICK, node, node, null);
+        }
+
+        while (!_events.isEmpty()) {
+            _events.poll();
+            _now = _events.getTime();
+            _eventCount++;
+
+            if (_events.getKind() == TICK) {
+                tick(_events.getTarget());
+            } else {
+                deliver(_events.getTarget(), _events.getSource(), _events.getPayload());
+            }
+        }
+    }
+
+    private void tick(int node) {
+        int round = _ticks[node]++;
+
+        Inbox inbox = _inboxes[node];
+        if (inbox != null) {
+            _inboxes[node] = null;
+            _nodes[node].receiveFromFollowees(inbox.toCandidateBatch());
+        }
+
+        if (round < _numRounds) {
+            send(node);
+            _events.add(_now + _roundPeriod, TICK, node, node, null);
+        }
+    }
+
+    private void send(int proposer) {
+        Set<Transaction> proposals = _nodes[proposer].sendToFollowers();
+        int[] payload = new int[proposals.size()];
+        int size = 0;
+        for (Transaction tx : proposals) {
+            if (_validTxIds.contains(tx.id)) { // ensure that each tx is actually valid
+                payload[size++] = tx.id;
+            }
+        }
+        if (size == 0) {
+            return;
+        }
+        if (size < payload.length) {
+            payload = Arrays.copyOf(payload, size);
+        }
+
+        // Messages leave one after another, each once the uplink has sent the ones before it
+        double transmissionTime = size / _uploadBandwidth;
+        for (int k = _followGraph.getFollowersStart(proposer); k < _followGraph.getFollowersEnd(proposer); k++) {
+            int follower = _followGraph.getFollower(k);
+            double sent = Math.max(_now, _uplinkFreeAt[proposer]) + transmissionTime;
+            _uplinkFreeAt[proposer] = sent;
+            _messageCount++;
+
+            double dropProbability = _linkModel.getDropProbability(proposer, follower);
+            if (dropProbability > 0 && _random.nextDouble() < dropProbability) {
+                _droppedCount++;
+                continue;
+            }
+
+            double latency = Math.max(0, _linkModel.sampleLatency(proposer, follower, _random));
+            _events.add(sent + latency, DELIVERY, follower, proposer, payload);
+        }
+    }
+
+    private void deliver(int receiver, int sender, int[] payload) {
+        if (_ticks[receiver] > _numRounds) {
+            _lateCount++;
+            return;
+        }
+
+        Inbox inbox = _inboxes[receiver];
+        if (inbox == null) {
+            inbox = new Inbox();
+            _inboxes[receiver] = inbox;
+        }
+        inbox.add(sender, payload);
+    }
+
+    /** @return the simulated time of the last event */
+    public double getTime() {
+        return _now;
+    }
+
+    public long getEventCount() {
+        return _eventCount;
+    }
+
+    /** @return the number of messages put on the wire, including those then lost */
+    public long getMessageCount() {
+        return _messageCount;
+    }
+
+    public long getDroppedCount() {
+        return _droppedCount;
+    }
+
+    /** @return the number of messages that arrived after their receiver's last round */
+    public long getLateCount() {
+        return _lateCount;
+    }
+
+    public static void main(String[] args) {
+        double p_graph = Double.parseDouble(args[0]);
+        double p_malicious = Double.parseDouble(args[1]);
+        double p_txDistribution = Double.parseDouble(args[2]);
+        int numRounds = Integer.parseInt(args[3]);
+
+        Map<String, String> options = new HashMap<>();
+        for (int i = 4; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+        int numNodes = Integer.parseInt(options.getOrDefault("-nodes", "100"));
+        long seed = options.containsKey("-seed") ? Long.parseLong(options.get("-seed")) : new Random().nextLong();
+        String[] delay = options.getOrDefault("-delay", "20,200").split(",");
+        double jitter = Double.parseDouble(options.getOrDefault("-jitter", "10"));
+        double drop = Double.parseDouble(options.getOrDefault("-drop", "0"));
+        double bandwidth = Double.parseDouble(options.getOrDefault("-bandwidth", "Infinity"));
+        double period = Double.parseDouble(options.getOrDefault("-period", "1000"));
+        double skew = Double.parseDouble(options.getOrDefault("-skew", "0"));
+
+        LinkModel linkModel = LinkModel
+                .perLinkDelay(Double.parseDouble(delay[0]), Double.parseDouble(delay[1]), jitter, seed)
+                .withDropProbability(drop);
+        EventSimulation[] finished = new EventSimulation[1];
+        Simulation.Result result = Simulation.run(p_graph, p_malicious, p_txDistribution, numRounds, numNodes, seed,
+                driver(linkModel, bandwidth, period, skew, simulation -> finished[0] = simulation));
+        EventSimulation simulation = finished[0];
+
+        System.out.print("Graph Edge Probability: " + p_graph);
+        System.out.print(", Malicious Node Probability: " + p_malicious);
+        System.out.print(", Initial Transactions Communicated Probability: " + p_txDistribution);
+        System.out.println(", Num Rounds: " + numRounds + ", Seed: " + seed);
+
+        System.out.println("Malicious node count: " + result.maliciousNodeCount);
+        System.out.println("Compliant node count: " + result.compliantNodeCount);
+        System.out.println("Messages sent: " + simulation.getMessageCount()
+                + ", dropped: " + simulation.getDroppedCount()
+                + ", late: " + simulation.getLateCount()
+                + ", simulated time: " + simulation.getTime() + "ms");
+        System.out.println("Events: " + simulation.getEventCount()
+                + " in " + result.wallTimeMillis + "ms of wall time");
+
+        System.out.println("Maximum matching transaction set with size ["
+                + result.consensusSize
+                + "/" + result.numTx
+                + "] has match count: " + result.maxMatchCount
+                + "/" + result.compliantNodeCount);
+    }
+}
@@ -0,0 +1,134 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A follow graph in compressed sparse row form: the followees of node {@code i} are
+ * {@code followees[followeeOffsets[i]]} up to, but excluding,
+ * {@code followees[followeeOffsets[i + 1]]}, and the followers are laid out the same way. Both directions take one int per edge, so fanning
+ * a proposal out to the followers of a node costs only as much as it has followers.
+ */
+public class FollowGraph {
+
+    private final int _numNodes;
+    private final int[] _followeeOffsets;
+    private final int[] _followees;
+    private final int[] _followerOffsets;
+    private final int[] _followers;
+
+    /**
+     * @param followeeOffsets {@code numNodes + 1} non-decreasing offsets into {@code followees},
+     *        starting at 0 and ending at {@code followees.length}
+     * @param followees the nodes followed by each node in turn, ascending within each node
+     */
+    public FollowGraph(int numNodes, int[] followeeOffsets, int[] followees) {
+        if (followeeOffsets.length != numNodes + 1
+                || followeeOffsets[0] != 0
+                || followeeOffsets[numNodes] != followees.length) {
+            throw new IllegalArgumentException("Followee offsets should span the followees of every node.");
+        }
+
+        _numNodes = numNodes;
+        _followeeOffsets = followeeOffsets;
+        _followees = followees;
+        _followerOffsets = new int[numNodes + 1];
+        _followers = new int[followees.length];
+
+        // Transpose: count the followers of each node, then place them in ascending order
+        for (int followee : followees) {
+            _followerOffsets[followee + 1]++;
+        }
+        for (int node = 0; node < numNodes; node++) {
+            _followerOffsets[node + 1] += _followerOffsets[node];
+        }
+        int[] next = Arrays.copyOf(_followerOffsets, numNodes);
+        for (int follower = 0; follower < numNodes; follower++) {
+            for (int k = followeeOffsets[follower]; k < followeeOffsets[follower + 1]; k++) {
+                _followers[next[followees[k]]++] = follower;
+            }
+        }
+    }
+
+    /**
+     * @return a graph in which each node follows each other node independently with probability
+     *         {@code p_graph}. The gaps between followees are drawn from the geometric distribution,
+     *         so building it costs as much as the edges it has, not the square of the node count.
+     */
+    public static FollowGraph random(int numNodes, double p_graph, Random random) {
+        int[] followeeOffsets = new int[numNodes + 1];
+        int[] followees = new int[16];
+        int edgeCount = 0;
+        double logSkip = Math.log(1 - p_graph);
+
+        for (int i = 0; i < numNodes; i++) {
+            int j = -1;
+            while (p_graph > 0) {
+                // Nodes passed over before the next followee, each with probability 1 - p_graph
+                double gap = p_graph >= 1 ? 0 : Math.floor(Math.log(1 - random.nextDouble()) / logSkip);
+                if (j + 1 + gap >= numNodes) {
+                    break;
+                }
+                j += 1 + (int) gap;
+                if (j == i) {
+                    continue;
+                }
+                if (edgeCount == followees.length) {
+                    followees = Arrays.copyOf(followees, followees.length * 2);
+                }
+                followees[edgeCount++] = j;
+            }
+            followeeOffsets[i + 1] = edgeCount;
+        }
+
+        return new FollowGraph(numNodes, followeeOffsets, Arrays.copyOf(followees, edgeCount));
+    }
+
+    public int getNumNodes() {
+        return _numNodes;
+    }
+
+    public int getNumEdges() {
+        return _followees.length;
+    }
+
+    /** @return {@code followees} such that {@code followees[j]} is true iff {@code node} follows j */
+    public boolean[] getFolloweeFlags(int node) {
+        boolean[] followees = new boolean[_numNodes];
+        for (int k = _followeeOffsets[node]; k < _followeeOffsets[node + 1]; k++) {
+            followees[_followees[k]] = true;
+        }
+        return followees;
+    }
+
+    /** @return the nodes {@code node} follows, ascending */
+    public int[] getFollowees(int node) {
+        return Arrays.copyOfRange(_followees, _followeeOffsets[node], _followeeOffsets[node + 1]);
+    }
+
+    /** @return the index in {@link #getFollowee} of the first followee of {@code node} */
+    public int getFolloweesStart(int node) {
+        return _followeeOffsets[node];
+    }
+
+    /** @return the index in {@link #getFollowee} just past the last followee of {@code node} */
+    public int getFolloweesEnd(int node) {
+        return _followeeOffsets[node + 1];
+    }
+
+    public int getFollowee(int index) {
+        return _followees[index];
+    }
+
+    /** @return the index in {@link #getFollower} of the first follower of {@code node} */
+    public int getFollowersStart(int node) {
+        return _followerOffsets[node];
+    }
+
+    /** @return the index in {@link #getFollower} just past the last follower of {@code node} */
+    public int getFollowersEnd(int node) {
+        return _followerOffsets[node + 1];
+    }
+
+    public int getFollower(int index) {
+        return _followers[index];
+    }
+}
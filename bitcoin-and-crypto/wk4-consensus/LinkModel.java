@@ -0,0 +1,74 @@
+import java.util.Random;
+
+/**
+ * How messages travel over the link from one node to another in an {@link EventSimulation}: how
+ * long each one takes to arrive once it is on the wire, and how likely it is to be lost. Times are
+ * in the simulation's unit, milliseconds by convention.
+ */
+public interface LinkModel {
+
+    /** @return the latency of one message sent from {@code sender} to {@code receiver} */
+    double sampleLatency(int sender, int receiver, Random random);
+
+    /** @return the probability that a message sent from {@code sender} to {@code receiver} is lost */
+    default double getDropProbability(int sender, int receiver) {
+        return 0;
+    }
+
+    /** Delivers every message instantly; with no clock skew this replays the lock-step rounds */
+    static LinkModel perfect() {
+        return (sender, receiver, random) -> 0;
+    }
+
+    /** Every link takes a latency drawn uniformly from {@code [minLatency, maxLatency)} */
+    static LinkModel uniform(double minLatency, double maxLatency) {
+        if (minLatency < 0 || maxLatency < minLatency) {
+            throw new IllegalArgumentException("Latency bounds should be ordered and not negative.");
+        }
+        return (sender, receiver, random) -> minLatency + (maxLatency - minLatency) * random.nextDouble();
+    }
+
+    /**
+     * Each link has a fixed propagation delay, drawn once per directed link uniformly from
+     * {@code [minDelay, maxDelay)}, plus exponentially distributed queueing jitter with mean
+     * {@code jitterMean} on every message. The delays are derived from {@code seed} and the two
+     * node indices, so they take no memory however many links there are.
+     */
+    static LinkModel perLinkDelay(double minDelay, double maxDelay, double jitterMean, long seed) {
+        if (minDelay < 0 || maxDelay < minDelay || jitterMean < 0) {
+            throw new IllegalArgumentException("Delays should be ordered and not negative.");
+        }
+        return (sender, receiver, random) -> {
+            // A 64-bit finalizer over the link, spread to a uniform fraction of [0, 1)
+            long h = seed ^ ((long) sender << 32 | (receiver & 0xffffffffL));
+            h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+            h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            double delay = minDelay + (maxDelay - minDelay) * ((h >>> 11) * 0x1.0p-53);
+            return delay - jitterMean * Math.log(1 - random.nextDouble());
+        };
+    }
+
+    /**
+     * @return this model, but also losing every message independently with probability {@code p},
+     *         on top of whatever this model already loses on each link
+     */
+    default LinkModel withDropProbability(double p) {
+        if (p < 0 || p > 1) {
+            throw new IllegalArgumentException("Drop probability should be between 0 and 1.");
+        }
+        LinkModel base = this;
+        return new LinkModel() {
+            @Override
+            public double sampleLatency(int sender, int receiver, Random random) {
+                return base.sampleLatency(sender, receiver, random);
+            }
+
+            @Override
+            public double getDropProbability(int sender, int receiver) {
+                // A message gets through only if neither this model nor the added loss drops it
+                return 1 - (1 - base.getDropProbability(sender, receiver)) * (1 - p);
+            }
+        };
+    }
+}
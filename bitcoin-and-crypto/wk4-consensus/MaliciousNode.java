@@ -13,6 +13,11 @@ public class MaliciousNode implements Node {
         return;
     }
 
+    @Override
+    public void setFollowees(int[] sortedFollowees, int numNodes) {
+        return;
+    }
+
     public void setPendingTransaction(Set<Transaction> pendingTransactions) {
         _originalTransactions = pendingTransactions;
     }
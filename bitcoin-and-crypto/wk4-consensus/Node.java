@@ -10,6 +10,18 @@ public interface Node {
     /** {@code followees[i]} is true if and only if this node follows node {@code i} */
     void setFollowees(boolean[] followees);
 
+    /**
+     * {@code sortedFollowees} lists, in ascending order, the nodes this node follows out of
+     * {@code numNodes}. By default they are passed to {@link #setFollowees(boolean[])} as flags.
+     */
+    default void setFollowees(int[] sortedFollowees, int numNodes) {
+        boolean[] followees = new boolean[numNodes];
+        for (int followee : sortedFollowees) {
+            followees[followee] = true;
+        }
+        setFollowees(followees);
+    }
+
     /** initialize proposal list of transactions */
     void setPendingTransaction(Set<Transaction> pendingTransactions);
 
@@ -22,4 +34,12 @@ public interface Node {
 
     /** receive candidates from other nodes. */
     void receiveFromFollowees(Set<Candidate> candidates);
+
+    /**
+     * receive candidates from other nodes as one packed batch. By default the batch is unpacked into
+     * {@link Candidate}s and passed to {@link #receiveFromFollowees(Set)}.
+     */
+    default void receiveFromFollowees(CandidateBatch candidates) {
+        receiveFromFollowees(candidates.toCandidates());
+    }
 }
\ No newline at end of file
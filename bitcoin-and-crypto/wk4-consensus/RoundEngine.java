@@ -0,0 +1,103 @@
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Runs simulation rounds across a pool of worker threads. A round has two phases separated by a
+ * barrier: every node sends its proposals into its own outbox, then every node receives the
+ * candidates in the outboxes of the nodes it follows, as one {@link CandidateBatch}. Each node is
+ * called by one thread at a time, proposers never share a buffer, and receivers gather their
+ * candidates by pulling from their followees rather than through a shared map.
+ *
+ * <p>
+ * A node receives its candidates in ascending order of proposer, and each proposer's in the order
+ * it proposed them, so rounds play out the same however the threads are scheduled.
+ */
+public class RoundEngine implements AutoCloseable {
+
+    private final Node[] _nodes;
+    private final FollowGraph _followGraph;
+    private final Set<Integer> _validTxIds;
+    private final ForkJoinPool _workers;
+    /** The ids of the valid transactions each node proposed this round, by proposer index */
+    private final int[][] _outboxes;
+
+    /**
+     * @param validTxIds the transaction ids that may be proposed; proposals of any other id are
+     *        dropped. It is read by every worker, so it should not change while rounds run.
+     */
+    public RoundEngine(Node[] nodes, FollowGraph followGraph, Set<Integer> validTxIds, int parallelism) {
+        if (nodes.length != followGraph.getNumNodes()) {
+            throw new IllegalArgumentException("Follow graph should have one node for each of the nodes.");
+        }
+
+        _nodes = nodes;
+        _followGraph = followGraph;
+        _validTxIds = validTxIds;
+        _workers = new ForkJoinPool(parallelism);
+        _outboxes = new int[nodes.length][];
+    }
+
+    /** Runs one round: a send phase over every node, then a receive phase over every node */
+    public void runRound() {
+        runPhase(this::send);
+        runPhase(this::receive);
+    }
+
+    private void send(int proposer) {
+        Set<Transaction> proposals = _nodes[proposer].sendToFollowers();
+        int[] outbox = new int[proposals.size()];
+        int size = 0;
+        for (Transaction tx : proposals) {
+            if (_validTxIds.contains(tx.id)) { // ensure that each tx is actually valid
+                outbox[size++] = tx.id;
+            }
+        }
+        _outboxes[proposer] = size == outbox.length ? outbox : Arrays.copyOf(outbox, size);
+    }
+
+    private void receive(int receiver) {
+        int size = 0;
+        for (int k = _followGraph.getFolloweesStart(receiver); k < _followGraph.getFolloweesEnd(receiver); k++) {
+            size += _outboxes[_followGraph.getFollowee(k)].length;
+        }
+        if (size == 0) {
+            return;
+        }
+
+        CandidateBatch candidates = new CandidateBatch(size);
+        for (int k = _followGraph.getFolloweesStart(receiver); k < _followGraph.getFolloweesEnd(receiver); k++) {
+            int followee = _followGraph.getFollowee(k);
+            for (int txId : _outboxes[followee]) {
+                candidates.add(followee, txId);
+            }
+        }
+        _nodes[receiver].receiveFromFollowees(candidates);
+    }
+
+    /** Calls {@code action} on every node index across the workers, returning once all calls have */
+    private void runPhase(IntConsumer action) {
+        try {
+            _workers.submit(() -> IntStream.range(0, _nodes.length).parallel().forEach(action)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while running a round.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        _workers.shutdown();
+    }
+}
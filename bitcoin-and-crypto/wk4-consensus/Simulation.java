@@ -5,29 +5,130 @@
 // mixing them in the network to fully test.
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class Simulation {
 
+   /** The outcome of one simulation run */
+   public static final class Result {
+      public final double p_graph;
+      public final double p_malicious;
+      public final double p_txDistribution;
+      public final int numRounds;
+      public final int numNodes;
+      public final long seed;
+      public final int maliciousNodeCount;
+      public final int compliantNodeCount;
+      public final int numTx;
+      /** the size of the transaction set the most nodes agree on */
+      public final int consensusSize;
+      /** the number of nodes that agree on that transaction set */
+      public final int maxMatchCount;
+      /** the number of distinct transaction sets the nodes ended up with */
+      public final int distinctSetCount;
+      public final long wallTimeMillis;
+
+      private Result(double p_graph, double p_malicious, double p_txDistribution, int numRounds,
+                     int numNodes, long seed, int maliciousNodeCount, int compliantNodeCount,
+                     int numTx, int consensusSize, int maxMatchCount, int distinctSetCount,
+                     long wallTimeMillis) {
+         this.p_graph = p_graph;
+         this.p_malicious = p_malicious;
+         this.p_txDistribution = p_txDistribution;
+         this.numRounds = numRounds;
+         this.numNodes = numNodes;
+         this.seed = seed;
+         this.maliciousNodeCount = maliciousNodeCount;
+         this.compliantNodeCount = compliantNodeCount;
+         this.numTx = numTx;
+         this.consensusSize = consensusSize;
+         this.maxMatchCount = maxMatchCount;
+         this.distinctSetCount = distinctSetCount;
+         this.wallTimeMillis = wallTimeMillis;
+      }
+   }
+
    public static void main(String[] args) {
 
       // There are four required command line arguments: p_graph (.1, .2, .3),
       // p_malicious (.15, .30, .45), p_txDistribution (.01, .05, .10),
       // and numRounds (10, 20). You should try to test your CompliantNode
-      // code for all 3x3x3x2 = 54 combinations.
+      // code for all 3x3x3x2 = 54 combinations, which SimulationSweep runs in
+      // one go. An optional fifth argument sets the number of nodes (100 by
+      // default), and an optional sixth the random seed, which makes the run
+      // reproducible (a random seed by default).
 
-      int numNodes = 100;
+      int numNodes = args.length > 4 ? Integer.parseInt(args[4]) : 100;
       double p_graph = Double.parseDouble(args[0]); // parameter for random graph: prob. that an edge will exist
       double p_malicious = Double.parseDouble(args[1]); // prob. that a node will be set to be malicious
       double p_txDistribution = Double.parseDouble(args[2]); // probability of assigning an initial transaction to each node
       int numRounds = Integer.parseInt(args[3]); // number of simulation rounds your nodes will run for
+      long seed = args.length > 5 ? Long.parseLong(args[5]) : new Random().nextLong();
+
+      Result result = run(p_graph, p_malicious, p_txDistribution, numRounds, numNodes, seed,
+              Runtime.getRuntime().availableProcessors());
+
+      System.out.print("Graph Edge Probability: " + p_graph);
+      System.out.print(", Malicious Node Probability: " + p_malicious);
+      System.out.print(", Initial Transactions Communicated Probability: " + p_txDistribution);
+      System.out.println(", Num Rounds: " + numRounds + ", Seed: " + seed);
+
+      System.out.println("Malicious node count: " + result.maliciousNodeCount);
+      System.out.println("Compliant node count: " + result.compliantNodeCount);
+
+      System.out.println("Maximum matching transaction set with size ["
+              + result.consensusSize
+              + "/" + result.numTx
+              + "] has match count: " + result.maxMatchCount
+              + "/" + result.compliantNodeCount);
+   }
+
+   /** Carries the proposals of a set up simulation between its nodes for every round */
+   public interface RoundDriver {
+      /**
+       * @param random the simulation's generator, for any random choice the driver makes, so
+       *        that a seeded run stays reproducible
+       */
+      void runRounds(Node[] nodes, FollowGraph followGraph, Set<Integer> validTxIds, int numRounds,
+                     Random random);
+   }
+
+   /**
+    * Runs one simulation in lock-step rounds with instant, lossless delivery, drawing every random
+    * choice from a generator seeded with {@code seed}, so that the same arguments always produce
+    * the same result
+    *
+    * @param parallelism the number of worker threads each round is spread across
+    */
+   public static Result run(double p_graph, double p_malicious, double p_txDistribution,
+                            int numRounds, int numNodes, long seed, int parallelism) {
+      return run(p_graph, p_malicious, p_txDistribution, numRounds, numNodes, seed,
+              (nodes, followGraph, validTxIds, rounds, random) -> {
+                 // each round's send and receive phases are spread across the worker threads
+                 try (RoundEngine roundEngine = new RoundEngine(nodes, followGraph, validTxIds, parallelism)) {
+                    for (int round = 0; round < rounds; round++) { // numRounds is either 10 or 20
+                       roundEngine.runRound();
+                    }
+                 }
+              });
+   }
+
+   /**
+    * Runs one simulation as {@link #run(double, double, double, int, int, long, int)} does, but
+    * with {@code roundDriver} delivering the proposals
+    */
+   public static Result run(double p_graph, double p_malicious, double p_txDistribution,
+                            int numRounds, int numNodes, long seed, RoundDriver roundDriver) {
+      long startNanos = System.nanoTime();
+      Random random = new Random(seed);
 
       int maliciousNodeCount = 0;
       int compliantNodeCount = 0;
       // pick which nodes are malicious and which are compliant
       Node[] nodes = new Node[numNodes];
       for (int i = 0; i < numNodes; i++) {
-         if(Math.random() < p_malicious) {
+         if(random.nextDouble() < p_malicious) {
             // When you are ready to try testing with malicious nodes, replace the
             // instantiation below with an instantiation of a MaliciousNode
             nodes[i] = new MaliciousNode(p_graph, p_malicious, p_txDistribution, numRounds);
@@ -39,33 +140,17 @@ public class Simulation {
          }
       }
 
-      System.out.print("Graph Edge Probability: " + p_graph);
-      System.out.print(", Malicious Node Probability: " + p_malicious);
-      System.out.print(", Initial Transactions Communicated Probability: " + p_txDistribution);
-      System.out.println(", Num Rounds: " + numRounds);
-
-      System.out.println("Malicious node count: " + maliciousNodeCount);
-      System.out.println("Compliant node count: " + compliantNodeCount);
-
-      // initialize random follow graph
-      boolean[][] followees = new boolean[numNodes][numNodes]; // followees[i][j] is true iff i follows j
-      for (int i = 0; i < numNodes; i++) {
-         for (int j = 0; j < numNodes; j++) {
-            if (i == j) continue;
-            if(Math.random() < p_graph) { // p_graph is .1, .2, or .3
-               followees[i][j] = true;
-            }
-         }
-      }
+      // initialize random follow graph, in which each node follows each other node with
+      // probability p_graph (.1, .2, or .3)
+      FollowGraph followGraph = FollowGraph.random(numNodes, p_graph, random);
 
       // notify all nodes of their followees
       for (int i = 0; i < numNodes; i++)
-         nodes[i].setFollowees(followees[i]);
+         nodes[i].setFollowees(followGraph.getFollowees(i), numNodes);
 
       // initialize a set of 500 valid Transactions with random ids
       int numTx = 500;
       HashSet<Integer> validTxIds = new HashSet<Integer>();
-      Random random = new Random();
       for (int i = 0; i < numTx; i++) {
          int r = random.nextInt();
          validTxIds.add(r);
@@ -78,54 +163,22 @@ public class Simulation {
       for (int i = 0; i < numNodes; i++) {
          HashSet<Transaction> pendingTransactions = new HashSet<Transaction>();
          for(Integer txID : validTxIds) {
-            if (Math.random() < p_txDistribution) // p_txDistribution is .01, .05, or .10.
+            if (random.nextDouble() < p_txDistribution) // p_txDistribution is .01, .05, or .10.
                pendingTransactions.add(new Transaction(txID));
          }
          nodes[i].setPendingTransaction(pendingTransactions);
       }
 
 
-      // Simulate for numRounds times
-      for (int round = 0; round < numRounds; round++) { // numRounds is either 10 or 20
-
-         // gather all the proposals into a map. The key is the index of the node receiving
-         // proposals. The value is an ArrayList containing 1x2 Integer arrays. The first
-         // element of each array is the id of the transaction being proposed and the second
-         // element is the index # of the node proposing the transaction.
-         HashMap<Integer, Set<Candidate>> allProposals = new HashMap<>();
-
-         for (int i = 0; i < numNodes; i++) {
-            Set<Transaction> proposals = nodes[i].sendToFollowers();
-            for (Transaction tx : proposals) {
-               if (!validTxIds.contains(tx.id))
-                  continue; // ensure that each tx is actually valid
-
-               for (int j = 0; j < numNodes; j++) {
-                  if(!followees[j][i]) continue; // tx only matters if j follows i
-
-                  if (!allProposals.containsKey(j)) {
-                	  Set<Candidate> candidates = new HashSet<>();
-                	  allProposals.put(j, candidates);
-                  }
-
-                  Candidate candidate = new Candidate(tx, i);
-                  allProposals.get(j).add(candidate);
-               }
-
-            }
-         }
-
-         // Distribute the Proposals to their intended recipients as Candidates
-         for (int i = 0; i < numNodes; i++) {
-            if (allProposals.containsKey(i))
-               nodes[i].receiveFromFollowees(allProposals.get(i));
-         }
-      }
+      // Simulate for numRounds times. Each round, each node receives one batch of candidates,
+      // each pairing a proposed transaction with the index of the node proposing it, from the
+      // nodes it follows.
+      roundDriver.runRounds(nodes, followGraph, validTxIds, numRounds, random);
 
       Map<Set<Transaction>, Integer> transactionMatches = new HashMap<>();
       int maxTransactionMatches = 0;
       Set<Transaction> maxTransactionSet = new HashSet<>();
-      // print results
+      // tally the transaction sets the nodes believe consensus was reached upon
       for (int i = 0; i < numNodes; i++) {
          Set<Transaction> transactions = nodes[i].sendToFollowers();
          int transactionMatchCount = transactionMatches.getOrDefault(transactions, 0) + 1;
@@ -145,16 +198,16 @@ public class Simulation {
       assert transactionMatches.values().contains(maliciousNodeCount);
       assert transactionMatches.values().contains(compliantNodeCount);
 
-      System.out.println("Maximum matching transaction set with size ["
-              + maxTransactionSet.size()
-              + "/" + numTx
-              + "] has match count: " + maxTransactionMatches
-              + "/" + compliantNodeCount);
 //      transactionMatches.forEach((transactionSet, transactionMatchCount)
 //              -> System.out.println("Transaction sets "
 //              + "of size " + transactionSet.size() + ""
 ////              + getTransactionArrayString(transactionSet)
 //              + " match count: " + transactionMatchCount));
+
+      return new Result(p_graph, p_malicious, p_txDistribution, numRounds, numNodes, seed,
+              maliciousNodeCount, compliantNodeCount, numTx, maxTransactionSet.size(),
+              maxTransactionMatches, transactionMatches.size(),
+              TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
    }
 
    private static String getTransactionArrayString(Set<Transaction> transactionSet) {
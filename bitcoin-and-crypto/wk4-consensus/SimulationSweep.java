@@ -0,0 +1,125 @@
+// Runs the Simulation over a grid of parameters and seeds in one JVM, several
+// runs at a time, and writes one machine-readable row per run. Every run is
+// seeded, so a row can be reproduced with
+//   java Simulation p_graph p_malicious p_txDistribution numRounds numNodes seed
+//
+// Usage: java SimulationSweep [-graph .1,.2,.3] [-malicious .15,.30,.45]
+//                             [-tx .01,.05,.10] [-rounds 10,20] [-seeds 1,2,3]
+//                             [-nodes 100] [-threads n] [-out results.csv|results.json]
+// Each option defaults to the values shown (one seed, 1, by default); the
+// results go to standard output as CSV unless -out names a file, which is
+// written as JSON if its name ends in .json.
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+public class SimulationSweep {
+
+   private static final String[] COLUMNS = {
+           "p_graph", "p_malicious", "p_txDistribution", "numRounds", "numNodes", "seed",
+           "maliciousNodeCount", "compliantNodeCount", "numTx", "consensusSize",
+           "maxMatchCount", "distinctSetCount", "wallTimeMillis"};
+
+   public static void main(String[] args) throws InterruptedException {
+      Map<String, String> options = new HashMap<>();
+      for (int i = 0; i + 1 < args.length; i += 2) {
+         options.put(args[i], args[i + 1]);
+      }
+
+      double[] graphProbabilities = parseDoubles(options.getOrDefault("-graph", ".1,.2,.3"));
+      double[] maliciousProbabilities = parseDoubles(options.getOrDefault("-malicious", ".15,.30,.45"));
+      double[] txProbabilities = parseDoubles(options.getOrDefault("-tx", ".01,.05,.10"));
+      long[] rounds = parseLongs(options.getOrDefault("-rounds", "10,20"));
+      long[] seeds = parseLongs(options.getOrDefault("-seeds", "1"));
+      int numNodes = Integer.parseInt(options.getOrDefault("-nodes", "100"));
+      int threads = Integer.parseInt(options.getOrDefault(
+              "-threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+
+      // The runs are spread across the threads, so each run keeps to one worker of its own
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      List<Future<Simulation.Result>> runs = new ArrayList<>();
+      for (double p_graph : graphProbabilities)
+         for (double p_malicious : maliciousProbabilities)
+            for (double p_txDistribution : txProbabilities)
+               for (long numRounds : rounds)
+                  for (long seed : seeds)
+                     runs.add(executor.submit(() -> Simulation.run(
+                             p_graph, p_malicious, p_txDistribution, (int) numRounds, numNodes, seed, 1)));
+      executor.shutdown();
+
+      // Rows come out in grid order, however the runs were scheduled
+      List<Simulation.Result> results = new ArrayList<>(runs.size());
+      try {
+         for (Future<Simulation.Result> run : runs) {
+            results.add(run.get());
+         }
+      } catch (ExecutionException e) {
+         executor.shutdownNow();
+         throw new IllegalStateException("A simulation run failed.", e.getCause());
+      }
+
+      String out = options.get("-out");
+      if (out == null) {
+         writeCsv(results, System.out);
+         return;
+      }
+      try (PrintStream stream = new PrintStream(out, StandardCharsets.UTF_8.name())) {
+         if (out.endsWith(".json")) {
+            writeJson(results, stream);
+         } else {
+            writeCsv(results, stream);
+         }
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   private static Object[] getValues(Simulation.Result result) {
+      return new Object[]{
+              result.p_graph, result.p_malicious, result.p_txDistribution, result.numRounds,
+              result.numNodes, result.seed, result.maliciousNodeCount, result.compliantNodeCount,
+              result.numTx, result.consensusSize, result.maxMatchCount, result.distinctSetCount,
+              result.wallTimeMillis};
+   }
+
+   private static void writeCsv(List<Simulation.Result> results, PrintStream out) {
+      out.println(String.join(",", COLUMNS));
+      for (Simulation.Result result : results) {
+         out.println(Arrays.stream(getValues(result))
+                 .map(String::valueOf)
+                 .collect(Collectors.joining(",")));
+      }
+      out.flush();
+   }
+
+   private static void writeJson(List<Simulation.Result> results, PrintStream out) {
+      out.println("[");
+      for (int i = 0; i < results.size(); i++) {
+         Object[] values = getValues(results.get(i));
+         StringBuilder row = new StringBuilder("  {");
+         for (int column = 0; column < COLUMNS.length; column++) {
+            if (column > 0) row.append(", ");
+            row.append('"').append(COLUMNS[column]).append("\": ").append(values[column]);
+         }
+         out.println(row.append(i + 1 < results.size() ? "}," : "}"));
+      }
+      out.println("]");
+      out.flush();
+   }
+
+   private static double[] parseDoubles(String list) {
+      return Arrays.stream(list.split(",")).mapToDouble(Double::parseDouble).toArray();
+   }
+
+   private static long[] parseLongs(String list) {
+      return Arrays.stream(list.split(",")).mapToLong(Long::parseLong).toArray();
+   }
+}
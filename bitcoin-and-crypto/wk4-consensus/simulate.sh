@@ -1,3 +1,8 @@
+# usage: simulate.sh [seed]
+# Pass a seed to make every run reproducible. To run the whole grid in one JVM
+# instead, see SimulationSweep.
+seed=$1
+
 javac Simulation.java
 
 for graph_edge_probability in ".1" ".2" # ".3"
@@ -8,8 +13,8 @@ do
         do
             for num_rounds in "10" # "20"
             do
-                java Simulation $graph_edge_probability $malicious_node_probability $initial_transactions_communicated_probability $num_rounds
+                java Simulation $graph_edge_probability $malicious_node_probability $initial_transactions_communicated_probability $num_rounds ${seed:+100 $seed}
             done
         done
     done
-done
\ No newline at end of file
+done
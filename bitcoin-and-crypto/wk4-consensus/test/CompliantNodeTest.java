@@ -0,0 +1,94 @@
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+public class CompliantNodeTest {
+
+    private static final int NUM_NODES = 50;
+
+    public static void main(String[] args) {
+        TestSupport.run("the bitset node ends with the same sets as the set-based one",
+                CompliantNodeTest::matchesSetBasedNode);
+    }
+
+    private static void matchesSetBasedNode() {
+        long seed = 0;
+        for (double p_graph : new double[] {.1, .2, .3}) {
+            for (double p_malicious : new double[] {.15, .3, .45}) {
+                for (double p_txDistribution : new double[] {.01, .05, .1}) {
+                    for (int numRounds : new int[] {10, 20}) {
+                        compare(p_graph, p_malicious, p_txDistribution, numRounds, ++seed);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets up one network as {@link Simulation} does, once with {@link CompliantNode}s and once
+     * with {@link ReferenceCompliantNode}s among the same malicious nodes, runs both, and checks
+     * that every compliant node ends with the same consensus set as its reference
+     */
+    private static void compare(double p_graph, double p_malicious, double p_txDistribution, int numRounds,
+            long seed) {
+        Random random = new Random(seed);
+        Node[] nodes = new Node[NUM_NODES];
+        Node[] referenceNodes = new Node[NUM_NODES];
+        for (int i = 0; i < NUM_NODES; i++) {
+            if (random.nextDouble() < p_malicious) {
+                nodes[i] = new MaliciousNode(p_graph, p_malicious, p_txDistribution, numRounds);
+                referenceNodes[i] = nodes[i];
+            } else {
+                nodes[i] = new CompliantNode(p_graph, p_malicious, p_txDistribution, numRounds);
+                referenceNodes[i] = new ReferenceCompliantNode(p_graph, p_malicious, p_txDistribution, numRounds);
+            }
+        }
+
+        FollowGraph followGraph = FollowGraph.random(NUM_NODES, p_graph, random);
+        for (int i = 0; i < NUM_NODES; i++) {
+            // Both ways a node can be handed its followees
+            if (i % 2 == 0) {
+                nodes[i].setFollowees(followGraph.getFollowees(i), NUM_NODES);
+            } else {
+                nodes[i].setFollowees(followGraph.getFolloweeFlags(i));
+            }
+            if (referenceNodes[i] != nodes[i]) {
+                referenceNodes[i].setFollowees(followGraph.getFolloweeFlags(i));
+            }
+        }
+
+        Set<Integer> validTxIds = new HashSet<>();
+        while (validTxIds.size() < 500) {
+            validTxIds.add(random.nextInt());
+        }
+        for (int i = 0; i < NUM_NODES; i++) {
+            Set<Transaction> pendingTransactions = new HashSet<>();
+            for (Integer txId : validTxIds) {
+                if (random.nextDouble() < p_txDistribution) {
+                    pendingTransactions.add(new Transaction(txId));
+                }
+            }
+            nodes[i].setPendingTransaction(new HashSet<>(pendingTransactions));
+            if (referenceNodes[i] != nodes[i]) {
+                referenceNodes[i].setPendingTransaction(pendingTransactions);
+            }
+        }
+
+        runRounds(nodes, followGraph, validTxIds, numRounds);
+        runRounds(referenceNodes, followGraph, validTxIds, numRounds);
+        for (int i = 0; i < NUM_NODES; i++) {
+            if (referenceNodes[i] != nodes[i]) {
+                TestSupport.check(nodes[i].sendToFollowers().equals(referenceNodes[i].sendToFollowers()),
+                        "node " + i + " with seed " + seed);
+            }
+        }
+    }
+
+    private static void runRounds(Node[] nodes, FollowGraph followGraph, Set<Integer> validTxIds, int numRounds) {
+        try (RoundEngine roundEngine = new RoundEngine(nodes, followGraph, validTxIds, 1)) {
+            for (int round = 0; round < numRounds; round++) {
+                roundEngine.runRound();
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class EventSimulationTest {
+
+    public static void main(String[] args) {
+        TestSupport.run("perfect links replay the lock-step rounds node for node",
+                EventSimulationTest::perfectLinksMatchLockStep);
+        TestSupport.run("a link model that loses everything delivers nothing",
+                EventSimulationTest::lostMessagesAreNotDelivered);
+        TestSupport.run("events come out in time order, ties in the order added",
+                EventSimulationTest::queueOrdersByTimeThenInsertion);
+    }
+
+    private static void perfectLinksMatchLockStep() {
+        int runs = 0;
+        for (double p_graph : new double[] {.1, .3}) {
+            for (double p_malicious : new double[] {.15, .45}) {
+                for (double p_txDistribution : new double[] {.01, .1}) {
+                    for (int numRounds : new int[] {10, 20}) {
+                        long seed = runs;
+                        Node[][] lockStepNodes = new Node[1][];
+                        Node[][] eventNodes = new Node[1][];
+                        Simulation.Result lockStep = Simulation.run(p_graph, p_malicious, p_txDistribution,
+                                numRounds, 100, seed, TestSupport.capturing(lockStepDriver(), lockStepNodes));
+                        Simulation.Result events = Simulation.run(p_graph, p_malicious, p_txDistribution,
+                                numRounds, 100, seed, TestSupport.capturing(EventSimulation.driver(
+                                        LinkModel.perfect(), Double.POSITIVE_INFINITY, 1000, 0, simulation -> {
+                                        }), eventNodes));
+
+                        String run = "run " + p_graph + " " + p_malicious + " " + p_txDistribution + " "
+                                + numRounds + " seed " + seed;
+                        List<Set<Transaction>> expected = TestSupport.compliantSets(lockStepNodes[0]);
+                        List<Set<Transaction>> actual = TestSupport.compliantSets(eventNodes[0]);
+                        TestSupport.check(expected.equals(actual), run + ": node sets differ");
+                        TestSupport.check(lockStep.consensusSize == events.consensusSize
+                                && lockStep.maxMatchCount == events.maxMatchCount
+                                && lockStep.distinctSetCount == events.distinctSetCount, run + ": results differ");
+                        runs++;
+                    }
+                }
+            }
+        }
+    }
+
+    private static Simulation.RoundDriver lockStepDriver() {
+        return (nodes, followGraph, validTxIds, numRounds, random) -> {
+            try (RoundEngine roundEngine = new RoundEngine(nodes, followGraph, validTxIds, 1)) {
+                for (int round = 0; round < numRounds; round++) {
+                    roundEngine.runRound();
+                }
+            }
+        };
+    }
+
+    private static void lostMessagesAreNotDelivered() {
+        EventSimulation[] finished = new EventSimulation[1];
+        Simulation.run(.3, .15, .1, 10, 50, 1, EventSimulation.driver(
+                LinkModel.uniform(1, 5).withDropProbability(1), Double.POSITIVE_INFINITY, 1000, 0,
+                simulation -> finished[0] = simulation));
+
+        EventSimulation simulation = finished[0];
+        TestSupport.check(simulation.getMessageCount() > 0, "messages were sent");
+        TestSupport.check(simulation.getDroppedCount() == simulation.getMessageCount(), "every message lost");
+        // Only ticks remain: numRounds + 1 per node
+        TestSupport.check(simulation.getEventCount() == 50 * 11, "events " + simulation.getEventCount());
+    }
+
+    private static void queueOrdersByTimeThenInsertion() {
+        EventQueue queue = new EventQueue(1);
+        Random random = new Random(3);
+        for (int i = 0; i < 100000; i++) {
+            queue.add(random.nextInt(1000), 0, i, 0, null);
+        }
+
+        double lastTime = -1;
+        int lastTarget = -1;
+        int polled = 0;
+        while (!queue.isEmpty()) {
+            queue.poll();
+            TestSupport.check(queue.getTime() > lastTime
+                    || (queue.getTime() == lastTime && queue.getTarget() > lastTarget), "out of order");
+            lastTime = queue.getTime();
+            lastTarget = queue.getTarget();
+            polled++;
+        }
+        TestSupport.check(polled == 100000, "every event polled once");
+    }
+}
@@ -0,0 +1,61 @@
+import java.util.Random;
+
+public class LinkModelTest {
+
+    public static void main(String[] args) {
+        TestSupport.run("added loss combines with the wrapped model's per-link loss",
+                LinkModelTest::dropProbabilitiesCombine);
+        TestSupport.run("added loss keeps the wrapped model's latencies", LinkModelTest::latenciesDelegate);
+        TestSupport.run("per-link delays are fixed per directed link", LinkModelTest::perLinkDelaysAreStable);
+    }
+
+    private static void dropProbabilitiesCombine() {
+        // Loses everything node 0 sends and nothing else
+        LinkModel lossyNode = new LinkModel() {
+            @Override
+            public double sampleLatency(int sender, int receiver, Random random) {
+                return 1;
+            }
+
+            @Override
+            public double getDropProbability(int sender, int receiver) {
+                return sender == 0 ? 1 : 0;
+            }
+        };
+
+        LinkModel none = lossyNode.withDropProbability(0);
+        TestSupport.check(none.getDropProbability(0, 1) == 1, "wrapped per-link loss kept");
+        TestSupport.check(none.getDropProbability(1, 0) == 0, "other links still lossless");
+
+        LinkModel half = lossyNode.withDropProbability(0.5);
+        TestSupport.check(half.getDropProbability(0, 1) == 1, "certain loss stays certain");
+        TestSupport.check(half.getDropProbability(1, 0) == 0.5, "added loss applies elsewhere");
+
+        LinkModel twice = LinkModel.perfect().withDropProbability(0.5).withDropProbability(0.5);
+        TestSupport.check(twice.getDropProbability(2, 3) == 0.75, "independent losses combine");
+        TestSupport.check(LinkModel.perfect().getDropProbability(2, 3) == 0, "perfect links lose nothing");
+    }
+
+    private static void latenciesDelegate() {
+        LinkModel uniform = LinkModel.uniform(10, 20);
+        LinkModel lossy = uniform.withDropProbability(0.3);
+        Random a = new Random(5);
+        Random b = new Random(5);
+        for (int i = 0; i < 100; i++) {
+            TestSupport.check(uniform.sampleLatency(i, i + 1, a) == lossy.sampleLatency(i, i + 1, b),
+                    "same latency draw");
+        }
+    }
+
+    private static void perLinkDelaysAreStable() {
+        // With no jitter each link's latency is its fixed delay
+        LinkModel model = LinkModel.perLinkDelay(20, 200, 0, 7);
+        Random random = new Random(1);
+        double forward = model.sampleLatency(3, 4, random);
+        TestSupport.check(forward >= 20 && forward < 200, "delay within bounds: " + forward);
+        TestSupport.check(model.sampleLatency(3, 4, random) == forward, "same link, same delay");
+        TestSupport.check(model.sampleLatency(4, 3, random) != forward, "each direction has its own delay");
+        TestSupport.check(LinkModel.perLinkDelay(20, 200, 0, 8).sampleLatency(3, 4, random) != forward,
+                "delays follow the seed");
+    }
+}
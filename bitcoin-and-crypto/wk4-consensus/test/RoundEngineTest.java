@@ -0,0 +1,71 @@
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class RoundEngineTest {
+
+    public static void main(String[] args) {
+        TestSupport.run("every node ends the same however many threads run the rounds",
+                RoundEngineTest::sameResultAtAnyParallelism);
+        TestSupport.run("a failing node fails the round with its own exception",
+                RoundEngineTest::nodeFailuresPropagate);
+    }
+
+    private static void sameResultAtAnyParallelism() {
+        for (long seed = 1; seed <= 4; seed++) {
+            Node[][] sequential = new Node[1][];
+            Simulation.run(.2, .3, .05, 10, 150, seed, TestSupport.capturing(driver(1), sequential));
+            List<Set<Transaction>> expected = TestSupport.compliantSets(sequential[0]);
+
+            for (int parallelism : new int[] {2, 4, 8}) {
+                Node[][] parallel = new Node[1][];
+                Simulation.run(.2, .3, .05, 10, 150, seed, TestSupport.capturing(driver(parallelism), parallel));
+                TestSupport.check(expected.equals(TestSupport.compliantSets(parallel[0])),
+                        "seed " + seed + " with " + parallelism + " threads");
+            }
+        }
+    }
+
+    private static Simulation.RoundDriver driver(int parallelism) {
+        return (nodes, followGraph, validTxIds, numRounds, random) -> {
+            try (RoundEngine roundEngine = new RoundEngine(nodes, followGraph, validTxIds, parallelism)) {
+                for (int round = 0; round < numRounds; round++) {
+                    roundEngine.runRound();
+                }
+            }
+        };
+    }
+
+    private static void nodeFailuresPropagate() {
+        Node failing = new Node() {
+            public void setFollowees(boolean[] followees) {
+            }
+
+            public void setPendingTransaction(Set<Transaction> pendingTransactions) {
+            }
+
+            public Set<Transaction> sendToFollowers() {
+                throw new IllegalStateException("node failed");
+            }
+
+            public void receiveFromFollowees(Set<Candidate> candidates) {
+            }
+        };
+        Node[] nodes = {failing, failing, failing, failing};
+        FollowGraph followGraph = new FollowGraph(4, new int[] {0, 0, 0, 0, 0}, new int[0]);
+        Set<Integer> validTxIds = new HashSet<>(Collections.singleton(1));
+
+        try (RoundEngine roundEngine = new RoundEngine(nodes, followGraph, validTxIds, 2)) {
+            roundEngine.runRound();
+            TestSupport.check(false, "round should fail");
+        } catch (IllegalStateException e) {
+            // The fork-join pool may rethrow a copy of the exception, with the original as its cause
+            Throwable original = e;
+            while (original.getCause() != null && original.getCause().getClass() == e.getClass()) {
+                original = original.getCause();
+            }
+            TestSupport.check("node failed".equals(original.getMessage()), "unwrapped: " + e);
+        }
+    }
+}
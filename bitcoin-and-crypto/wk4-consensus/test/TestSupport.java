@@ -0,0 +1,42 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/** Checks and helpers shared by the tests */
+final class TestSupport {
+
+    private TestSupport() {
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    /** Runs {@code test}, reporting it under {@code name} */
+    static void run(String name, Runnable test) {
+        test.run();
+        System.out.println("ok   " + name);
+    }
+
+    /**
+     * @return a driver that runs {@code driver} and then keeps the nodes it ran in
+     *         {@code nodesOut[0]}, so a test can look at each node's final state
+     */
+    static Simulation.RoundDriver capturing(Simulation.RoundDriver driver, Node[][] nodesOut) {
+        return (nodes, followGraph, validTxIds, numRounds, random) -> {
+            driver.runRounds(nodes, followGraph, validTxIds, numRounds, random);
+            nodesOut[0] = nodes;
+        };
+    }
+
+    /** @return the consensus set of every compliant node of {@code nodes}, or null for malicious ones */
+    static List<Set<Transaction>> compliantSets(Node[] nodes) {
+        List<Set<Transaction>> sets = new ArrayList<>(nodes.length);
+        for (Node node : nodes) {
+            sets.add(node instanceof CompliantNode ? node.sendToFollowers() : null);
+        }
+        return sets;
+    }
+}
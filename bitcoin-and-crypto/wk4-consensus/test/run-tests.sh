@@ -0,0 +1,18 @@
+# usage: test/run-tests.sh [TestClass ...]
+# Compiles the sources together with the tests and runs the named test classes,
+# or every *Test class in test/ if none are named. MaliciousNodeEmpty and
+# MaliciousNodeInitial are alternative versions of MaliciousNode and are left out.
+cd "$(dirname "$0")/.." || exit 1
+classes=$(mktemp -d)
+trap 'rm -rf "$classes"' EXIT
+
+javac -d "$classes" $(ls *.java | grep -v '^MaliciousNode[A-Z]') test/*.java || exit 1
+
+tests=${*:-$(cd test && ls *Test.java | sed 's/\.java$//')}
+status=0
+for test in $tests
+do
+    echo "$test"
+    java -cp "$classes" "$test" || status=1
+done
+exit $status
@@ -1,12 +1,13 @@
 
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.ArrayList;
 
 public class Block {
 
     public static final double COINBASE = 25;
+    /** The most bytes of encoded transactions, excluding the coinbase, that a mined block takes */
+    public static final int MAX_TRANSACTION_BYTES = 1 << 20;
 
     private byte[] hash;
     private byte[] prevBlockHash;
@@ -45,29 +46,35 @@ public class Block {
     }
 
     public byte[] getRawBlock() {
-        ArrayList<Byte> rawBlock = new ArrayList<Byte>();
-        if (prevBlockHash != null)
-            for (int i = 0; i < prevBlockHash.length; i++)
-                rawBlock.add(prevBlockHash[i]);
+        int size = prevBlockHash == null ? 0 : prevBlockHash.length;
+        byte[][] rawTxs = new byte[txs.size()][];
         for (int i = 0; i < txs.size(); i++) {
-            byte[] rawTx = txs.get(i).getRawTx();
-            for (int j = 0; j < rawTx.length; j++) {
-                rawBlock.add(rawTx[j]);
-            }
+            rawTxs[i] = txs.get(i).getRawTx();
+            size += rawTxs[i].length;
+        }
+        byte[] raw = new byte[size];
+        int offset = 0;
+        if (prevBlockHash != null) {
+            System.arraycopy(prevBlockHash, 0, raw, 0, prevBlockHash.length);
+            offset = prevBlockHash.length;
+        }
+        for (byte[] rawTx : rawTxs) {
+            System.arraycopy(rawTx, 0, raw, offset, rawTx.length);
+            offset += rawTx.length;
         }
-        byte[] raw = new byte[rawBlock.size()];
-        for (int i = 0; i < raw.length; i++)
-            raw[i] = rawBlock.get(i);
         return raw;
     }
 
+    /**
+     * Hashes the same bytes as {@link #getRawBlock}, but streams each transaction's encoding into
+     * the digest instead of first assembling the whole block image.
+     */
     public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawBlock());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
-        }
+        MessageDigest md = Crypto.getHashDigest();
+        if (prevBlockHash != null)
+            md.update(prevBlockHash);
+        for (int i = 0; i < txs.size(); i++)
+            md.update(txs.get(i).getRawTx());
+        hash = md.digest();
     }
 }
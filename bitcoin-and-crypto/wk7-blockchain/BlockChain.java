@@ -2,17 +2,118 @@
 // You should not have all the blocks added to the block chain in memory 
 // as it would cause a memory overflow.
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.PublicKey;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static java.util.Objects.requireNonNull;
 
 public class BlockChain {
+    /**
+     * The net effect of a block on the UTXO set: every UTXO the block changed, with the output it
+     * mapped to before and after the block, or {@code null} where it was not in the pool. Setting
+     * each UTXO back to its output before the block disconnects it; setting each to its output after
+     * connects it again.
+     */
+    private static class BlockUndo {
+        private UTXO[] _utxos;
+        private Transaction.Output[] _before;
+        private Transaction.Output[] _after;
+
+        /** Records the changes made to {@code utxoPool} since {@code checkpoint} */
+        public BlockUndo(UTXOPool utxoPool, int checkpoint) {
+            List<UTXO> utxos = new ArrayList<>();
+            List<Transaction.Output> before = new ArrayList<>();
+            utxoPool.forEachChangeSince(checkpoint, (utxo, txOut) -> {
+                utxos.add(utxo);
+                before.add(txOut);
+            });
+
+            _utxos = utxos.toArray(new UTXO[0]);
+            _before = before.toArray(new Transaction.Output[0]);
+            _after = new Transaction.Output[_utxos.length];
+            for (int i = 0; i < _utxos.length; i++) {
+                _after[i] = utxoPool.getTxOutput(_utxos[i]);
+            }
+        }
+
+        public void disconnect(UTXOPool utxoPool) {
+            setAll(utxoPool, _before);
+        }
+
+        public void connect(UTXOPool utxoPool) {
+            setAll(utxoPool, _after);
+        }
+
+        public void connect(DiskUTXOStore utxoStore) {
+            for (int i = 0; i < _utxos.length; i++) {
+                if (_after[i] == null) {
+                    utxoStore.removeUTXO(_utxos[i]);
+                } else {
+                    utxoStore.addUTXO(_utxos[i], _after[i]);
+                }
+            }
+        }
+
+        private void setAll(UTXOPool utxoPool, Transaction.Output[] outputs) {
+            for (int i = 0; i < _utxos.length; i++) {
+                if (outputs[i] == null) {
+                    utxoPool.removeUTXO(_utxos[i]);
+                } else {
+                    utxoPool.addUTXO(_utxos[i], outputs[i]);
+                }
+            }
+        }
+    }
+
     private class BlockPayload {
         private Block _block;
         private int _blockHeight;
-        private UTXOPool _utxoPool;
+        private BlockPayload _parent;
+        private BlockUndo _undo;
+
+        public BlockPayload(Block block, int blockHeight, BlockPayload parent, BlockUndo undo) {
+            _block = block;
+            _blockHeight = blockHeight;
+            _parent = parent;
+            _undo = undo;
+        }
+
+        public Block getBlock() {
+            return _block;
+        }
+
+        public int getBlockHeight() {
+            return _blockHeight;
+        }
 
-        public BlockPayload(Block block, int blockHeight, UTXOPool utxoPool) {
+        /** @return the payload of the parent block, or null once no fork can reach below this block */
+        public BlockPayload getParent() {
+            return _parent;
+        }
+
+        public void releaseParent() {
+            _parent = null;
+        }
+
+        public BlockUndo getUndo() {
+            return _undo;
+        }
+    }
+
+    /**
+     * The max height block as last published, with the UTXO set on top of it. The pool is a frozen
+     * copy that nothing writes to, so any number of threads can copy it at once.
+     */
+    public static final class ChainTip {
+        private final Block _block;
+        private final int _blockHeight;
+        private final UTXOPool _utxoPool;
+
+        private ChainTip(Block block, int blockHeight, UTXOPool utxoPool) {
             _block = block;
             _blockHeight = blockHeight;
             _utxoPool = utxoPool;
@@ -26,80 +127,365 @@ public class BlockChain {
             return _blockHeight;
         }
 
+        /** @return a copy of the UTXO set on top of the block, as {@link #getMaxHeightUTXOPool} makes */
         public UTXOPool getUTXOPool() {
-            return _utxoPool;
+            return new UTXOPool(_utxoPool);
         }
     }
 
     public static final int CUT_OFF_AGE = 10;
+
+    /** The most hashes of blocks below the retained heights remembered to reject their children */
+    private static final int MAX_EXPIRED_BLOCK_HASHES = 1024;
+
+    /** Prunes every chain in the background, one height at a time */
+    private static final ExecutorService PRUNING_EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "block-chain-pruning");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private Map<ByteArrayWrapper, BlockPayload> _blockPayloadsByHash;
     private TreeMap<Integer, List<BlockPayload>> _blockPayloadsByHeight;
     private TransactionPool _transactionPool;
+    private BlockStore _blockStore;
+    private OrphanBlockPool _orphanBlockPool;
+    /**
+     * The most recently pruned blocks, and blocks rejected for being below the retained heights, so
+     * that blocks built on them are rejected rather than held as orphans. Older such blocks are only
+     * known through the block store, if there is one.
+     */
+    private Set<ByteArrayWrapper> _expiredBlockHashes;
+
+    /** The one UTXO set kept in full, as of the block of {@code _utxoPoolPayload} */
+    private UTXOPool _utxoPool;
+    private BlockPayload _utxoPoolPayload;
+
+    /**
+     * The store {@code _utxoPool} reads through, if any, holding the UTXO set as of the block of
+     * {@code _utxoStorePayload}: the newest block every retained block descends from, which no
+     * reorganization can disconnect. It is null while the store holds nothing yet.
+     */
+    private DiskUTXOStore _utxoStore;
+    private BlockPayload _utxoStorePayload;
+
+    /**
+     * Blocks are added by one writer at a time, holding the chain's lock; readers of the max height
+     * block only ever read this reference and never wait for the writer
+     */
+    private volatile ChainTip _tip;
+
+    private RetentionPolicy _retentionPolicy;
+    /** The encoded size of the retained blocks at each height, for the retention policy */
+    private TreeMap<Integer, Long> _blockBytesByHeight;
+    private boolean _pruningScheduled;
 
     /**
      * create an empty block chain with just a genesis block. Assume {@code genesisBlock} is a valid
      * block
      */
     public BlockChain(Block genesisBlock) {
+        this(genesisBlock, null, RetentionPolicy.byDepth(CUT_OFF_AGE));
+    }
+
+    /**
+     * create a block chain like {@link #BlockChain(Block, BlockStore)}, or with just a genesis block
+     * if {@code blockStore} is null, that keeps the blocks {@code retentionPolicy} asks for instead
+     * of those within {@link #CUT_OFF_AGE} of the max height
+     */
+    public BlockChain(Block genesisBlock, BlockStore blockStore, RetentionPolicy retentionPolicy) {
+        this(genesisBlock, blockStore, retentionPolicy, null);
+    }
+
+    /**
+     * create a block chain like {@link #BlockChain(Block, BlockStore, RetentionPolicy)} whose UTXO
+     * set is kept in {@code utxoStore} rather than on the heap, if it is not null. Only the changes
+     * of blocks a reorganization could still disconnect stay on the heap: the store is brought up to
+     * the newest block every retained block descends from, and flushed, as that block advances. If
+     * the store is not empty, the chain resumes from the block it was last flushed at, which
+     * {@code blockStore} must hold, and only the blocks stored above it are replayed.
+     */
+    public BlockChain(Block genesisBlock, BlockStore blockStore, RetentionPolicy retentionPolicy, DiskUTXOStore utxoStore) {
+        if (retentionPolicy.keepsPrunedBlocksOnDisk() && blockStore == null) {
+            throw new IllegalArgumentException("Retention policy should be given a block store to keep pruned blocks in.");
+        }
+
+        _retentionPolicy = retentionPolicy;
+        _blockBytesByHeight = new TreeMap<>();
         _transactionPool = new TransactionPool();
+        _orphanBlockPool = new OrphanBlockPool();
+        _expiredBlockHashes = Collections.newSetFromMap(new LinkedHashMap<ByteArrayWrapper, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, Boolean> eldest) {
+                return size() > MAX_EXPIRED_BLOCK_HASHES;
+            }
+        });
         _blockPayloadsByHash = new HashMap<>();
         _blockPayloadsByHeight = new TreeMap<>();
-
-        BlockPayload blockPayload
-                = requireNonNull(createBlockPayload(genesisBlock, 1, new UTXOPool()),
+        _utxoStore = utxoStore;
+        _utxoPool = utxoStore == null ? new UTXOPool() : new UTXOPool(utxoStore);
+
+        BlockPayload blockPayload;
+        if (utxoStore != null && utxoStore.getHeight() > 0) {
+            blockPayload = resumeFromUTXOStore(blockStore, utxoStore);
+            _utxoStorePayload = blockPayload;
+        } else {
+            blockPayload = requireNonNull(connectBlock(genesisBlock, 1, null),
                     "Block payload should have all valid transactions, so creation should not be non-null.");
-        addCoinbaseToUTXOPool(genesisBlock, blockPayload.getUTXOPool());
+            _utxoPool.commit();
+        }
+        _utxoPoolPayload = blockPayload;
+        startFrom(blockPayload);
+
+        if (blockStore != null) {
+            restoreFromBlockStore(genesisBlock, blockStore, blockPayload.getBlockHeight());
+        }
+    }
+
+    /**
+     * create a block chain that records every accepted block in {@code blockStore}. If the store is
+     * empty, {@code genesisBlock} is written to it; otherwise it must already hold {@code
+     * genesisBlock}, and the blocks stored above it are replayed to restore the chain.
+     */
+    public BlockChain(Block genesisBlock, BlockStore blockStore) {
+        this(genesisBlock, requireNonNull(blockStore), RetentionPolicy.byDepth(CUT_OFF_AGE));
+    }
+
+    /**
+     * @return the payload of the block {@code utxoStore} was last flushed at, read from
+     *         {@code blockStore}. Nothing below it can be disconnected, so it has no parent or undo
+     *         data.
+     */
+    private BlockPayload resumeFromUTXOStore(BlockStore blockStore, DiskUTXOStore utxoStore) {
+        byte[] blockHash = utxoStore.getBlockHash();
+        Block block = blockStore == null ? null : blockStore.getBlock(blockHash);
+        if (block == null || blockStore.getHeight(blockHash) != utxoStore.getHeight()) {
+            throw new IllegalArgumentException("Block store should hold the block the UTXO store was flushed at.");
+        }
+        return new BlockPayload(block, utxoStore.getHeight(), null, null);
+    }
+
+    /** Makes {@code blockPayload}, which the UTXO set is as of, the one block of the chain */
+    private void startFrom(BlockPayload blockPayload) {
+        _blockPayloadsByHash.clear();
+        _blockPayloadsByHeight.clear();
+        _blockBytesByHeight.clear();
 
+        Block block = blockPayload.getBlock();
         _blockPayloadsByHash.put(
-                new ByteArrayWrapper(genesisBlock.getHash()),
+                new ByteArrayWrapper(block.getHash()),
                 blockPayload);
 
         List<BlockPayload> maxHeightBlockPayloads = new ArrayList<>();
         maxHeightBlockPayloads.add(blockPayload);
-        _blockPayloadsByHeight.put(1, maxHeightBlockPayloads);
+        _blockPayloadsByHeight.put(blockPayload.getBlockHeight(), maxHeightBlockPayloads);
+        _blockBytesByHeight.put(blockPayload.getBlockHeight(), (long) block.getRawBlock().length);
+        publishTip();
     }
 
-    private BlockPayload createBlockPayload(Block block, int blockHeight, UTXOPool utxoPool) {
-        TxHandler txHandler = new TxHandler(new UTXOPool(utxoPool));
+    /**
+     * Restores the blocks {@code blockStore} holds above {@code fromHeight} that extend the chain.
+     * Only the blocks the retention policy retains are replayed and validated; those below are
+     * connected without validating them again, as every stored block was valid when it was stored.
+     */
+    private void restoreFromBlockStore(Block genesisBlock, BlockStore blockStore, int fromHeight) {
+        if (blockStore.getMaxHeight() > 0 && blockStore.getHeight(genesisBlock.getHash()) != 1) {
+            throw new IllegalArgumentException("Block store should hold the given genesis block at height 1.");
+        }
+
+        appendToBlockStore(blockStore, genesisBlock, 1);
+        fromHeight = connectStoredBlocksBelowRetainedHeights(blockStore, fromHeight);
+
+        // Nothing is handed to the pruning thread before the chain is built; as if pruning were
+        // already scheduled, the replayed blocks leave it to the one synchronous prune below
+        _pruningScheduled = true;
+        for (int height = fromHeight + 1; height <= blockStore.getMaxHeight(); height++) {
+            for (Block block : blockStore.getBlocksAtHeight(height)) {
+                // Forks off blocks below the one resumed from can never be added again
+                if (_blockPayloadsByHash.containsKey(new ByteArrayWrapper(block.getPrevBlockHash()))) {
+                    addBlock(block);
+                }
+            }
+        }
+        _blockStore = blockStore;
+
+        while (pruneLowestHeight()) {
+        }
+        _pruningScheduled = false;
+    }
+
+    /**
+     * Connects the stored blocks above {@code fromHeight} on the way to the first block stored at the
+     * max height, up to the newest one every stored block at the lowest retained height descends
+     * from, and starts the chain over from that block. Each block is written to the UTXO store, if
+     * any, as it is connected, so no more than one block's changes are held on the heap at a time.
+     *
+     * @return the height of the block the chain now starts from
+     */
+    private int connectStoredBlocksBelowRetainedHeights(BlockStore blockStore, int fromHeight) {
+        int maxHeight = blockStore.getMaxHeight();
+        if (maxHeight <= fromHeight) {
+            return fromHeight;
+        }
+
+        // Walk down to the block the chain starts from, keeping only the hashes and sizes on the way
+        byte[] pathHashes = new byte[(maxHeight - fromHeight) * BlockStore.HASH_LENGTH];
+        TreeMap<Integer, Long> pathBytesByHeight = new TreeMap<>();
+        Block block = blockStore.getBlocksAtHeight(maxHeight).get(0);
+        for (int height = maxHeight; height > fromHeight; height--) {
+            System.arraycopy(block.getHash(), 0, pathHashes, (height - fromHeight - 1) * BlockStore.HASH_LENGTH,
+                    BlockStore.HASH_LENGTH);
+            pathBytesByHeight.put(height, (long) block.getRawBlock().length);
+            block = blockStore.getBlock(block.getPrevBlockHash());
+        }
+        if (block == null || !Arrays.equals(block.getHash(), _utxoPoolPayload.getBlock().getHash())) {
+            return fromHeight;
+        }
+
+        // Forks at the lowest retained height may branch off below it
+        int rootHeight = _retentionPolicy.getLowestRetainedHeight(maxHeight, pathBytesByHeight);
+        Set<ByteArrayWrapper> ancestors = new HashSet<>();
+        if (rootHeight > fromHeight) {
+            for (Block stored : blockStore.getBlocksAtHeight(rootHeight)) {
+                ancestors.add(new ByteArrayWrapper(stored.getHash()));
+            }
+        }
+        while (ancestors.size() > 1 && rootHeight > fromHeight) {
+            Set<ByteArrayWrapper> parents = new HashSet<>();
+            for (Block stored : blockStore.getBlocksAtHeight(rootHeight)) {
+                if (ancestors.contains(new ByteArrayWrapper(stored.getHash()))) {
+                    parents.add(new ByteArrayWrapper(stored.getPrevBlockHash()));
+                }
+            }
+            ancestors = parents;
+            rootHeight--;
+        }
+        if (rootHeight <= fromHeight) {
+            return fromHeight;
+        }
+
+        if (_utxoStore != null) {
+            moveUTXOStoreTo(_utxoPoolPayload);
+        }
+        for (int height = fromHeight + 1; height <= rootHeight; height++) {
+            byte[] hash = Arrays.copyOfRange(pathHashes, (height - fromHeight - 1) * BlockStore.HASH_LENGTH,
+                    (height - fromHeight) * BlockStore.HASH_LENGTH);
+            BlockPayload blockPayload = connectStoredBlock(blockStore.getBlock(hash), height, _utxoPoolPayload);
+            _utxoPoolPayload = blockPayload;
+            if (_utxoStore != null) {
+                moveUTXOStoreTo(blockPayload);
+            } else {
+                _utxoPool.commit();
+            }
+            blockPayload.releaseParent();
+        }
+
+        startFrom(_utxoPoolPayload);
+        return rootHeight;
+    }
+
+    /**
+     * Applies {@code block}, which was valid on top of its parent block when it was stored, to the
+     * UTXO set, which must be as of that parent, without validating it again, and records the
+     * changes it made.
+     */
+    private BlockPayload connectStoredBlock(Block block, int blockHeight, BlockPayload parent) {
+        int checkpoint = _utxoPool.checkpoint();
+        for (Transaction tx : block.getTransactions()) {
+            for (Transaction.Input input : tx.getInputs()) {
+                _utxoPool.removeUTXO(new UTXO(input.prevTxHash, input.outputIndex));
+            }
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                _utxoPool.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+            }
+        }
+        addCoinbaseToUTXOPool(block, _utxoPool);
+
+        return new BlockPayload(block, blockHeight, parent, new BlockUndo(_utxoPool, checkpoint));
+    }
+
+    /**
+     * Applies {@code block} to the UTXO set, which must be as of its parent block, and records the
+     * changes it made.
+     *
+     * @return the payload of {@code block}, or null if some of its transactions are not valid, in
+     *         which case the UTXO set is left as it was
+     */
+    private BlockPayload connectBlock(Block block, int blockHeight, BlockPayload parent) {
+        int checkpoint = _utxoPool.checkpoint();
+        TxHandler txHandler = TxHandler.applyingTo(_utxoPool);
+        txHandler.trustSignaturesVerifiedBy(_transactionPool);
         Transaction[] blockTransactions = block.getTransactions().toArray(new Transaction[0]);
         Transaction[] validTransactions = txHandler.handleTxs(blockTransactions);
 
         if (validTransactions.length != blockTransactions.length) {
+            _utxoPool.rollback(checkpoint);
             return null;
         }
 
-        UTXOPool blockUTXOPool = txHandler.getUTXOPool();
+        addCoinbaseToUTXOPool(block, _utxoPool);
 
-        return new BlockPayload(block, blockHeight, blockUTXOPool);
+        return new BlockPayload(block, blockHeight, parent, new BlockUndo(_utxoPool, checkpoint));
     }
 
-    private BlockPayload getMaxHeightPayload() {
-        Map.Entry<Integer, List<BlockPayload>> highestBlockPayloadsEntry
-                = _blockPayloadsByHeight.lastEntry();
-
-        if (highestBlockPayloadsEntry == null) {
-            throw new IllegalArgumentException(
-                    "Last Entry function should not return null since map should be non-empty.");
+    /**
+     * Brings the UTXO set to the state as of {@code target}, disconnecting blocks back to the common
+     * ancestor of both and connecting those from there up to {@code target}
+     */
+    private void moveUTXOPoolTo(BlockPayload target) {
+        List<BlockPayload> disconnectedPayloads = new ArrayList<>();
+        List<BlockPayload> connectedPayloads = new ArrayList<>();
+        BlockPayload from = _utxoPoolPayload;
+        BlockPayload to = target;
+
+        while (from != to) {
+            if (from == null || to == null) {
+                throw new IllegalStateException(
+                        "Every retained block should share an ancestor with the max height block.");
+            }
+            if (from.getBlockHeight() >= to.getBlockHeight()) {
+                disconnectedPayloads.add(from);
+                from = from.getParent();
+            } else {
+                connectedPayloads.add(to);
+                to = to.getParent();
+            }
         }
 
-        List<BlockPayload> highestBlocks = highestBlockPayloadsEntry.getValue();
-
-        if (highestBlocks.isEmpty()) {
-            throw new IllegalArgumentException(
-                    "Highest blocks list should be non-empty there should always be a block at the max height.");
+        disconnectedPayloads.forEach(blockPayload -> blockPayload.getUndo().disconnect(_utxoPool));
+        for (int i = connectedPayloads.size() - 1; i >= 0; i--) {
+            connectedPayloads.get(i).getUndo().connect(_utxoPool);
         }
-
-        return highestBlocks.get(0);
+        _utxoPoolPayload = target;
     }
 
     /** Get the maximum height block */
     public Block getMaxHeightBlock() {
-        return getMaxHeightPayload().getBlock();
+        return _tip._block;
+    }
+
+    /** Get the height of the maximum height block */
+    public int getMaxHeight() {
+        return _tip._blockHeight;
     }
 
-    /** Get the UTXOPool for mining a new block on top of max height block */
+    /**
+     * Get the UTXOPool for mining a new block on top of max height block. The pool is a copy, which
+     * costs time proportional to the changes since the previous copy rather than to its size. On a
+     * chain with a UTXO store, the copy reads through the store, so it only stays as of its block
+     * until the store moves past that block; the blocks written to the store above it then show
+     * through.
+     */
     public UTXOPool getMaxHeightUTXOPool() {
-        return getMaxHeightPayload().getUTXOPool();
+        return _tip.getUTXOPool();
+    }
+
+    /**
+     * Get the maximum height block together with the UTXO set on top of it, read at once, so that
+     * neither can be from an earlier tip than the other
+     */
+    public ChainTip getMaxHeightTip() {
+        return _tip;
     }
 
     /** Get the transaction pool to mine a new block */
@@ -107,9 +493,31 @@ public class BlockChain {
         return _transactionPool;
     }
 
+    /** @return the blocks held until their parent arrives */
+    OrphanBlockPool getOrphanBlockPool() {
+        return _orphanBlockPool;
+    }
+
+    /**
+     * @return the block with hash {@code hash} if it is retained, or was stored in the chain's
+     *         {@link BlockStore}; null otherwise
+     */
+    public Block getBlock(byte[] hash) {
+        BlockStore blockStore;
+        synchronized (this) {
+            BlockPayload blockPayload = _blockPayloadsByHash.get(new ByteArrayWrapper(hash));
+            if (blockPayload != null) {
+                return blockPayload.getBlock();
+            }
+            blockStore = _blockStore;
+        }
+        return blockStore == null ? null : blockStore.getBlock(hash);
+    }
+
     /**
      * Add {@code block} to the block chain if it is valid. For validity, all transactions should be
-     * valid and block should be at {@code height > (maxHeight - CUT_OFF_AGE)}.
+     * valid and block should be at {@code height > (maxHeight - CUT_OFF_AGE)}, or more generally on
+     * top of a block at a height the retention policy still retains.
      * 
      * <p>
      * For example, you can try creating a new block over the genesis block (block height 2) if the
@@ -117,9 +525,47 @@ public class BlockChain {
      * CUT_OFF_AGE + 1}. As soon as {@code height > CUT_OFF_AGE + 1}, you cannot create a new block
      * at height 2.
      * 
+     * <p>
+     * A block whose parent is not known is held as an orphan instead, and added as soon as its
+     * parent is, together with any orphans waiting on it in turn. A block whose parent is known to
+     * be below the retained heights is rejected outright, as are the orphans waiting on a rejected
+     * block.
+     * 
      * @return true if block is successfully added
      */
-    public boolean addBlock(Block block) {
+    public synchronized boolean addBlock(Block block) {
+        if (!addBlockOnParent(block)) {
+            if (block.getHash() != null && !_orphanBlockPool.contains(block.getHash())) {
+                discardOrphansOf(block);
+            }
+            return false;
+        }
+
+        ArrayDeque<Block> connectableOrphans = new ArrayDeque<>(_orphanBlockPool.removeChildren(block.getHash()));
+        while (!connectableOrphans.isEmpty()) {
+            Block orphan = connectableOrphans.poll();
+            if (addBlockOnParent(orphan)) {
+                connectableOrphans.addAll(_orphanBlockPool.removeChildren(orphan.getHash()));
+            } else {
+                discardOrphansOf(orphan);
+            }
+        }
+
+        if (_utxoPoolPayload.getBlock() != _tip._block) {
+            publishTip();
+        }
+        return true;
+    }
+
+    /** Publishes the block the UTXO set is on, which is the max height block, to readers */
+    private void publishTip() {
+        _tip = new ChainTip(
+                _utxoPoolPayload.getBlock(),
+                _utxoPoolPayload.getBlockHeight(),
+                new UTXOPool(_utxoPool));
+    }
+
+    private boolean addBlockOnParent(Block block) {
         byte[] previousHash = block.getPrevBlockHash();
 
         if (previousHash == null) {
@@ -128,8 +574,14 @@ public class BlockChain {
 
         BlockPayload previousBlockPayload = _blockPayloadsByHash.get(new ByteArrayWrapper(previousHash));
 
-        // Return false if there is not previous block payload aka attempting to add another genesis block
+        // Without a previous block payload, wait for the parent to arrive, unless it is known to be
+        // below the retained heights and so can never be built on
         if (previousBlockPayload == null) {
+            if (isExpired(previousHash)) {
+                expire(block);
+            } else {
+                _orphanBlockPool.add(block);
+            }
             return false;
         }
 
@@ -143,23 +595,34 @@ public class BlockChain {
         int previousBlockPayloadHeight = previousBlockPayload.getBlockHeight();
         int newBlockPayloadHeight = previousBlockPayloadHeight + 1;
 
-        // If new block payload height is below the cutoff height, reject the block
-        if (newBlockPayloadHeight <= (currentMaxHeight - CUT_OFF_AGE)) {
+        // If new block payload height is below the cutoff height, reject the block. Pruning may lag
+        // behind, so the parent being present does not mean it is still retained.
+        if (previousBlockPayloadHeight < getLowestRetainedHeight()) {
+            expire(block);
             return false;
         }
 
-        BlockPayload newBlockPayload = createBlockPayload(
-                block,
-                newBlockPayloadHeight,
-                previousBlockPayload.getUTXOPool());
+        // Validate the block against the UTXO set as of its parent, which for a block on another
+        // fork means rolling back to the common ancestor and replaying that fork first. The UTXO set
+        // stays on the new block only if the new block becomes the max height block.
+        BlockPayload maxHeightPayload = _utxoPoolPayload;
+        int checkpoint = _utxoPool.checkpoint();
+        moveUTXOPoolTo(previousBlockPayload);
+        BlockPayload newBlockPayload = connectBlock(block, newBlockPayloadHeight, previousBlockPayload);
+
+        if (newBlockPayload != null && newBlockPayloadHeight > currentMaxHeight) {
+            _utxoPoolPayload = newBlockPayload;
+        } else {
+            _utxoPool.rollback(checkpoint);
+            _utxoPoolPayload = maxHeightPayload;
+        }
+        _utxoPool.commit();
 
         // If the transactions are not valid within the block, then reject the block
         if (newBlockPayload == null) {
             return false;
         }
 
-        addCoinbaseToUTXOPool(block, newBlockPayload.getUTXOPool());
-
         // Adding the block payload to storage
         _blockPayloadsByHash.put(
                 new ByteArrayWrapper(block.getHash()),
@@ -167,30 +630,171 @@ public class BlockChain {
         List<BlockPayload> newBlockPayloadHeightBlockPayloads = _blockPayloadsByHeight
                 .computeIfAbsent(newBlockPayloadHeight, payloadHeight -> new ArrayList<>());
         newBlockPayloadHeightBlockPayloads.add(newBlockPayload);
-        block.getTransactions().forEach(transaction -> _transactionPool.removeTransaction(transaction.getHash()));
+        if (_blockStore != null) {
+            appendToBlockStore(_blockStore, block, newBlockPayloadHeight);
+        }
+        _transactionPool.removeTransactions(block.getTransactions());
+
+        _blockBytesByHeight.merge(newBlockPayloadHeight, (long) block.getRawBlock().length, Long::sum);
+        schedulePruning();
+
+        return true;
+    }
+
+    /** @return true if the block with hash {@code hash} is known to be below the retained heights */
+    private boolean isExpired(byte[] hash) {
+        if (_expiredBlockHashes.contains(new ByteArrayWrapper(hash))) {
+            return true;
+        }
+        int storedHeight = _blockStore == null ? -1 : _blockStore.getHeight(hash);
+        return storedHeight > 0 && storedHeight < getLowestRetainedHeight();
+    }
+
+    private void expire(Block block) {
+        if (block.getHash() != null) {
+            _expiredBlockHashes.add(new ByteArrayWrapper(block.getHash()));
+        }
+    }
+
+    /** Drops the orphans waiting on {@code block}, and those waiting on them, as none can be added */
+    private void discardOrphansOf(Block block) {
+        ArrayDeque<Block> discarded = new ArrayDeque<>();
+        discarded.add(block);
+        while (!discarded.isEmpty()) {
+            discarded.addAll(_orphanBlockPool.removeChildren(discarded.poll().getHash()));
+        }
+    }
 
-        // Handle case where new block increases max height; remove block payloads that are too old
-        if (newBlockPayloadHeight > currentMaxHeight) {
-            int unavailablePreviousHeight = newBlockPayloadHeight - CUT_OFF_AGE - 1;
-            List<BlockPayload> removableBlockPayloads = _blockPayloadsByHeight.get(unavailablePreviousHeight);
+    private int getLowestRetainedHeight() {
+        return _retentionPolicy.getLowestRetainedHeight(
+                _blockPayloadsByHeight.lastKey(),
+                Collections.unmodifiableNavigableMap(_blockBytesByHeight));
+    }
 
-            if (removableBlockPayloads != null) {
-                // Remove blocks that are keyed by hash in storage
-                removableBlockPayloads.stream()
-                        .map(BlockPayload::getBlock)
-                        .map(Block::getHash)
-                        .filter(Objects::nonNull)
-                        .forEach(_blockPayloadsByHash::remove);
+    /** Hands the pruning of heights the retention policy no longer retains to the background */
+    private void schedulePruning() {
+        if (!_pruningScheduled && _blockPayloadsByHeight.firstKey() < getLowestRetainedHeight()) {
+            _pruningScheduled = true;
+            PRUNING_EXECUTOR.execute(this::prune);
+        }
+    }
 
+    /**
+     * Prunes one height at a time, letting blocks be added in between, until every remaining height
+     * is retained
+     */
+    private void prune() {
+        while (true) {
+            synchronized (this) {
+                boolean pruned = false;
+                try {
+                    pruned = pruneLowestHeight();
+                } finally {
+                    if (!pruned) {
+                        _pruningScheduled = false;
+                    }
+                }
+                if (!pruned) {
+                    return;
+                }
             }
+        }
+    }
 
-            // Remove blocks that are at a height that is no longer available
-            _blockPayloadsByHeight.remove(unavailablePreviousHeight);
+    /** @return true if the lowest height was no longer retained and its blocks have been removed */
+    private boolean pruneLowestHeight() {
+        int unavailablePreviousHeight = _blockPayloadsByHeight.firstKey();
+        if (unavailablePreviousHeight >= getLowestRetainedHeight()) {
+            return false;
         }
 
+        // Remove blocks that are keyed by hash in storage, remembering them as expired
+        _blockPayloadsByHeight.get(unavailablePreviousHeight).stream()
+                .map(BlockPayload::getBlock)
+                .map(Block::getHash)
+                .filter(Objects::nonNull)
+                .map(ByteArrayWrapper::new)
+                .forEach(hash -> {
+                    _blockPayloadsByHash.remove(hash);
+                    _expiredBlockHashes.add(hash);
+                });
+
+        // Remove blocks that are at a height that is no longer available
+        _blockPayloadsByHeight.remove(unavailablePreviousHeight);
+        _blockBytesByHeight.remove(unavailablePreviousHeight);
+        releaseUnreachableAncestors();
         return true;
     }
 
+    /**
+     * Forks can only be extended from retained blocks, so blocks older than the common ancestor of
+     * all retained blocks are never disconnected again. Move the UTXO store, if any, up to that
+     * ancestor, and drop the link to the blocks below it, so that they can be reclaimed.
+     */
+    private void releaseUnreachableAncestors() {
+        // Every retained block descends from one of those at the lowest retained height
+        Set<BlockPayload> ancestors = new HashSet<>(_blockPayloadsByHeight.firstEntry().getValue());
+
+        while (ancestors.size() > 1) {
+            Set<BlockPayload> parents = new HashSet<>();
+            for (BlockPayload ancestor : ancestors) {
+                if (ancestor.getParent() == null) {
+                    return;
+                }
+                parents.add(ancestor.getParent());
+            }
+            ancestors = parents;
+        }
+
+        for (BlockPayload commonAncestor : ancestors) {
+            if (_utxoStore != null) {
+                moveUTXOStoreTo(commonAncestor);
+            }
+            commonAncestor.releaseParent();
+        }
+    }
+
+    /**
+     * Writes the changes of the blocks from the UTXO store's block up to {@code target}, which no
+     * reorganization can disconnect, to the store and flushes it, one block at a time so that a
+     * crash leaves the store at one of them. The UTXO set is then rebuilt on the store with just the
+     * changes of the blocks above {@code target}. Copies of the UTXO set made on {@code target} or
+     * above keep their own record of every UTXO the written blocks changed, so the store changing
+     * underneath does not show through them.
+     */
+    private void moveUTXOStoreTo(BlockPayload target) {
+        List<BlockPayload> flushedPayloads = new ArrayList<>();
+        for (BlockPayload blockPayload = target; blockPayload != _utxoStorePayload; blockPayload = blockPayload.getParent()) {
+            if (blockPayload == null) {
+                throw new IllegalStateException("The UTXO store's block should be an ancestor of every retained block.");
+            }
+            flushedPayloads.add(blockPayload);
+        }
+        if (flushedPayloads.isEmpty()) {
+            return;
+        }
+
+        try {
+            for (int i = flushedPayloads.size() - 1; i >= 0; i--) {
+                BlockPayload blockPayload = flushedPayloads.get(i);
+                blockPayload.getUndo().connect(_utxoStore);
+                _utxoStore.flush(blockPayload.getBlock().getHash(), blockPayload.getBlockHeight());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        _utxoStorePayload = target;
+
+        List<BlockPayload> unflushedPayloads = new ArrayList<>();
+        for (BlockPayload blockPayload = _utxoPoolPayload; blockPayload != target; blockPayload = blockPayload.getParent()) {
+            unflushedPayloads.add(blockPayload);
+        }
+        _utxoPool = new UTXOPool(_utxoStore);
+        for (int i = unflushedPayloads.size() - 1; i >= 0; i--) {
+            unflushedPayloads.get(i).getUndo().connect(_utxoPool);
+        }
+    }
+
     private void addCoinbaseToUTXOPool(Block block, UTXOPool utxoPool) {
         Transaction coinbaseTransaction = block.getCoinbase();
 
@@ -203,8 +807,56 @@ public class BlockChain {
         }
     }
 
-    /** Add a transaction to the transaction pool */
+    private static void appendToBlockStore(BlockStore blockStore, Block block, int blockHeight) {
+        try {
+            blockStore.append(block, blockHeight);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Add a transaction to the transaction pool if it is valid on top of the max height block, its
+     * inputs claiming outputs of the max height UTXO pool or of pooled transactions. It is ranked by
+     * the fee it pays, and its verified signatures are not checked again while it stays pooled.
+     */
     public void addTransaction(Transaction tx) {
-        _transactionPool.addTransaction(tx);
+        if (tx.getHash() == null) {
+            return;
+        }
+
+        // A copy-on-write view of the tip, so that the outputs of pooled parents can be claimed too
+        UTXOPool claimablePool = new UTXOPool(_tip._utxoPool);
+        for (Transaction.Input input : tx.getInputs()) {
+            if (input.prevTxHash == null) {
+                return;
+            }
+            UTXO claimedUTXO = new UTXO(input.prevTxHash, input.outputIndex);
+            if (claimablePool.contains(claimedUTXO)) {
+                continue;
+            }
+            Transaction parent = _transactionPool.getTransaction(input.prevTxHash);
+            if (parent != null && input.outputIndex >= 0 && input.outputIndex < parent.numOutputs()) {
+                claimablePool.addUTXO(claimedUTXO, parent.getOutput(input.outputIndex));
+            }
+        }
+
+        if (!TxHandler.applyingTo(claimablePool).isValidTx(tx)) {
+            return;
+        }
+
+        PublicKey[] verifiedAddresses = new PublicKey[tx.numInputs()];
+        double fee = 0;
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input input = tx.getInput(i);
+            Transaction.Output claimedOutput = claimablePool.getTxOutput(new UTXO(input.prevTxHash, input.outputIndex));
+            verifiedAddresses[i] = claimedOutput.address;
+            fee += claimedOutput.value;
+        }
+        for (Transaction.Output output : tx.getOutputs()) {
+            fee -= output.value;
+        }
+
+        _transactionPool.addTransaction(tx, fee, verifiedAddresses);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,177 @@
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The compact binary encoding of blocks, transactions and outputs used by the on-disk stores.
+ * Byte arrays are written as an int length followed by the bytes, with a length of -1 for
+ * {@code null}; a block's coinbase is reduced to its address, since its value is always
+ * {@link Block#COINBASE}.
+ */
+final class BlockCodec {
+
+    private static final ThreadLocal<KeyFactory> KEY_FACTORIES = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyFactory.getInstance("RSA");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("RSA keys should be supported by every Java platform.", e);
+        }
+    });
+
+    /** Decoded outputs need an enclosing transaction, which carries no meaning for them */
+    private static final Transaction OUTPUT_OWNER = new Transaction();
+
+    private BlockCodec() {
+    }
+
+    static ByteBuffer encodeBlock(Block block) {
+        List<byte[]> coinbaseAddress = encodeAddress(block.getCoinbase().getOutput(0).address);
+        int size = sizeOf(block.getPrevBlockHash()) + sizeOf(coinbaseAddress) + Integer.BYTES;
+        for (Transaction tx : block.getTransactions()) {
+            size += sizeOf(tx);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        putBytes(buffer, block.getPrevBlockHash());
+        putAll(buffer, coinbaseAddress);
+        buffer.putInt(block.getTransactions().size());
+        for (Transaction tx : block.getTransactions()) {
+            putTransaction(buffer, tx);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /** Decodes a block written by {@link #encodeBlock} and finalizes it, recomputing its hash */
+    static Block decodeBlock(ByteBuffer buffer) {
+        byte[] prevBlockHash = getBytes(buffer);
+        Block block = new Block(prevBlockHash, decodeAddress(buffer));
+        int txCount = buffer.getInt();
+        for (int i = 0; i < txCount; i++) {
+            block.addTransaction(getTransaction(buffer));
+        }
+        block.finalize();
+        return block;
+    }
+
+    static ByteBuffer encodeOutput(Transaction.Output txOut) {
+        List<byte[]> address = encodeAddress(txOut.address);
+        ByteBuffer buffer = ByteBuffer.allocate(Double.BYTES + sizeOf(address));
+        buffer.putDouble(txOut.value);
+        putAll(buffer, address);
+        buffer.flip();
+        return buffer;
+    }
+
+    static Transaction.Output decodeOutput(ByteBuffer buffer) {
+        double value = buffer.getDouble();
+        return OUTPUT_OWNER.new Output(value, decodeAddress(buffer));
+    }
+
+    private static int sizeOf(Transaction tx) {
+        int size = sizeOf(tx.getHash()) + 2 * Integer.BYTES;
+        for (Transaction.Input in : tx.getInputs()) {
+            size += sizeOf(in.prevTxHash) + Integer.BYTES + sizeOf(in.signature);
+        }
+        for (Transaction.Output op : tx.getOutputs()) {
+            size += Double.BYTES + sizeOf(encodeAddress(op.address));
+        }
+        return size;
+    }
+
+    private static void putTransaction(ByteBuffer buffer, Transaction tx) {
+        putBytes(buffer, tx.getHash());
+        buffer.putInt(tx.numInputs());
+        for (Transaction.Input in : tx.getInputs()) {
+            putBytes(buffer, in.prevTxHash);
+            buffer.putInt(in.outputIndex);
+            putBytes(buffer, in.signature);
+        }
+        buffer.putInt(tx.numOutputs());
+        for (Transaction.Output op : tx.getOutputs()) {
+            buffer.putDouble(op.value);
+            putAll(buffer, encodeAddress(op.address));
+        }
+    }
+
+    private static Transaction getTransaction(ByteBuffer buffer) {
+        Transaction tx = new Transaction();
+        byte[] hash = getBytes(buffer);
+        int inputCount = buffer.getInt();
+        List<byte[]> signatures = new ArrayList<>(inputCount);
+        for (int i = 0; i < inputCount; i++) {
+            tx.addInput(getBytes(buffer), buffer.getInt());
+            signatures.add(getBytes(buffer));
+        }
+        int outputCount = buffer.getInt();
+        for (int i = 0; i < outputCount; i++) {
+            double value = buffer.getDouble();
+            tx.addOutput(value, decodeAddress(buffer));
+        }
+        for (int i = 0; i < inputCount; i++) {
+            tx.addSignature(signatures.get(i), i);
+        }
+        tx.setHash(hash);
+        return tx;
+    }
+
+    private static List<byte[]> encodeAddress(PublicKey address) {
+        List<byte[]> encoded = new ArrayList<>(2);
+        encoded.add(((RSAPublicKey) address).getPublicExponent().toByteArray());
+        encoded.add(((RSAPublicKey) address).getModulus().toByteArray());
+        return encoded;
+    }
+
+    private static PublicKey decodeAddress(ByteBuffer buffer) {
+        BigInteger exponent = new BigInteger(getBytes(buffer));
+        BigInteger modulus = new BigInteger(getBytes(buffer));
+        try {
+            return KEY_FACTORIES.get().generatePublic(new RSAPublicKeySpec(modulus, exponent));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Encoded address is not a valid RSA public key.", e);
+        }
+    }
+
+    private static int sizeOf(byte[] bytes) {
+        return Integer.BYTES + (bytes == null ? 0 : bytes.length);
+    }
+
+    private static int sizeOf(List<byte[]> parts) {
+        int size = 0;
+        for (byte[] part : parts) {
+            size += sizeOf(part);
+        }
+        return size;
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private static void putAll(ByteBuffer buffer, List<byte[]> parts) {
+        for (byte[] part : parts) {
+            putBytes(buffer, part);
+        }
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
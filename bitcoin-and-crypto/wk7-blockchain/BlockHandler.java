@@ -1,5 +1,7 @@
 
 import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Iterator;
 
 public class BlockHandler {
     private BlockChain blockChain;
@@ -20,15 +22,24 @@ public class BlockHandler {
         return blockChain.addBlock(block);
     }
 
-    /** create a new {@code block} over the max height {@code block} */
+    /**
+     * create a new {@code block} over the max height {@code block}, from the pooled transactions
+     * paying the highest fee rates that fit in {@link Block#MAX_TRANSACTION_BYTES}
+     */
     public Block createBlock(PublicKey myAddress) {
-        Block parent = blockChain.getMaxHeightBlock();
-        byte[] parentHash = parent.getHash();
+        BlockChain.ChainTip tip = blockChain.getMaxHeightTip();
+        byte[] parentHash = tip.getBlock().getHash();
         Block current = new Block(parentHash, myAddress);
-        UTXOPool uPool = blockChain.getMaxHeightUTXOPool();
+        UTXOPool uPool = tip.getUTXOPool();
         TransactionPool txPool = blockChain.getTransactionPool();
-        TxHandler handler = new TxHandler(uPool);
-        Transaction[] txs = txPool.getTransactions().toArray(new Transaction[0]);
+        TxHandler handler = TxHandler.applyingTo(uPool);
+        handler.trustSignaturesVerifiedBy(txPool);
+        ArrayList<Transaction> candidates = new ArrayList<Transaction>();
+        Iterator<Transaction> bestTxs = txPool.iterateByFeeRate(Block.MAX_TRANSACTION_BYTES);
+        while (bestTxs.hasNext())
+            candidates.add(bestTxs.next());
+        Transaction[] txs = candidates.toArray(new Transaction[0]);
+        // The pool is this block's own copy, so applying the transactions to it changes nothing else
         Transaction[] rTxs = handler.handleTxs(txs);
         for (int i = 0; i < rTxs.length; i++)
             current.addTransaction(rTxs[i]);
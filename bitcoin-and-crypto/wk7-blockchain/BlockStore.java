@@ -0,0 +1,344 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only, segmented log of every block accepted by a {@link BlockChain}, so that blocks
+ * outlive both the retention window and the process.
+ *
+ * <p>
+ * Blocks are encoded with {@link BlockCodec} and appended to segment files of bounded size, each
+ * record preceded by its length and checksum. A separate index file holds one fixed-size entry
+ * per block with its hash, height and location; it is loaded into memory on open, so lookups by
+ * hash or height cost one read. {@link #transferBlock} hands a record's bytes straight from the
+ * segment file to a channel, and {@link #getBlock} decodes a record from a memory mapping of its
+ * segment, so neither copies the bytes through the heap. A decoded block is checked against both
+ * its record's checksum and the hash its index entry was stored under. A block only counts
+ * as stored once its index entry is durable; on open, torn index entries and unindexed segment
+ * tails left by a crash are truncated away.
+ */
+public class BlockStore implements Closeable {
+
+    private static final String INDEX_FILE = "blocks.idx";
+    private static final String SEGMENT_FILE_FORMAT = "blocks-%05d.log";
+    private static final long DEFAULT_MAX_SEGMENT_SIZE = 64L << 20;
+
+    static final int HASH_LENGTH = 32;
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES + Long.BYTES;
+    /** Index entry layout: hash, height, segment, offset, length, checksum of the preceding bytes */
+    private static final int INDEX_ENTRY_SIZE = HASH_LENGTH + 4 + 4 + 8 + 4 + 8;
+
+    private static final class Location {
+        private final byte[] hash;
+        private final int height;
+        private final int segment;
+        private final long offset;
+        private final int length;
+
+        private Location(byte[] hash, int height, int segment, long offset, int length) {
+            this.hash = hash;
+            this.height = height;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final Path _directory;
+    private final long _maxSegmentSize;
+    private final FileChannel _indexChannel;
+    private final List<FileChannel> _segments = new CopyOnWriteArrayList<>();
+    /** A read-only mapping of each segment as far as it had been written when last read past */
+    private final List<MappedByteBuffer> _mappings = new ArrayList<>();
+    private final Map<ByteArrayWrapper, Location> _locationsByHash = new HashMap<>();
+    private final TreeMap<Integer, List<Location>> _locationsByHeight = new TreeMap<>();
+
+    /** Opens the block store in {@code directory}, creating an empty one if there is none */
+    public BlockStore(Path directory) throws IOException {
+        this(directory, DEFAULT_MAX_SEGMENT_SIZE);
+    }
+
+    /** Opens the block store in {@code directory}, starting new segments past {@code maxSegmentSize} */
+    public BlockStore(Path directory, long maxSegmentSize) throws IOException {
+        _directory = directory;
+        _maxSegmentSize = maxSegmentSize;
+        Files.createDirectories(directory);
+
+        _indexChannel = FileChannel.open(
+                directory.resolve(INDEX_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        for (int segment = 0; Files.exists(segmentPath(segment)); segment++) {
+            _segments.add(openSegment(segment));
+        }
+
+        loadIndex();
+    }
+
+    /**
+     * Appends {@code block}, found at height {@code height}, and makes it durable. Appending a block
+     * that is already stored does nothing.
+     */
+    public synchronized void append(Block block, int height) throws IOException {
+        byte[] hash = block.getHash();
+        if (hash == null || hash.length != HASH_LENGTH) {
+            throw new IllegalArgumentException("Only finalized blocks with a 32-byte hash can be stored.");
+        }
+        if (_locationsByHash.containsKey(new ByteArrayWrapper(hash))) {
+            return;
+        }
+
+        ByteBuffer payload = BlockCodec.encodeBlock(block);
+        int length = payload.remaining();
+
+        int segment = _segments.size() - 1;
+        if (segment < 0 || _segments.get(segment).size() + RECORD_HEADER_SIZE + length > _maxSegmentSize) {
+            segment = _segments.size();
+            _segments.add(openSegment(segment));
+        }
+        FileChannel channel = _segments.get(segment);
+        long offset = channel.size();
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        record.putInt(length);
+        record.putLong(checksum(payload.array(), 0, length));
+        record.put(payload);
+        record.flip();
+        writeFully(channel, record, offset);
+        channel.force(false);
+
+        Location location = new Location(hash.clone(), height, segment, offset + RECORD_HEADER_SIZE, length);
+        writeFully(_indexChannel, encodeIndexEntry(location), _indexChannel.size());
+        _indexChannel.force(false);
+
+        addLocation(location);
+    }
+
+    /** @return true if a block with hash {@code hash} is stored */
+    public synchronized boolean contains(byte[] hash) {
+        return _locationsByHash.containsKey(new ByteArrayWrapper(hash));
+    }
+
+    /** @return the stored block with hash {@code hash}, or null if there is none */
+    public Block getBlock(byte[] hash) {
+        Location location;
+        synchronized (this) {
+            location = _locationsByHash.get(new ByteArrayWrapper(hash));
+        }
+        return location == null ? null : readBlock(location);
+    }
+
+    /** @return the height at which the block with hash {@code hash} was stored, or -1 if it is not */
+    public synchronized int getHeight(byte[] hash) {
+        Location location = _locationsByHash.get(new ByteArrayWrapper(hash));
+        return location == null ? -1 : location.height;
+    }
+
+    /** @return every stored block at height {@code height}, in the order they were appended */
+    public List<Block> getBlocksAtHeight(int height) {
+        List<Location> locations;
+        synchronized (this) {
+            locations = new ArrayList<>(_locationsByHeight.getOrDefault(height, Collections.emptyList()));
+        }
+
+        List<Block> blocks = new ArrayList<>(locations.size());
+        for (Location location : locations) {
+            blocks.add(readBlock(location));
+        }
+        return blocks;
+    }
+
+    /** @return the greatest height of any stored block, or 0 if the store is empty */
+    public synchronized int getMaxHeight() {
+        return _locationsByHeight.isEmpty() ? 0 : _locationsByHeight.lastKey();
+    }
+
+    /**
+     * Writes the encoded bytes of the block with hash {@code hash} to {@code target}, letting the
+     * operating system move them directly from the segment file where it can.
+     *
+     * @return the number of bytes written, or -1 if no such block is stored
+     */
+    public long transferBlock(byte[] hash, WritableByteChannel target) throws IOException {
+        Location location;
+        synchronized (this) {
+            location = _locationsByHash.get(new ByteArrayWrapper(hash));
+        }
+        if (location == null) {
+            return -1;
+        }
+
+        FileChannel channel = _segments.get(location.segment);
+        long transferred = 0;
+        while (transferred < location.length) {
+            transferred += channel.transferTo(
+                    location.offset + transferred, location.length - transferred, target);
+        }
+        return transferred;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        synchronized (_mappings) {
+            _mappings.clear();
+        }
+        _indexChannel.close();
+        for (FileChannel segment : _segments) {
+            segment.close();
+        }
+    }
+
+    private Block readBlock(Location location) {
+        long start = location.offset - RECORD_HEADER_SIZE;
+        Block block;
+        try {
+            ByteBuffer record = mapRecord(location.segment, start, RECORD_HEADER_SIZE + location.length);
+            long checksum = record.getLong(Integer.BYTES);
+            record.position(RECORD_HEADER_SIZE);
+            if (checksum != checksum(record.duplicate())) {
+                throw new IOException("Block record at offset " + start + " is corrupt.");
+            }
+            block = BlockCodec.decodeBlock(record);
+            if (!Arrays.equals(block.getHash(), location.hash)) {
+                throw new IOException("Block record at offset " + start + " does not hash to its index entry.");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return block;
+    }
+
+    /**
+     * @return the {@code length} bytes at {@code start} in segment {@code segment}, read through a
+     *         mapping of the segment that is only remapped once reads go past its end
+     */
+    private ByteBuffer mapRecord(int segment, long start, int length) throws IOException {
+        FileChannel channel = _segments.get(segment);
+        if (channel.size() > Integer.MAX_VALUE) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        }
+
+        MappedByteBuffer mapping;
+        synchronized (_mappings) {
+            while (_mappings.size() <= segment) {
+                _mappings.add(null);
+            }
+            mapping = _mappings.get(segment);
+            if (mapping == null || mapping.capacity() < start + length) {
+                mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                _mappings.set(segment, mapping);
+            }
+        }
+        if (mapping.capacity() < start + length) {
+            throw new IOException("Block record at offset " + start + " is truncated.");
+        }
+
+        ByteBuffer record = mapping.duplicate();
+        record.limit((int) start + length).position((int) start);
+        return record.slice();
+    }
+
+    private void addLocation(Location location) {
+        _locationsByHash.put(new ByteArrayWrapper(location.hash), location);
+        _locationsByHeight.computeIfAbsent(location.height, height -> new ArrayList<>()).add(location);
+    }
+
+    /**
+     * Loads every intact index entry, then truncates the index after the last of them and each
+     * segment after the last record it indexes
+     */
+    private void loadIndex() throws IOException {
+        long indexSize = _indexChannel.size();
+        ByteBuffer entries = ByteBuffer.allocate((int) Math.min(indexSize, Integer.MAX_VALUE));
+        while (entries.hasRemaining() && _indexChannel.read(entries, entries.position()) >= 0) {
+            // Keep reading until the buffer is full or the file ends
+        }
+        entries.flip();
+
+        long[] segmentEnds = new long[_segments.size()];
+        long validSize = 0;
+
+        while (entries.remaining() >= INDEX_ENTRY_SIZE) {
+            int start = entries.position();
+            byte[] hash = new byte[HASH_LENGTH];
+            entries.get(hash);
+            int height = entries.getInt();
+            int segment = entries.getInt();
+            long offset = entries.getLong();
+            int length = entries.getInt();
+            long checksum = entries.getLong();
+
+            if (checksum != checksum(entries.array(), start, INDEX_ENTRY_SIZE - Long.BYTES)
+                    || segment >= _segments.size()
+                    || offset + length > _segments.get(segment).size()) {
+                break;
+            }
+
+            addLocation(new Location(hash, height, segment, offset, length));
+            segmentEnds[segment] = Math.max(segmentEnds[segment], offset + length);
+            validSize += INDEX_ENTRY_SIZE;
+        }
+
+        _indexChannel.truncate(validSize);
+        for (int segment = 0; segment < _segments.size(); segment++) {
+            _segments.get(segment).truncate(segmentEnds[segment]);
+        }
+    }
+
+    private static ByteBuffer encodeIndexEntry(Location location) {
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        entry.put(location.hash);
+        entry.putInt(location.height);
+        entry.putInt(location.segment);
+        entry.putLong(location.offset);
+        entry.putInt(location.length);
+        entry.putLong(checksum(entry.array(), 0, INDEX_ENTRY_SIZE - Long.BYTES));
+        entry.flip();
+        return entry;
+    }
+
+    private Path segmentPath(int segment) {
+        return _directory.resolve(String.format(SEGMENT_FILE_FORMAT, segment));
+    }
+
+    private FileChannel openSegment(int segment) throws IOException {
+        return FileChannel.open(
+                segmentPath(segment),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static long checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return crc.getValue();
+    }
+
+    /** @return the checksum of the bytes remaining in {@code buffer}, which it consumes */
+    private static long checksum(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer);
+        return crc.getValue();
+    }
+}
@@ -1,11 +1,59 @@
-import java.security.InvalidKeyException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
-import java.security.SignatureException;
+import java.util.BitSet;
+import java.util.stream.IntStream;
 
 public class Crypto {
 
+    private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+    private static final String HASH_ALGORITHM = "SHA-256";
+
+    /** Below this many signatures, {@link #verifyBatch} stays on the calling thread */
+    private static final int PARALLEL_BATCH_THRESHOLD = 16;
+
+    private static final ThreadLocal<Verifier> VERIFIERS = ThreadLocal.withInitial(Verifier::new);
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every Java platform is required to support SHA-256.", e);
+        }
+    });
+
+    /**
+     * A per-thread {@code Signature} that remembers the key it was last initialized with, so that
+     * consecutive verifications under the same key skip provider lookup and key parsing.
+     */
+    private static final class Verifier {
+        private Signature _signature;
+        private PublicKey _initializedKey;
+
+        private boolean verify(PublicKey pubKey, byte[] message, byte[] signature) {
+            try {
+                if (_signature == null) {
+                    _signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+                }
+
+                if (_initializedKey != pubKey && !pubKey.equals(_initializedKey)) {
+                    _initializedKey = null;
+                    _signature.initVerify(pubKey);
+                    _initializedKey = pubKey;
+                }
+
+                // verify() resets the signature to its initialized state, keeping the key reusable
+                _signature.update(message);
+                return _signature.verify(signature);
+            } catch (GeneralSecurityException | RuntimeException e) {
+                // The signature may be left mid-update, so force a fresh initVerify next time
+                _initializedKey = null;
+                return false;
+            }
+        }
+    }
+
     /**
      * @return true is {@code signature} is a valid digital signature of {@code message} under the
      *         key {@code pubKey}. Internally, this uses RSA signature, but the student does not
@@ -13,24 +61,51 @@ public class Crypto {
      *         algorithm
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
-        Signature sig = null;
-        try {
-            sig = Signature.getInstance("SHA256withRSA");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
+        if (pubKey == null || message == null || signature == null) {
+            return false;
         }
-        try {
-            sig.initVerify(pubKey);
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
+
+        return VERIFIERS.get().verify(pubKey, message, signature);
+    }
+
+    /**
+     * Verifies {@code signatures[i]} of {@code messages[i]} under {@code pubKeys[i]} for every
+     * {@code i}, spreading large batches across the common fork-join pool.
+     *
+     * @return a bitmap whose bit {@code i} is set if and only if signature {@code i} is valid
+     */
+    public static BitSet verifyBatch(PublicKey[] pubKeys, byte[][] messages, byte[][] signatures) {
+        if (pubKeys.length != messages.length || pubKeys.length != signatures.length) {
+            throw new IllegalArgumentException("Keys, messages and signatures should have the same length.");
         }
-        try {
-            sig.update(message);
-            return sig.verify(signature);
-        } catch (SignatureException e) {
-            e.printStackTrace();
+
+        boolean[] results = new boolean[pubKeys.length];
+        IntStream indices = IntStream.range(0, pubKeys.length);
+
+        if (pubKeys.length >= PARALLEL_BATCH_THRESHOLD) {
+            indices = indices.parallel();
+        }
+
+        indices.forEach(i -> results[i] = verifySignature(pubKeys[i], messages[i], signatures[i]));
+
+        BitSet valid = new BitSet(results.length);
+        for (int i = 0; i < results.length; i++) {
+            if (results[i]) {
+                valid.set(i);
+            }
         }
-        return false;
 
+        return valid;
+    }
+
+    /**
+     * @return this thread's SHA-256 digest, reset and ready to be fed with {@code update} calls. The
+     *         digest is reused by later calls on the same thread, so it should be finished with
+     *         {@code digest()} before hashing anything else.
+     */
+    public static MessageDigest getHashDigest() {
+        MessageDigest digest = DIGESTS.get();
+        digest.reset();
+        return digest;
     }
 }
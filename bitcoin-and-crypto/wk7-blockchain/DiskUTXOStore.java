@@ -0,0 +1,672 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * A UTXO set kept on disk, so that it can be larger than the heap and survive a restart. A
+ * {@link UTXOPool} created with {@link UTXOPool#UTXOPool(DiskUTXOStore)} reads through the store in
+ * place of an in-memory pool.
+ *
+ * <p>
+ * The store is a directory of four files: an open-addressing index of fixed-size slots that is
+ * memory-mapped, an append-only file of encoded outputs read with positional {@code FileChannel}
+ * reads, a checksummed header naming the last flushed block, and a write-ahead journal that only
+ * exists while a flush is in progress. Changes collect in an in-memory write-back cache next to an
+ * LRU cache of recently read entries, and reach the files only through {@link #flush}, which is
+ * meant to be called at block boundaries. A flush changes a copy of the index and renames it into
+ * place, so the index is never seen half changed: if the process dies mid-flush, reopening the store
+ * either completes the flush from the journal or discards it, so the files always describe the state
+ * at some flushed block. Unflushed changes are lost on close.
+ *
+ * <p>
+ * Only UTXOs of 32-byte transaction hashes can be stored. Records of removed outputs are not
+ * reclaimed from the data file. Every public method holds the store's lock, so one store can be
+ * read through pools on several threads while a block chain writes to it.
+ */
+public class DiskUTXOStore implements Closeable {
+
+    private static final String INDEX_FILE = "utxo.idx";
+    private static final String DATA_FILE = "utxo.dat";
+    private static final String HEADER_FILE = "utxo.head";
+    private static final String JOURNAL_FILE = "utxo.journal";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int MAGIC = 0x5554584F;
+    private static final int VERSION = 1;
+    private static final int HASH_LENGTH = 32;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 4 + HASH_LENGTH + 8;
+    private static final int JOURNAL_ENTRY_SIZE = 1 + 4 + HASH_LENGTH + 8;
+    private static final long HASH_MIXER = 0x9E3779B97F4A7C15L;
+
+    /** Slot layout: state byte, 3 bytes of padding, output index, transaction hash, record offset */
+    private static final int SLOT_SIZE = 48;
+    private static final int SLOT_INDEX = 4;
+    private static final int SLOT_HASH = 8;
+    private static final int SLOT_OFFSET = SLOT_HASH + HASH_LENGTH;
+    private static final byte SLOT_EMPTY = 0;
+    private static final byte SLOT_LIVE = 1;
+
+    /** Slots are mapped in segments so the index is not bounded by the 2GB limit of one mapping */
+    private static final int SLOTS_PER_SEGMENT = 1 << 22;
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    private static final byte JOURNAL_PUT = 1;
+    private static final byte JOURNAL_REMOVE = 0;
+
+    private final Path _directory;
+    private final FileChannel _dataChannel;
+
+    private MappedByteBuffer[] _segments;
+    private int _capacity;
+    private long _size;
+    private long _dataLength;
+    private int _height;
+    private byte[] _blockHash;
+    /** The index slot writes left before a test's simulated crash, or -1 */
+    private long _slotWritesBeforeCrash = -1;
+
+    /** Changes made since the last flush, with {@code null} outputs marking removals */
+    private UTXOTable _dirty = new UTXOTable();
+    private final LinkedHashMap<UTXO, Transaction.Output> _hot;
+
+    /**
+     * Opens the store in {@code directory}, creating an empty one if there is none, and recovers
+     * from a flush that was interrupted. Up to {@code hotCacheSize} recently read outputs are kept
+     * decoded on the heap.
+     */
+    public DiskUTXOStore(Path directory, int hotCacheSize) throws IOException {
+        _directory = directory;
+        Files.createDirectories(directory);
+
+        _hot = new LinkedHashMap<UTXO, Transaction.Output>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UTXO, Transaction.Output> eldest) {
+                return size() > hotCacheSize;
+            }
+        };
+
+        _dataChannel = FileChannel.open(
+                directory.resolve(DATA_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        Path indexPath = directory.resolve(INDEX_FILE);
+        if (!Files.exists(indexPath)) {
+            createIndex(indexPath, INITIAL_CAPACITY);
+        }
+        mapIndex(indexPath);
+        readHeader();
+        recoverJournal();
+        _dataChannel.truncate(_dataLength);
+    }
+
+    /** @return the height passed to the last successful {@link #flush}, or 0 for a new store */
+    public synchronized int getHeight() {
+        return _height;
+    }
+
+    /** @return the block hash passed to the last successful {@link #flush}, or null for a new store */
+    public synchronized byte[] getBlockHash() {
+        return _blockHash == null ? null : _blockHash.clone();
+    }
+
+    /** Adds a mapping from UTXO {@code utxo} to transaction output {@code txOut} to the store */
+    public synchronized void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        checkHash(utxo);
+        _dirty.put(utxo, txOut);
+        _hot.remove(utxo);
+    }
+
+    /** Removes the UTXO {@code utxo} from the store */
+    public synchronized void removeUTXO(UTXO utxo) {
+        checkHash(utxo);
+        _dirty.put(utxo, null);
+        _hot.remove(utxo);
+    }
+
+    /** @return the transaction output corresponding to {@code ut}, or null if it is not in the store */
+    public synchronized Transaction.Output getTxOutput(UTXO ut) {
+        if (ut.getTxHash().length != HASH_LENGTH) {
+            return null;
+        }
+
+        Transaction.Output txOut = _dirty.get(ut);
+        if (txOut != null || _dirty.containsKey(ut)) {
+            return txOut;
+        }
+
+        txOut = _hot.get(ut);
+        if (txOut != null) {
+            return txOut;
+        }
+
+        int slot = findSlot(ut.getTxHash(), ut.getIndex());
+        if (slot < 0) {
+            return null;
+        }
+
+        txOut = readRecord(segment(slot).getLong(position(slot) + SLOT_OFFSET));
+        _hot.put(ut, txOut);
+        return txOut;
+    }
+
+    /** @return true if UTXO {@code utxo} is in the store and false otherwise */
+    public synchronized boolean contains(UTXO utxo) {
+        return getTxOutput(utxo) != null;
+    }
+
+    /** Calls {@code action} for every UTXO in the store, reading each output back from disk */
+    public synchronized void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        byte[] txHash = new byte[HASH_LENGTH];
+
+        for (int slot = 0; slot < _capacity; slot++) {
+            MappedByteBuffer segment = segment(slot);
+            int position = position(slot);
+            if (segment.get(position) != SLOT_LIVE) {
+                continue;
+            }
+
+            for (int i = 0; i < HASH_LENGTH; i++) {
+                txHash[i] = segment.get(position + SLOT_HASH + i);
+            }
+            UTXO utxo = new UTXO(txHash, segment.getInt(position + SLOT_INDEX));
+
+            if (!_dirty.containsKey(utxo)) {
+                action.accept(utxo, readRecord(segment.getLong(position + SLOT_OFFSET)));
+            }
+        }
+
+        _dirty.forEach((utxo, txOut) -> {
+            if (txOut != null) {
+                action.accept(utxo, txOut);
+            }
+        });
+    }
+
+    /**
+     * Durably writes every change made since the last flush, recording the store as being at block
+     * {@code blockHash} of height {@code height}.
+     */
+    public synchronized void flush(byte[] blockHash, int height) throws IOException {
+        List<JournalEntry> entries = new ArrayList<>(_dirty.size());
+        long dataLength = _dataLength;
+
+        // Records are appended past the committed end of the data file, where an interrupted flush
+        // leaves them unreferenced until reopening truncates them away
+        for (Map.Entry<UTXO, Transaction.Output> change : dirtyEntries()) {
+            UTXO utxo = change.getKey();
+            if (change.getValue() == null) {
+                entries.add(new JournalEntry(JOURNAL_REMOVE, utxo.getTxHash(), utxo.getIndex(), 0));
+                continue;
+            }
+
+            ByteBuffer record = encodeRecord(change.getValue());
+            entries.add(new JournalEntry(JOURNAL_PUT, utxo.getTxHash(), utxo.getIndex(), dataLength));
+            while (record.hasRemaining()) {
+                dataLength += _dataChannel.write(record, dataLength);
+            }
+        }
+        _dataChannel.force(false);
+
+        writeJournal(entries, dataLength, blockHash, height);
+        applyJournal(entries, dataLength, blockHash, height);
+        Files.delete(_directory.resolve(JOURNAL_FILE));
+
+        _dirty.forEach((utxo, txOut) -> {
+            if (txOut != null) {
+                _hot.put(utxo, txOut);
+            }
+        });
+        _dirty = new UTXOTable();
+    }
+
+    /** Closes the store, discarding any changes made since the last flush */
+    @Override
+    public synchronized void close() throws IOException {
+        _segments = null;
+        _dataChannel.close();
+    }
+
+    /**
+     * Makes a flush fail, as if the process died, before its {@code slotWrites + 1}th write to an
+     * index slot. For tests of crash recovery.
+     */
+    void crashAfterSlotWrites(long slotWrites) {
+        _slotWritesBeforeCrash = slotWrites;
+    }
+
+    private void beforeSlotWrite() {
+        if (_slotWritesBeforeCrash == 0) {
+            throw new IllegalStateException("Simulated crash while writing the UTXO index.");
+        }
+        if (_slotWritesBeforeCrash > 0) {
+            _slotWritesBeforeCrash--;
+        }
+    }
+
+    private List<Map.Entry<UTXO, Transaction.Output>> dirtyEntries() {
+        List<Map.Entry<UTXO, Transaction.Output>> changes = new ArrayList<>(_dirty.size());
+        _dirty.forEach((utxo, txOut) -> changes.add(new AbstractMap.SimpleEntry<>(utxo, txOut)));
+        return changes;
+    }
+
+    private static void checkHash(UTXO utxo) {
+        if (utxo.getTxHash().length != HASH_LENGTH) {
+            throw new IllegalArgumentException("Only UTXOs of 32-byte transaction hashes can be stored on disk.");
+        }
+    }
+
+    // --- Index ---------------------------------------------------------------------------------
+
+    private MappedByteBuffer segment(int slot) {
+        return _segments[slot / SLOTS_PER_SEGMENT];
+    }
+
+    private static int position(int slot) {
+        return (slot % SLOTS_PER_SEGMENT) * SLOT_SIZE;
+    }
+
+    private static int slotOf(byte[] txHash, int index, int mask) {
+        long prefix = 0;
+        for (int i = 0; i < 8; i++) {
+            prefix = (prefix << 8) | (txHash[i] & 0xFF);
+        }
+        long mixed = (prefix ^ index) * HASH_MIXER;
+        return (int) (mixed >>> 32) & mask;
+    }
+
+    private int findSlot(byte[] txHash, int index) {
+        int mask = _capacity - 1;
+
+        for (int slot = slotOf(txHash, index, mask); ; slot = (slot + 1) & mask) {
+            MappedByteBuffer segment = segment(slot);
+            int position = position(slot);
+
+            if (segment.get(position) == SLOT_EMPTY) {
+                return -1;
+            }
+            if (slotMatches(segment, position, txHash, index)) {
+                return slot;
+            }
+        }
+    }
+
+    private static boolean slotMatches(MappedByteBuffer segment, int position, byte[] txHash, int index) {
+        if (segment.getInt(position + SLOT_INDEX) != index) {
+            return false;
+        }
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            if (segment.get(position + SLOT_HASH + i) != txHash[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void putSlot(byte[] txHash, int index, long offset) {
+        int mask = _capacity - 1;
+
+        for (int slot = slotOf(txHash, index, mask); ; slot = (slot + 1) & mask) {
+            MappedByteBuffer segment = segment(slot);
+            int position = position(slot);
+
+            if (segment.get(position) == SLOT_EMPTY) {
+                // The state byte goes last, so the slot is only ever live with a whole entry
+                beforeSlotWrite();
+                segment.putInt(position + SLOT_INDEX, index);
+                for (int i = 0; i < HASH_LENGTH; i++) {
+                    segment.put(position + SLOT_HASH + i, txHash[i]);
+                }
+                segment.putLong(position + SLOT_OFFSET, offset);
+                segment.put(position, SLOT_LIVE);
+                _size++;
+                return;
+            }
+            if (slotMatches(segment, position, txHash, index)) {
+                beforeSlotWrite();
+                segment.putLong(position + SLOT_OFFSET, offset);
+                return;
+            }
+        }
+    }
+
+    /** Removes a slot by backward shifting, as in {@link UTXOTable}, so no tombstones are needed */
+    private void removeSlot(byte[] txHash, int index) {
+        int slot = findSlot(txHash, index);
+        if (slot < 0) {
+            return;
+        }
+
+        int mask = _capacity - 1;
+        int hole = slot;
+        byte[] nextHash = new byte[HASH_LENGTH];
+
+        for (int next = (hole + 1) & mask; ; next = (next + 1) & mask) {
+            MappedByteBuffer segment = segment(next);
+            int position = position(next);
+            if (segment.get(position) == SLOT_EMPTY) {
+                break;
+            }
+
+            for (int i = 0; i < HASH_LENGTH; i++) {
+                nextHash[i] = segment.get(position + SLOT_HASH + i);
+            }
+            int home = slotOf(nextHash, segment.getInt(position + SLOT_INDEX), mask);
+
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                beforeSlotWrite();
+                copySlot(segment, position, segment(hole), position(hole));
+                hole = next;
+            }
+        }
+
+        beforeSlotWrite();
+        segment(hole).put(position(hole), SLOT_EMPTY);
+        _size--;
+    }
+
+    private static void copySlot(MappedByteBuffer from, int fromPosition, MappedByteBuffer to, int toPosition) {
+        for (int i = 0; i < SLOT_SIZE; i++) {
+            to.put(toPosition + i, from.get(fromPosition + i));
+        }
+    }
+
+    private static void createIndex(Path indexPath, int capacity) throws IOException {
+        try (FileChannel channel = FileChannel.open(
+                indexPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Writing the last byte extends the file with zeroes, which are all empty slots
+            channel.write(ByteBuffer.allocate(1), (long) capacity * SLOT_SIZE - 1);
+            channel.force(true);
+        }
+    }
+
+    private void mapIndex(Path indexPath) throws IOException {
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            _capacity = (int) (channel.size() / SLOT_SIZE);
+            int segmentCount = (_capacity + SLOTS_PER_SEGMENT - 1) / SLOTS_PER_SEGMENT;
+            _segments = new MappedByteBuffer[segmentCount];
+
+            for (int i = 0; i < segmentCount; i++) {
+                long start = (long) i * SLOTS_PER_SEGMENT * SLOT_SIZE;
+                long length = Math.min((long) SLOTS_PER_SEGMENT * SLOT_SIZE, channel.size() - start);
+                _segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, length);
+            }
+        }
+    }
+
+    /**
+     * Maps a copy of the index for a flush to change, in place of the index itself. The copy is grown
+     * if {@code size} entries would fill the index more than half, so that probe runs stay short.
+     */
+    private void mapShadowIndex(long size) throws IOException {
+        int capacity = _capacity;
+        while (size * 2 > capacity) {
+            capacity *= 2;
+        }
+
+        Path indexPath = _directory.resolve(INDEX_FILE);
+        Path tempPath = _directory.resolve(INDEX_FILE + TEMP_SUFFIX);
+        Files.deleteIfExists(tempPath);
+        if (capacity == _capacity) {
+            Files.copy(indexPath, tempPath);
+            mapIndex(tempPath);
+            return;
+        }
+
+        createIndex(tempPath, capacity);
+        MappedByteBuffer[] oldSegments = _segments;
+        int oldCapacity = _capacity;
+        mapIndex(tempPath);
+        _size = 0;
+
+        byte[] txHash = new byte[HASH_LENGTH];
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            MappedByteBuffer segment = oldSegments[slot / SLOTS_PER_SEGMENT];
+            int position = position(slot);
+            if (segment.get(position) != SLOT_LIVE) {
+                continue;
+            }
+            for (int i = 0; i < HASH_LENGTH; i++) {
+                txHash[i] = segment.get(position + SLOT_HASH + i);
+            }
+            putSlot(txHash, segment.getInt(position + SLOT_INDEX), segment.getLong(position + SLOT_OFFSET));
+        }
+    }
+
+    /** Makes the copy of the index mapped by {@link #mapShadowIndex} durable and renames it into place */
+    private void replaceIndex() throws IOException {
+        forceIndex();
+        Files.move(_directory.resolve(INDEX_FILE + TEMP_SUFFIX), _directory.resolve(INDEX_FILE),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void forceIndex() {
+        for (MappedByteBuffer segment : _segments) {
+            segment.force();
+        }
+    }
+
+    // --- Records -------------------------------------------------------------------------------
+
+    /** Record layout: length of the rest, then the output as encoded by {@link BlockCodec} */
+    private static ByteBuffer encodeRecord(Transaction.Output txOut) {
+        ByteBuffer output = BlockCodec.encodeOutput(txOut);
+        ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + output.remaining());
+        record.putInt(output.remaining());
+        record.put(output);
+        record.flip();
+        return record;
+    }
+
+    private Transaction.Output readRecord(long offset) {
+        try {
+            ByteBuffer lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+            readFully(lengthBuffer, offset);
+            ByteBuffer record = ByteBuffer.allocate(lengthBuffer.getInt(0));
+            readFully(record, offset + Integer.BYTES);
+            record.flip();
+            return BlockCodec.decodeOutput(record);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = _dataChannel.read(buffer, offset + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of UTXO data file at offset " + offset + ".");
+            }
+        }
+    }
+
+    // --- Header and journal --------------------------------------------------------------------
+
+    private static final class JournalEntry {
+        private final byte op;
+        private final byte[] txHash;
+        private final int index;
+        private final long offset;
+
+        private JournalEntry(byte op, byte[] txHash, int index, long offset) {
+            this.op = op;
+            this.txHash = txHash;
+            this.index = index;
+            this.offset = offset;
+        }
+    }
+
+    private void readHeader() throws IOException {
+        Path headerPath = _directory.resolve(HEADER_FILE);
+        if (!Files.exists(headerPath)) {
+            return;
+        }
+
+        ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(headerPath));
+        if (header.remaining() != HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION
+                || !checksumMatches(header, HEADER_SIZE - Long.BYTES)) {
+            throw new IOException("UTXO store header in " + _directory + " is corrupt.");
+        }
+
+        _size = header.getLong();
+        _dataLength = header.getLong();
+        _height = header.getInt();
+        int hashLength = header.getInt();
+        byte[] blockHash = new byte[HASH_LENGTH];
+        header.get(blockHash);
+        _blockHash = hashLength < 0 ? null : Arrays.copyOf(blockHash, hashLength);
+    }
+
+    /** Writes the header to a temporary file and renames it into place, so it is never torn */
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(_size);
+        header.putLong(_dataLength);
+        header.putInt(_height);
+        header.putInt(_blockHash == null ? -1 : _blockHash.length);
+        header.put(_blockHash == null ? new byte[HASH_LENGTH] : Arrays.copyOf(_blockHash, HASH_LENGTH));
+        header.putLong(checksum(header.array(), HEADER_SIZE - Long.BYTES));
+        header.flip();
+
+        Path tempPath = _directory.resolve(HEADER_FILE + TEMP_SUFFIX);
+        writeDurably(tempPath, header);
+        Files.move(tempPath, _directory.resolve(HEADER_FILE),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /** Journal layout: entry count, data length, height, hash length, hash, entries, checksum */
+    private void writeJournal(List<JournalEntry> entries, long dataLength, byte[] blockHash, int height)
+            throws IOException {
+        int length = 4 + 8 + 4 + 4 + HASH_LENGTH + entries.size() * JOURNAL_ENTRY_SIZE + 8;
+        ByteBuffer journal = ByteBuffer.allocate(length);
+        journal.putInt(entries.size());
+        journal.putLong(dataLength);
+        journal.putInt(height);
+        journal.putInt(blockHash == null ? -1 : blockHash.length);
+        journal.put(blockHash == null ? new byte[HASH_LENGTH] : Arrays.copyOf(blockHash, HASH_LENGTH));
+        for (JournalEntry entry : entries) {
+            journal.put(entry.op);
+            journal.putInt(entry.index);
+            journal.put(entry.txHash);
+            journal.putLong(entry.offset);
+        }
+        journal.putLong(checksum(journal.array(), length - Long.BYTES));
+        journal.flip();
+
+        writeDurably(_directory.resolve(JOURNAL_FILE), journal);
+    }
+
+    private void applyJournal(List<JournalEntry> entries, long dataLength, byte[] blockHash, int height)
+            throws IOException {
+        // A crash up to the rename leaves the index untouched, and one after it leaves the index
+        // the journal describes; either way the index is whole, and replaying the journal on it is
+        // idempotent
+        long puts = entries.stream().filter(entry -> entry.op == JOURNAL_PUT).count();
+        mapShadowIndex(_size + puts);
+
+        for (JournalEntry entry : entries) {
+            if (entry.op == JOURNAL_PUT) {
+                putSlot(entry.txHash, entry.index, entry.offset);
+            } else {
+                removeSlot(entry.txHash, entry.index);
+            }
+        }
+        replaceIndex();
+
+        _dataLength = dataLength;
+        _height = height;
+        _blockHash = blockHash == null ? null : blockHash.clone();
+        writeHeader();
+    }
+
+    /**
+     * Replays a journal left by an interrupted flush if it was completely written, and discards it
+     * otherwise. The flush only ever changed a copy of the index, which is thrown away, so the index
+     * is as of either the previous flush or the journal, and replaying the journal on either gives
+     * the same index.
+     */
+    private void recoverJournal() throws IOException {
+        Files.deleteIfExists(_directory.resolve(INDEX_FILE + TEMP_SUFFIX));
+        Path journalPath = _directory.resolve(JOURNAL_FILE);
+        if (!Files.exists(journalPath)) {
+            return;
+        }
+
+        ByteBuffer journal = ByteBuffer.wrap(Files.readAllBytes(journalPath));
+        int length = journal.remaining();
+        boolean complete = length >= 4 + 8 + 4 + 4 + HASH_LENGTH + 8
+                && length == 4 + 8 + 4 + 4 + HASH_LENGTH + journal.getInt(0) * JOURNAL_ENTRY_SIZE + 8
+                && checksumMatches(journal, length - Long.BYTES);
+
+        if (complete) {
+            int count = journal.getInt();
+            long dataLength = journal.getLong();
+            int height = journal.getInt();
+            int hashLength = journal.getInt();
+            byte[] blockHash = new byte[HASH_LENGTH];
+            journal.get(blockHash);
+
+            List<JournalEntry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte op = journal.get();
+                int index = journal.getInt();
+                byte[] txHash = new byte[HASH_LENGTH];
+                journal.get(txHash);
+                entries.add(new JournalEntry(op, txHash, index, journal.getLong()));
+            }
+
+            // The header may predate part of the replay, so recount the live slots afterwards
+            applyJournal(entries, dataLength, hashLength < 0 ? null : Arrays.copyOf(blockHash, hashLength), height);
+            _size = countLiveSlots();
+            writeHeader();
+        }
+
+        Files.delete(journalPath);
+    }
+
+    private long countLiveSlots() {
+        long size = 0;
+        for (int slot = 0; slot < _capacity; slot++) {
+            if (segment(slot).get(position(slot)) == SLOT_LIVE) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    private static void writeDurably(Path path, ByteBuffer contents) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (contents.hasRemaining()) {
+                channel.write(contents);
+            }
+            channel.force(true);
+        }
+    }
+
+    private static long checksum(byte[] bytes, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return crc.getValue();
+    }
+
+    private static boolean checksumMatches(ByteBuffer buffer, int length) {
+        return buffer.getLong(length) == checksum(buffer.array(), length);
+    }
+}
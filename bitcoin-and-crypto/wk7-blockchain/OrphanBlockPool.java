@@ -0,0 +1,135 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocks whose parent is not known yet, held until the parent arrives so that blocks received out
+ * of order need not be fetched and validated again. Orphans are indexed by the hash of their
+ * missing parent. The pool is bounded by count and by encoded size, evicting the oldest orphans
+ * first, and orphans are dropped once they have waited longer than the maximum age.
+ */
+public class OrphanBlockPool {
+
+    public static final int DEFAULT_MAX_BLOCKS = 100;
+    public static final long DEFAULT_MAX_BYTES = 16L << 20;
+    public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final class Orphan {
+        private final Block block;
+        private final ByteArrayWrapper hash;
+        private final ByteArrayWrapper parentHash;
+        private final long arrivalNanos;
+        private final long size;
+
+        private Orphan(Block block, long arrivalNanos) {
+            this.block = block;
+            this.hash = new ByteArrayWrapper(block.getHash());
+            this.parentHash = new ByteArrayWrapper(block.getPrevBlockHash());
+            this.arrivalNanos = arrivalNanos;
+            this.size = block.getRawBlock().length;
+        }
+    }
+
+    private final int _maxBlocks;
+    private final long _maxBytes;
+    private final long _maxAgeNanos;
+    /** Every orphan by its own hash, oldest first */
+    private final LinkedHashMap<ByteArrayWrapper, Orphan> _orphansByHash = new LinkedHashMap<>();
+    private final Map<ByteArrayWrapper, List<Orphan>> _orphansByParentHash = new HashMap<>();
+    private long _bytes;
+
+    public OrphanBlockPool() {
+        this(DEFAULT_MAX_BLOCKS, DEFAULT_MAX_BYTES, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    public OrphanBlockPool(int maxBlocks, long maxBytes, long maxAgeMillis) {
+        _maxBlocks = maxBlocks;
+        _maxBytes = maxBytes;
+        _maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+    }
+
+    /**
+     * Holds {@code block} until its parent arrives, evicting the oldest orphans if the pool grows
+     * past its bounds
+     *
+     * @return true if the block is now held; false if it was already, or cannot be held at all
+     */
+    public synchronized boolean add(Block block) {
+        if (block.getHash() == null || block.getPrevBlockHash() == null) {
+            return false;
+        }
+
+        long now = System.nanoTime();
+        evictExpired(now);
+
+        Orphan orphan = new Orphan(block, now);
+        if (orphan.size > _maxBytes || _maxBlocks <= 0 || _orphansByHash.containsKey(orphan.hash)) {
+            return false;
+        }
+
+        _orphansByHash.put(orphan.hash, orphan);
+        _orphansByParentHash.computeIfAbsent(orphan.parentHash, parentHash -> new ArrayList<>(1)).add(orphan);
+        _bytes += orphan.size;
+
+        Iterator<Orphan> oldest = _orphansByHash.values().iterator();
+        while (_orphansByHash.size() > _maxBlocks || _bytes > _maxBytes) {
+            Orphan evicted = oldest.next();
+            oldest.remove();
+            unindex(evicted);
+        }
+        return true;
+    }
+
+    /** @return the orphans waiting for the block with hash {@code parentHash}, which stop being held */
+    public synchronized List<Block> removeChildren(byte[] parentHash) {
+        evictExpired(System.nanoTime());
+
+        List<Orphan> children = _orphansByParentHash.remove(new ByteArrayWrapper(parentHash));
+        if (children == null) {
+            return Collections.emptyList();
+        }
+
+        List<Block> blocks = new ArrayList<>(children.size());
+        for (Orphan child : children) {
+            _orphansByHash.remove(child.hash);
+            _bytes -= child.size;
+            blocks.add(child.block);
+        }
+        return blocks;
+    }
+
+    /** @return true if the block with hash {@code hash} is held */
+    public synchronized boolean contains(byte[] hash) {
+        return _orphansByHash.containsKey(new ByteArrayWrapper(hash));
+    }
+
+    public synchronized int size() {
+        return _orphansByHash.size();
+    }
+
+    private void evictExpired(long now) {
+        Iterator<Orphan> oldest = _orphansByHash.values().iterator();
+        while (oldest.hasNext()) {
+            Orphan orphan = oldest.next();
+            if (now - orphan.arrivalNanos <= _maxAgeNanos) {
+                return;
+            }
+            oldest.remove();
+            unindex(orphan);
+        }
+    }
+
+    private void unindex(Orphan orphan) {
+        _bytes -= orphan.size;
+        List<Orphan> siblings = _orphansByParentHash.get(orphan.parentHash);
+        siblings.remove(orphan);
+        if (siblings.isEmpty()) {
+            _orphansByParentHash.remove(orphan.parentHash);
+        }
+    }
+}
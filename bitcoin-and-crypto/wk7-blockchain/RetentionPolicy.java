@@ -0,0 +1,72 @@
+import java.util.Map;
+import java.util.NavigableMap;
+
+/**
+ * Decides which of the most recent block heights a {@link BlockChain} keeps in memory. A block can
+ * only be added on top of a retained block, so the policy also bounds how deep a fork can go.
+ * Heights that fall out of the policy are pruned in the background, off the block acceptance path.
+ */
+public interface RetentionPolicy {
+
+    /**
+     * @param maxHeight the height of the max height block
+     * @param bytesByHeight the encoded size of the blocks at each height that is still retained
+     * @return the lowest height whose blocks should be retained, which is at most {@code maxHeight}
+     */
+    int getLowestRetainedHeight(int maxHeight, NavigableMap<Integer, Long> bytesByHeight);
+
+    /**
+     * @return true if blocks pruned under this policy must stay readable from the chain's
+     *         {@link BlockStore}
+     */
+    default boolean keepsPrunedBlocksOnDisk() {
+        return false;
+    }
+
+    /** Retains the max height and the {@code depth} heights below it */
+    static RetentionPolicy byDepth(int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("Retention depth should not be negative.");
+        }
+        return (maxHeight, bytesByHeight) -> maxHeight - depth;
+    }
+
+    /**
+     * Retains as many of the most recent heights as fit in {@code maxBytes} of encoded blocks, but
+     * always at least the max height
+     */
+    static RetentionPolicy byMemoryBudget(long maxBytes) {
+        return (maxHeight, bytesByHeight) -> {
+            int lowestRetainedHeight = maxHeight;
+            long retainedBytes = 0;
+            for (Map.Entry<Integer, Long> heightBytes : bytesByHeight.headMap(maxHeight, true).descendingMap().entrySet()) {
+                retainedBytes += heightBytes.getValue();
+                if (retainedBytes > maxBytes && heightBytes.getKey() < maxHeight) {
+                    break;
+                }
+                lowestRetainedHeight = heightBytes.getKey();
+            }
+            return lowestRetainedHeight;
+        };
+    }
+
+    /**
+     * Retains the max height and the {@code depth} heights below it in memory, and requires a
+     * {@link BlockStore} from which every pruned block can still be read through
+     * {@link BlockChain#getBlock}
+     */
+    static RetentionPolicy keepOnDisk(int depth) {
+        RetentionPolicy inMemory = byDepth(depth);
+        return new RetentionPolicy() {
+            @Override
+            public int getLowestRetainedHeight(int maxHeight, NavigableMap<Integer, Long> bytesByHeight) {
+                return inMemory.getLowestRetainedHeight(maxHeight, bytesByHeight);
+            }
+
+            @Override
+            public boolean keepsPrunedBlocksOnDisk() {
+                return true;
+            }
+        };
+    }
+}
@@ -0,0 +1,132 @@
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Input signatures already found valid, so that a transaction seen again (when a block is
+ * assembled, when it is accepted, and on every fork it appears in) skips RSA verification. An
+ * entry is keyed by everything the verification depended on: the address, a SHA-256 digest of the
+ * signed message and the signature bytes. Nothing the sender of a transaction controls, such as
+ * its hash, is trusted, so a hit means exactly that the same check passed before. Only valid
+ * signatures are remembered.
+ *
+ * <p>
+ * Lookups are lock-free. The cache is bounded by entry count and evicts with the CLOCK algorithm:
+ * a lookup marks its entry as referenced, and the clock hand passes over referenced entries once,
+ * clearing the mark, before evicting the first entry that was not looked up since.
+ */
+public class SignatureCache {
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private static final class Key {
+        private final PublicKey address;
+        private final ByteArrayWrapper messageDigest;
+        private final ByteArrayWrapper signature;
+
+        private Key(PublicKey address, byte[] message, byte[] signature) {
+            MessageDigest md = Crypto.getHashDigest();
+            md.update(message);
+            this.address = address;
+            this.messageDigest = new ByteArrayWrapper(md.digest());
+            this.signature = new ByteArrayWrapper(signature);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return messageDigest.equals(key.messageDigest)
+                    && signature.equals(key.signature)
+                    && address.equals(key.address);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * messageDigest.hashCode() + signature.hashCode();
+        }
+    }
+
+    private static final class Slot {
+        private final Key key;
+        private volatile boolean referenced;
+
+        private Slot(Key key) {
+            this.key = key;
+        }
+    }
+
+    private final ConcurrentHashMap<Key, Slot> _slotsByKey;
+    /** The clock face; guarded by this cache's lock, as is the hand */
+    private final Slot[] _clock;
+    private int _hand;
+
+    public SignatureCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public SignatureCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Signature cache capacity should be positive.");
+        }
+        _slotsByKey = new ConcurrentHashMap<>(capacity);
+        _clock = new Slot[capacity];
+    }
+
+    /**
+     * @return true if {@code signature} was found to be a valid signature of {@code message} under
+     *         {@code address}
+     */
+    public boolean isVerified(PublicKey address, byte[] message, byte[] signature) {
+        if (address == null || message == null || signature == null) {
+            return false;
+        }
+
+        Slot slot = _slotsByKey.get(new Key(address, message, signature));
+        if (slot == null) {
+            return false;
+        }
+
+        if (!slot.referenced) {
+            slot.referenced = true;
+        }
+        return true;
+    }
+
+    /**
+     * Remembers that {@code signature} is a valid signature of {@code message} under
+     * {@code address}, evicting an entry if the cache is full
+     */
+    public void putVerified(PublicKey address, byte[] message, byte[] signature) {
+        if (address == null || message == null || signature == null) {
+            return;
+        }
+
+        Key key = new Key(address, message, signature);
+        Slot slot = new Slot(key);
+
+        synchronized (this) {
+            if (_slotsByKey.containsKey(key)) {
+                return;
+            }
+
+            while (_clock[_hand] != null && _clock[_hand].referenced) {
+                _clock[_hand].referenced = false;
+                _hand = (_hand + 1) % _clock.length;
+            }
+
+            if (_clock[_hand] != null) {
+                _slotsByKey.remove(_clock[_hand].key);
+            }
+            _clock[_hand] = slot;
+            _slotsByKey.put(key, slot);
+            _hand = (_hand + 1) % _clock.length;
+        }
+    }
+
+    public int size() {
+        return _slotsByKey.size();
+    }
+}
@@ -1,7 +1,6 @@
 
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
@@ -73,12 +72,24 @@ public class Transaction {
         public double value;
         /** the address or public key of the recipient */
         public PublicKey address;
+        /** serialized exponent and modulus of {@code encodedAddress.key}, computed on first use */
+        private EncodedAddress encodedAddress;
 
         public Output(double v, PublicKey addr) {
             value = v;
             address = addr;
         }
 
+        /** @return the public exponent followed by the modulus of {@code address}, as raw bytes */
+        private byte[] getEncodedAddress() {
+            EncodedAddress encoded = encodedAddress;
+            if (encoded == null || encoded.key != address) {
+                encoded = new EncodedAddress(address);
+                encodedAddress = encoded;
+            }
+            return encoded.bytes;
+        }
+
         public boolean equals(Object other) {
             if (other == null) {
                 return false;
@@ -109,6 +120,23 @@ public class Transaction {
         }
     }
 
+    /**
+     * Immutable pairing of a key with its encoding, so outputs can publish the cache with a single
+     * reference write even when several threads serialize the same transaction.
+     */
+    private static final class EncodedAddress {
+        private final PublicKey key;
+        private final byte[] bytes;
+
+        private EncodedAddress(PublicKey key) {
+            byte[] exponent = ((RSAPublicKey) key).getPublicExponent().toByteArray();
+            byte[] modulus = ((RSAPublicKey) key).getModulus().toByteArray();
+            this.key = key;
+            this.bytes = Arrays.copyOf(exponent, exponent.length + modulus.length);
+            System.arraycopy(modulus, 0, bytes, exponent.length, modulus.length);
+        }
+    }
+
     /** hash of the transaction, its unique id */
     private byte[] hash;
     private ArrayList<Input> inputs;
@@ -123,8 +151,16 @@ public class Transaction {
 
     public Transaction(Transaction tx) {
         hash = tx.hash.clone();
-        inputs = new ArrayList<Input>(tx.inputs);
-        outputs = new ArrayList<Output>(tx.outputs);
+        // Copy the inputs and outputs too, so that changing one transaction never changes the other
+        inputs = new ArrayList<Input>(tx.inputs.size());
+        for (Input in : tx.inputs) {
+            Input copy = new Input(in.prevTxHash, in.outputIndex);
+            copy.addSignature(in.signature);
+            inputs.add(copy);
+        }
+        outputs = new ArrayList<Output>(tx.outputs.size());
+        for (Output op : tx.outputs)
+            outputs.add(new Output(op.value, op.address));
         coinbase = false;
     }
 
@@ -168,88 +204,70 @@ public class Transaction {
 
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index > inputs.size())
             return null;
         Input in = inputs.get(index);
         byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
+        int size = Integer.BYTES + getRawOutputsSize();
         if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                sigData.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                sigData.add(addressModulus[i]);
-        }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
-        return sigD;
+            size += prevTxHash.length;
+        ByteBuffer sigData = ByteBuffer.allocate(size);
+        if (prevTxHash != null)
+            sigData.put(prevTxHash);
+        sigData.putInt(in.outputIndex);
+        putRawOutputs(sigData);
+        return sigData.array();
     }
 
     public void addSignature(byte[] signature, int index) {
         inputs.get(index).addSignature(signature);
     }
 
+    /**
+     * @return the raw transaction bytes, serialized afresh on every call: inputs and outputs are
+     *         public and may be changed in place, so no encoding is kept between calls
+     */
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
+        int size = getRawOutputsSize();
+        for (Input in : inputs) {
+            size += Integer.BYTES;
+            if (in.prevTxHash != null)
+                size += in.prevTxHash.length;
+            if (in.signature != null)
+                size += in.signature.length;
+        }
+        ByteBuffer rawTx = ByteBuffer.allocate(size);
         for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
+            if (in.prevTxHash != null)
+                rawTx.put(in.prevTxHash);
+            rawTx.putInt(in.outputIndex);
+            if (in.signature != null)
+                rawTx.put(in.signature);
         }
+        putRawOutputs(rawTx);
+        return rawTx.array();
+    }
+
+    /** @return the number of bytes {@link #putRawOutputs} writes */
+    private int getRawOutputsSize() {
+        int size = 0;
+        for (Output op : outputs)
+            size += Double.BYTES + op.getEncodedAddress().length;
+        return size;
+    }
+
+    /** writes the value and encoded address of every output into {@code buffer} */
+    private void putRawOutputs(ByteBuffer buffer) {
         for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                rawTx.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                rawTx.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                rawTx.add(addressModulus[i]);
+            buffer.putDouble(op.value);
+            buffer.put(op.getEncodedAddress());
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
     }
 
     public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
-        }
+        MessageDigest md = Crypto.getHashDigest();
+        md.update(getRawTx());
+        hash = md.digest();
     }
 
     public void setHash(byte[] h) {
@@ -1,38 +1,464 @@
 
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+/**
+ * The transactions waiting to be mined. Any number of threads can add, remove and look up
+ * transactions at once without blocking each other: those calls only touch a concurrent map and
+ * note the changed hash on a lock-free queue. The dependency graph and fee-rate index are brought
+ * up to date with the map under a lock, in bulk, when transactions are selected for a block or
+ * removed in bulk, so a selection always sees one consistent pool.
+ */
 public class TransactionPool {
 
-    private HashMap<ByteArrayWrapper, Transaction> H;
+    /**
+     * A pooled transaction with the fee it pays, the size of its encoding, its links to the pooled
+     * transactions it spends from and that spend from it, and the totals over its ancestor package:
+     * itself together with every pooled transaction it depends on, directly or not
+     */
+    private static final class Entry {
+        private final Transaction tx;
+        private final ByteArrayWrapper hash;
+        private final byte[] rawHash;
+        private final double fee;
+        private final int size;
+        /** The address each input signature was verified against on admission, or null if unverified */
+        private final PublicKey[] verifiedAddresses;
+        /** A digest of the encoding {@code verifiedAddresses} holds for, or null if unverified */
+        private final byte[] verifiedDigest;
+        private final Set<Entry> parents = new HashSet<Entry>();
+        private final Set<Entry> children = new HashSet<Entry>();
+        private double ancestorFee;
+        private long ancestorSize;
+        private int ancestorCount;
+
+        private Entry(Transaction tx, double fee, PublicKey[] verifiedAddresses) {
+            byte[] rawTx = tx.getRawTx();
+            this.tx = tx;
+            this.rawHash = tx.getHash();
+            this.hash = new ByteArrayWrapper(rawHash);
+            this.fee = fee;
+            this.size = rawTx.length;
+            this.verifiedAddresses = verifiedAddresses;
+            this.verifiedDigest = verifiedAddresses == null ? null : digest(rawTx);
+        }
+
+        /** Copies {@code entry} without its links, which the copy's pool recomputes */
+        private Entry(Entry entry) {
+            this.tx = entry.tx;
+            this.rawHash = entry.rawHash;
+            this.hash = entry.hash;
+            this.fee = entry.fee;
+            this.size = entry.size;
+            this.verifiedAddresses = entry.verifiedAddresses;
+            this.verifiedDigest = entry.verifiedDigest;
+        }
+    }
+
+    /**
+     * An ancestor package score as adjusted during block assembly, once some of the ancestors have
+     * already been selected
+     */
+    private static final class PackageScore {
+        private final Entry entry;
+        private final double fee;
+        private final long size;
+
+        private PackageScore(Entry entry, double fee, long size) {
+            this.entry = entry;
+            this.fee = fee;
+            this.size = size;
+        }
+    }
+
+    /** Highest ancestor package fee rate first, ties broken by hash so that distinct entries never compare equal */
+    private static final Comparator<Entry> BY_ANCESTOR_FEE_RATE =
+            (a, b) -> compareScores(a.ancestorFee, a.ancestorSize, a.rawHash, b.ancestorFee, b.ancestorSize, b.rawHash);
+
+    private static final Comparator<PackageScore> BY_PACKAGE_FEE_RATE =
+            (a, b) -> compareScores(a.fee, a.size, a.entry.rawHash, b.fee, b.size, b.entry.rawHash);
+
+    /** The pooled transactions; the indexes below follow it as of the last reconciliation */
+    private ConcurrentHashMap<ByteArrayWrapper, Entry> H;
+    /** Hashes changed in {@code H} since they were last reconciled into the indexes */
+    private ConcurrentLinkedQueue<ByteArrayWrapper> _changedHashes;
+
+    private HashMap<ByteArrayWrapper, Entry> _indexed;
+    private HashMap<UTXO, List<Entry>> _spendersByOutpoint;
+    private TreeSet<Entry> _byAncestorFeeRate;
 
     public TransactionPool() {
-        H = new HashMap<ByteArrayWrapper, Transaction>();
+        H = new ConcurrentHashMap<ByteArrayWrapper, Entry>();
+        _changedHashes = new ConcurrentLinkedQueue<ByteArrayWrapper>();
+        _indexed = new HashMap<ByteArrayWrapper, Entry>();
+        _spendersByOutpoint = new HashMap<UTXO, List<Entry>>();
+        _byAncestorFeeRate = new TreeSet<Entry>(BY_ANCESTOR_FEE_RATE);
     }
 
     public TransactionPool(TransactionPool txPool) {
-        H = new HashMap<ByteArrayWrapper, Transaction>(txPool.H);
+        this();
+        for (Entry entry : txPool.H.values())
+            addEntry(new Entry(entry));
     }
 
+    /** Adds {@code tx} with an unknown fee, which ranks it as paying nothing */
     public void addTransaction(Transaction tx) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
-        H.put(hash, tx);
+        addTransaction(tx, 0);
+    }
+
+    /**
+     * Adds {@code tx}, ranked by the fee rate of its ancestor package: {@code fee} plus the fees of
+     * the pooled transactions it depends on, divided by the size of all their encodings
+     */
+    public void addTransaction(Transaction tx, double fee) {
+        addTransaction(tx, fee, null);
+    }
+
+    /**
+     * Adds {@code tx} as {@link #addTransaction(Transaction, double)} does, vouching that the
+     * signature on each input {@code i} was found valid for {@code verifiedAddresses[i]}
+     */
+    void addTransaction(Transaction tx, double fee, PublicKey[] verifiedAddresses) {
+        addEntry(new Entry(tx, fee, verifiedAddresses));
+    }
+
+    private void addEntry(Entry entry) {
+        H.put(entry.hash, entry);
+        _changedHashes.add(entry.hash);
     }
 
     public void removeTransaction(byte[] txHash) {
         ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        H.remove(hash);
+        if (H.remove(hash) != null) {
+            _changedHashes.add(hash);
+        }
+    }
+
+    /** Removes every transaction in {@code txs}, such as those of a newly added block, at once */
+    public void removeTransactions(Collection<Transaction> txs) {
+        for (Transaction tx : txs)
+            removeTransaction(tx.getHash());
+        synchronized (this) {
+            reconcile();
+        }
     }
 
     public Transaction getTransaction(byte[] txHash) {
         ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        return H.get(hash);
+        Entry entry = H.get(hash);
+        return entry == null ? null : entry.tx;
+    }
+
+    /**
+     * @return the address each input signature of {@code tx} was verified against when it was
+     *         admitted, or null if no transaction with the same encoding was admitted verified. The
+     *         encoding of {@code tx} is compared with the admitted one on every call, even if
+     *         {@code tx} is the admitted transaction itself, since it may have changed since.
+     */
+    public PublicKey[] getVerifiedAddresses(Transaction tx) {
+        if (tx.getHash() == null) {
+            return null;
+        }
+        Entry entry = H.get(new ByteArrayWrapper(tx.getHash()));
+        if (entry == null || entry.verifiedAddresses == null
+                || !Arrays.equals(entry.verifiedDigest, digest(tx.getRawTx()))) {
+            return null;
+        }
+        return entry.verifiedAddresses.clone();
     }
 
+    /** Returns every pooled transaction; transactions added or removed meanwhile may or may not be included */
     public ArrayList<Transaction> getTransactions() {
         ArrayList<Transaction> T = new ArrayList<Transaction>();
-        for (Transaction tx : H.values())
-            T.add(tx);
+        for (Entry entry : H.values())
+            T.add(entry.tx);
         return T;
     }
+
+    /**
+     * Selects pooled transactions by ancestor package: the package with the highest fee rate is
+     * taken whole, its members are discounted from the packages of their descendants, and so on.
+     * A package that would take the total past {@code maxBytes} is passed over for smaller ones
+     * further down, as is a package that spends an output an earlier pick already spends, so that
+     * of two conflicting transactions only the one in the better package is selected.
+     *
+     * @return an iterator over the selected transactions, each preceded by every pooled transaction
+     *         it spends from. Ranking {@code k} packages costs about {@code O(k log n)} plus the
+     *         walks over their ancestors and descendants. The selection is taken from the pool
+     *         as it was at one point during the call.
+     */
+    public synchronized Iterator<Transaction> iterateByFeeRate(int maxBytes) {
+        reconcile();
+
+        List<Transaction> selected = new ArrayList<Transaction>();
+        Set<Entry> included = new HashSet<Entry>();
+        Set<UTXO> spent = new HashSet<UTXO>();
+        Set<Entry> passedOver = new HashSet<Entry>();
+        HashMap<Entry, PackageScore> modified = new HashMap<Entry, PackageScore>();
+        TreeSet<PackageScore> modifiedByFeeRate = new TreeSet<PackageScore>(BY_PACKAGE_FEE_RATE);
+        Iterator<Entry> entries = _byAncestorFeeRate.iterator();
+        Entry nextEntry = null;
+        long remainingBytes = maxBytes;
+
+        while (remainingBytes > 0) {
+            // Entries whose package has been discounted are ranked by their modified score instead
+            while (nextEntry == null && entries.hasNext()) {
+                Entry entry = entries.next();
+                if (!included.contains(entry) && !modified.containsKey(entry) && !passedOver.contains(entry)) {
+                    nextEntry = entry;
+                }
+            }
+
+            PackageScore best;
+            if (modifiedByFeeRate.isEmpty()) {
+                if (nextEntry == null) {
+                    break;
+                }
+                best = new PackageScore(nextEntry, nextEntry.ancestorFee, nextEntry.ancestorSize);
+            } else {
+                best = modifiedByFeeRate.first();
+                if (nextEntry != null && compareScores(
+                        nextEntry.ancestorFee, nextEntry.ancestorSize, nextEntry.rawHash,
+                        best.fee, best.size, best.entry.rawHash) < 0) {
+                    best = new PackageScore(nextEntry, nextEntry.ancestorFee, nextEntry.ancestorSize);
+                }
+            }
+
+            if (best.entry == nextEntry) {
+                nextEntry = null;
+            } else {
+                modifiedByFeeRate.remove(modified.remove(best.entry));
+            }
+
+            List<Entry> pkg = new ArrayList<Entry>(getAncestors(best.entry));
+            pkg.add(best.entry);
+            pkg.removeIf(included::contains);
+
+            // Pass over a package that does not fit or conflicts with the selection. Its score may
+            // still improve once more of its ancestors are selected, which ranks it again.
+            List<UTXO> pkgSpends = getSpends(pkg);
+            if (best.size > remainingBytes || !Collections.disjoint(spent, pkgSpends)
+                    || new HashSet<UTXO>(pkgSpends).size() < pkgSpends.size()) {
+                passedOver.add(best.entry);
+                continue;
+            }
+
+            // An ancestor always has fewer ancestors than its descendants, so this is a topological order
+            pkg.sort(Comparator.comparingInt(entry -> entry.ancestorCount));
+
+            for (Entry member : pkg) {
+                included.add(member);
+                selected.add(member.tx);
+                PackageScore score = modified.remove(member);
+                if (score != null) {
+                    modifiedByFeeRate.remove(score);
+                }
+            }
+            spent.addAll(pkgSpends);
+            remainingBytes -= best.size;
+
+            for (Entry member : pkg) {
+                for (Entry descendant : getDescendants(Collections.singletonList(member))) {
+                    if (included.contains(descendant)) {
+                        continue;
+                    }
+                    PackageScore score = modified.get(descendant);
+                    if (score == null) {
+                        score = new PackageScore(descendant, descendant.ancestorFee, descendant.ancestorSize);
+                    } else {
+                        modifiedByFeeRate.remove(score);
+                    }
+                    score = new PackageScore(descendant, score.fee - member.fee, score.size - member.size);
+                    modified.put(descendant, score);
+                    modifiedByFeeRate.add(score);
+                }
+            }
+        }
+
+        return Collections.unmodifiableList(selected).iterator();
+    }
+
+    /** @return the outputs spent by the inputs of {@code entries}, once per input */
+    private static List<UTXO> getSpends(List<Entry> entries) {
+        List<UTXO> spends = new ArrayList<UTXO>();
+        for (Entry entry : entries) {
+            for (Transaction.Input in : entry.tx.getInputs())
+                spends.add(new UTXO(in.prevTxHash, in.outputIndex));
+        }
+        return spends;
+    }
+
+    /** Brings the indexes up to date with every transaction changed in {@code H} so far */
+    private void reconcile() {
+        ByteArrayWrapper hash;
+        while ((hash = _changedHashes.poll()) != null) {
+            Entry current = H.get(hash);
+            Entry indexed = _indexed.get(hash);
+            if (indexed != current) {
+                if (indexed != null) {
+                    unindex(indexed);
+                }
+                if (current != null) {
+                    index(current);
+                }
+            }
+        }
+    }
+
+    private void index(Entry entry) {
+        Transaction tx = entry.tx;
+        _indexed.put(entry.hash, entry);
+
+        for (Transaction.Input input : tx.getInputs()) {
+            if (input.prevTxHash == null) {
+                continue;
+            }
+            _spendersByOutpoint
+                    .computeIfAbsent(new UTXO(input.prevTxHash, input.outputIndex), outpoint -> new ArrayList<Entry>(1))
+                    .add(entry);
+            Entry parent = _indexed.get(new ByteArrayWrapper(input.prevTxHash));
+            if (parent != null && parent != entry) {
+                entry.parents.add(parent);
+                parent.children.add(entry);
+            }
+        }
+
+        // Transactions that arrived before this one may already spend its outputs
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            List<Entry> spenders = _spendersByOutpoint.get(new UTXO(entry.rawHash, i));
+            if (spenders == null) {
+                continue;
+            }
+            for (Entry child : spenders) {
+                if (child != entry) {
+                    child.parents.add(entry);
+                    entry.children.add(child);
+                }
+            }
+        }
+
+        updateAncestorState(entry);
+        _byAncestorFeeRate.add(entry);
+        updateAncestorStates(getDescendants(Collections.singletonList(entry)));
+    }
+
+    private void unindex(Entry removed) {
+        _indexed.remove(removed.hash);
+        _byAncestorFeeRate.remove(removed);
+        Set<Entry> descendants = getDescendants(Collections.singletonList(removed));
+
+        for (Transaction.Input input : removed.tx.getInputs()) {
+            if (input.prevTxHash == null) {
+                continue;
+            }
+            UTXO outpoint = new UTXO(input.prevTxHash, input.outputIndex);
+            List<Entry> spenders = _spendersByOutpoint.get(outpoint);
+            if (spenders != null) {
+                spenders.remove(removed);
+                if (spenders.isEmpty()) {
+                    _spendersByOutpoint.remove(outpoint);
+                }
+            }
+        }
+        for (Entry parent : removed.parents)
+            parent.children.remove(removed);
+        for (Entry child : removed.children)
+            child.parents.remove(removed);
+        removed.parents.clear();
+        removed.children.clear();
+
+        updateAncestorStates(descendants);
+    }
+
+    /** Recomputes the ancestor package totals of {@code entry}, which must not be indexed meanwhile */
+    private void updateAncestorState(Entry entry) {
+        Set<Entry> ancestors = getAncestors(entry);
+        double ancestorFee = entry.fee;
+        long ancestorSize = entry.size;
+        for (Entry ancestor : ancestors) {
+            ancestorFee += ancestor.fee;
+            ancestorSize += ancestor.size;
+        }
+        entry.ancestorFee = ancestorFee;
+        entry.ancestorSize = ancestorSize;
+        entry.ancestorCount = ancestors.size() + 1;
+    }
+
+    private void updateAncestorStates(Set<Entry> entries) {
+        for (Entry entry : entries) {
+            _byAncestorFeeRate.remove(entry);
+            updateAncestorState(entry);
+            _byAncestorFeeRate.add(entry);
+        }
+    }
+
+    /** @return every pooled transaction that {@code entry} depends on, directly or not */
+    private static Set<Entry> getAncestors(Entry entry) {
+        Set<Entry> ancestors = new HashSet<Entry>();
+        ArrayDeque<Entry> pending = new ArrayDeque<Entry>(entry.parents);
+        while (!pending.isEmpty()) {
+            Entry ancestor = pending.pop();
+            if (ancestor != entry && ancestors.add(ancestor)) {
+                pending.addAll(ancestor.parents);
+            }
+        }
+        return ancestors;
+    }
+
+    /** @return every pooled transaction that depends on one of {@code entries}, excluding those */
+    private static Set<Entry> getDescendants(List<Entry> entries) {
+        Set<Entry> descendants = new HashSet<Entry>();
+        ArrayDeque<Entry> pending = new ArrayDeque<Entry>();
+        for (Entry entry : entries)
+            pending.addAll(entry.children);
+        while (!pending.isEmpty()) {
+            Entry descendant = pending.pop();
+            if (descendants.add(descendant)) {
+                pending.addAll(descendant.children);
+            }
+        }
+        descendants.removeAll(entries);
+        return descendants;
+    }
+
+    /** Orders scores from the highest fee rate down, then by hash */
+    private static int compareScores(double feeA, long sizeA, byte[] hashA, double feeB, long sizeB, byte[] hashB) {
+        int byFeeRate = Double.compare(feeRate(feeB, sizeB), feeRate(feeA, sizeA));
+        return byFeeRate != 0 ? byFeeRate : compareHashes(hashA, hashB);
+    }
+
+    private static double feeRate(double fee, long size) {
+        return size == 0 ? fee : fee / size;
+    }
+
+    private static int compareHashes(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return Byte.compare(a[i], b[i]);
+            }
+        }
+        return Integer.compare(a.length, b.length);
+    }
+
+    /** @return the SHA-256 digest of {@code rawTx} */
+    private static byte[] digest(byte[] rawTx) {
+        MessageDigest md = Crypto.getHashDigest();
+        md.update(rawTx);
+        return md.digest();
+    }
 }
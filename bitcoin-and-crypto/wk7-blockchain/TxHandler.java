@@ -1,11 +1,21 @@
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import static java.util.Objects.requireNonNull;
+
 public class TxHandler {
+    /** Valid input signatures, shared by every ledger so that none verifies a signature twice */
+    private static final SignatureCache SIGNATURE_CACHE = new SignatureCache();
+
     protected final UTXOPool _utxoPool;
+    private TransactionPool _verifiedTxPool;
 
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
@@ -13,13 +23,37 @@ public class TxHandler {
      * constructor.
      */
     public TxHandler(UTXOPool utxoPool) {
+        this(utxoPool, true);
+    }
+
+    private TxHandler(UTXOPool utxoPool, boolean copy) {
         if (utxoPool == null) {
             _utxoPool = new UTXOPool();
-        } else {
+        } else if (copy) {
             _utxoPool = new UTXOPool(utxoPool);
+        } else {
+            _utxoPool = utxoPool;
         }
     }
 
+    /**
+     * Creates a ledger that applies accepted transactions to {@code utxoPool} itself rather than to
+     * a copy. Callers that only want to try the transactions can take a {@link UTXOPool#checkpoint}
+     * first and roll back to it afterwards.
+     */
+    public static TxHandler applyingTo(UTXOPool utxoPool) {
+        return new TxHandler(requireNonNull(utxoPool), false);
+    }
+
+    /**
+     * Lets {@link #handleTxs} skip the signature check of the inputs of transactions that
+     * {@code txPool} verified on admission, as long as each input still claims an output with the
+     * address its signature was verified against. Only the UTXO set is checked again for those.
+     */
+    public void trustSignaturesVerifiedBy(TransactionPool txPool) {
+        _verifiedTxPool = txPool;
+    }
+
     public UTXOPool getUTXOPool() {
         return _utxoPool;
     }
@@ -34,6 +68,17 @@ public class TxHandler {
      *     values; and false otherwise.
      */
     public boolean isValidTx(Transaction tx) {
+        return isValidTx(tx, null, null);
+    }
+
+    /**
+     * Same checks as {@link #isValidTx(Transaction)}, but reuses the signature results computed ahead of
+     * time for inputs whose claimed output is still the one the signature was verified against.
+     */
+    private boolean isValidTx(
+            Transaction tx,
+            Transaction.Output[] verifiedOutputs,
+            boolean[] verifiedSignatures) {
         double inputSum = 0.0;
         double outputSum = 0.0;
 
@@ -71,13 +116,21 @@ public class TxHandler {
                 claimedUTXOs.add(claimedUTXO);
             }
 
-            byte[] inputTransactionData = tx.getRawDataToSign(inputIndex);
             PublicKey publicKey = inputUTXOTransactionOutput.address;
-            byte[] inputSignature = transactionInput.signature;
 
-            // (3) All input signatures are valid
-            if (!Crypto.verifySignature(publicKey, inputTransactionData, inputSignature)) {
-                return false;
+            // (2) All input signatures are valid
+            if (verifiedOutputs != null && verifiedOutputs[inputIndex] == inputUTXOTransactionOutput) {
+                if (!verifiedSignatures[inputIndex]) {
+                    return false;
+                }
+            } else {
+                byte[] message = tx.getRawDataToSign(inputIndex);
+                if (!SIGNATURE_CACHE.isVerified(publicKey, message, transactionInput.signature)) {
+                    if (!Crypto.verifySignature(publicKey, message, transactionInput.signature)) {
+                        return false;
+                    }
+                    SIGNATURE_CACHE.putVerified(publicKey, message, transactionInput.signature);
+                }
             }
         }
 
@@ -89,14 +142,27 @@ public class TxHandler {
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
      * updating the current UTXO pool as appropriate.
+     *
+     * <p>
+     * Validation is pipelined: every input signature of every candidate transaction is verified up
+     * front as one {@link Crypto#verifyBatch} call, and the cheap, order-dependent UTXO bookkeeping then
+     * runs in a single sequential pass. The accepted transactions are exactly those of a purely
+     * sequential pass.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
         List<Transaction> validTransactions = new ArrayList<>(possibleTxs.length);
 
+        Transaction.Output[][] verifiedOutputs = new Transaction.Output[possibleTxs.length][];
+        boolean[][] verifiedSignatures = new boolean[possibleTxs.length][];
+        verifySignatures(possibleTxs, verifiedOutputs, verifiedSignatures);
+
         for (int transactionIndex = 0; transactionIndex < possibleTxs.length; transactionIndex++) {
             Transaction currentTransaction = possibleTxs[transactionIndex];
 
-            if (isValidTx(currentTransaction)) {
+            if (isValidTx(
+                    currentTransaction,
+                    verifiedOutputs[transactionIndex],
+                    verifiedSignatures[transactionIndex])) {
                 validTransactions.add(currentTransaction);
 
                 for (int inputIndex = 0; inputIndex < currentTransaction.numInputs(); inputIndex++) {
@@ -117,4 +183,98 @@ public class TxHandler {
 
         return validTransactions.toArray(new Transaction[0]);
     }
+
+    /**
+     * Verifies the signature of every input of {@code possibleTxs} whose claimed output can be found
+     * in the current UTXO pool or among the outputs of {@code possibleTxs} themselves, unless the
+     * trusted transaction pool or the signature cache already vouches for it under the same
+     * address. For each transaction, {@code verifiedOutputs} records the output each signature was
+     * checked against (or null if it was not checked) and {@code verifiedSignatures} records the
+     * result.
+     */
+    private void verifySignatures(
+            Transaction[] possibleTxs,
+            Transaction.Output[][] verifiedOutputs,
+            boolean[][] verifiedSignatures) {
+        Map<UTXO, Transaction.Output> candidateOutputs = new HashMap<>();
+        int inputCount = 0;
+
+        for (Transaction possibleTx : possibleTxs) {
+            inputCount += possibleTx.numInputs();
+
+            if (possibleTx.getHash() == null) {
+                continue;
+            }
+
+            for (int outputIndex = 0; outputIndex < possibleTx.numOutputs(); outputIndex++) {
+                candidateOutputs.putIfAbsent(
+                        new UTXO(possibleTx.getHash(), outputIndex),
+                        possibleTx.getOutput(outputIndex));
+            }
+        }
+
+        int[] jobTransactionIndices = new int[inputCount];
+        int[] jobInputIndices = new int[inputCount];
+        PublicKey[] jobKeys = new PublicKey[inputCount];
+        byte[][] jobMessages = new byte[inputCount][];
+        byte[][] jobSignatures = new byte[inputCount][];
+        int jobCount = 0;
+
+        for (int transactionIndex = 0; transactionIndex < possibleTxs.length; transactionIndex++) {
+            Transaction possibleTx = possibleTxs[transactionIndex];
+            verifiedOutputs[transactionIndex] = new Transaction.Output[possibleTx.numInputs()];
+            verifiedSignatures[transactionIndex] = new boolean[possibleTx.numInputs()];
+            PublicKey[] verifiedAddresses =
+                    _verifiedTxPool == null ? null : _verifiedTxPool.getVerifiedAddresses(possibleTx);
+
+            for (int inputIndex = 0; inputIndex < possibleTx.numInputs(); inputIndex++) {
+                Transaction.Input input = possibleTx.getInput(inputIndex);
+
+                if (input.prevTxHash == null) {
+                    continue;
+                }
+
+                UTXO claimedUTXO = new UTXO(input.prevTxHash, input.outputIndex);
+                Transaction.Output claimedOutput = _utxoPool.getTxOutput(claimedUTXO);
+
+                if (claimedOutput == null) {
+                    claimedOutput = candidateOutputs.get(claimedUTXO);
+                }
+
+                if (claimedOutput == null) {
+                    continue;
+                }
+
+                verifiedOutputs[transactionIndex][inputIndex] = claimedOutput;
+                if (verifiedAddresses != null && claimedOutput.address.equals(verifiedAddresses[inputIndex])) {
+                    verifiedSignatures[transactionIndex][inputIndex] = true;
+                    continue;
+                }
+
+                byte[] message = possibleTx.getRawDataToSign(inputIndex);
+                if (SIGNATURE_CACHE.isVerified(claimedOutput.address, message, input.signature)) {
+                    verifiedSignatures[transactionIndex][inputIndex] = true;
+                } else {
+                    jobTransactionIndices[jobCount] = transactionIndex;
+                    jobInputIndices[jobCount] = inputIndex;
+                    jobKeys[jobCount] = claimedOutput.address;
+                    jobMessages[jobCount] = message;
+                    jobSignatures[jobCount] = input.signature;
+                    jobCount++;
+                }
+            }
+        }
+
+        BitSet validSignatures = Crypto.verifyBatch(
+                Arrays.copyOf(jobKeys, jobCount),
+                Arrays.copyOf(jobMessages, jobCount),
+                Arrays.copyOf(jobSignatures, jobCount));
+
+        for (int job = 0; job < jobCount; job++) {
+            verifiedSignatures[jobTransactionIndices[job]][jobInputIndices[job]] = validSignatures.get(job);
+            if (validSignatures.get(job)) {
+                SIGNATURE_CACHE.putVerified(jobKeys[job], jobMessages[job], jobSignatures[job]);
+            }
+        }
+    }
 }
@@ -1,32 +1,173 @@
+
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Set;
+import java.util.function.BiConsumer;
 
 public class UTXOPool {
 
+    /** Once a pool sits on more than this many frozen layers, copying it merges the newest ones */
+    private static final int MAX_LAYER_DEPTH = 16;
+
     /**
-     * The current collection of UTXOs, with each one mapped to its corresponding transaction output
+     * An immutable set of changes shared by every pool copied from the pool that produced it. A
+     * {@code null} output records that the UTXO was removed relative to {@code parent}. The bottom
+     * layer may instead read through a {@link DiskUTXOStore}.
      */
-    private HashMap<UTXO, Transaction.Output> H;
+    private static final class Layer {
+        private final UTXOTable entries;
+        private final DiskUTXOStore store;
+        private final Layer parent;
+        private final int depth;
+
+        private Layer(UTXOTable entries, Layer parent) {
+            this.entries = entries;
+            this.store = null;
+            this.parent = parent;
+            this.depth = parent == null ? 1 : parent.depth + 1;
+        }
+
+        private Layer(DiskUTXOStore store) {
+            this.entries = null;
+            this.store = store;
+            this.parent = null;
+            this.depth = 1;
+        }
+
+        private Layer storeLayer() {
+            Layer layer = this;
+            while (layer.parent != null) {
+                layer = layer.parent;
+            }
+            return layer.store == null ? null : layer;
+        }
+    }
+
+    /**
+     * The changes made to this pool since it was last copied, with each UTXO mapped to its
+     * corresponding transaction output, or to {@code null} if it was removed from {@code base}
+     */
+    private UTXOTable H;
+
+    /** The frozen state this pool was copied from, shared structurally with other pools */
+    private Layer base;
+
+    /**
+     * While changes are journaled, the UTXOs changed since the first checkpoint, in order, each
+     * with the output it mapped to before the change, or {@code null} if it was not in the pool
+     */
+    private ArrayList<UTXO> undoUTXOs;
+    private ArrayList<Transaction.Output> undoOutputs;
 
     /** Creates a new empty UTXOPool */
     public UTXOPool() {
-        H = new HashMap<UTXO, Transaction.Output>();
+        H = new UTXOTable();
     }
 
-    /** Creates a new UTXOPool that is a copy of {@code uPool} */
+    /**
+     * Creates a new UTXOPool that is a copy of {@code uPool}. The copy is made in time proportional
+     * to the changes {@code uPool} received since it was last copied, not to the size of the pool:
+     * both pools afterwards share those changes as a frozen layer.
+     */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        uPool.freeze();
+        H = new UTXOTable();
+        base = uPool.base;
+    }
+
+    /**
+     * Creates a new UTXOPool whose contents are those of {@code store}, read through on demand
+     * rather than loaded onto the heap. Changes made to the pool, or to copies of it, stay on the
+     * heap and do not reach {@code store}. Changes later made to {@code store} directly show through
+     * every such pool, except where the pool itself has added or removed the same UTXO.
+     */
+    public UTXOPool(DiskUTXOStore store) {
+        H = new UTXOTable();
+        base = new Layer(store);
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        journal(utxo);
         H.put(utxo, txOut);
     }
 
     /** Removes the UTXO {@code utxo} from the pool */
     public void removeUTXO(UTXO utxo) {
-        H.remove(utxo);
+        journal(utxo);
+        remove(utxo);
+    }
+
+    /**
+     * Starts journaling changes to the pool, if it was not already, so they can be undone.
+     *
+     * @return a checkpoint to pass to {@link #rollback} to undo every change made after this call
+     */
+    public int checkpoint() {
+        if (undoUTXOs == null) {
+            undoUTXOs = new ArrayList<UTXO>();
+            undoOutputs = new ArrayList<Transaction.Output>();
+        }
+        return undoUTXOs.size();
+    }
+
+    /**
+     * Undoes every change made since {@code checkpoint} was taken, in time proportional to the
+     * number of changes. Journaling continues, so earlier checkpoints stay valid.
+     */
+    public void rollback(int checkpoint) {
+        if (undoUTXOs == null || checkpoint < 0 || checkpoint > undoUTXOs.size()) {
+            throw new IllegalArgumentException("Checkpoint " + checkpoint + " is not in the journal.");
+        }
+        for (int i = undoUTXOs.size() - 1; i >= checkpoint; i--) {
+            UTXO utxo = undoUTXOs.remove(i);
+            Transaction.Output txOut = undoOutputs.remove(i);
+            if (txOut == null) {
+                remove(utxo);
+            } else {
+                H.put(utxo, txOut);
+            }
+        }
+    }
+
+    /** Keeps every change made since the first checkpoint and stops journaling */
+    public void commit() {
+        undoUTXOs = null;
+        undoOutputs = null;
+    }
+
+    /**
+     * Passes each UTXO changed since {@code checkpoint} to {@code action} once, in the order they were
+     * first changed, with the output it mapped to when the checkpoint was taken, or {@code null} if
+     * it was not in the pool
+     */
+    void forEachChangeSince(int checkpoint, BiConsumer<UTXO, Transaction.Output> action) {
+        if (undoUTXOs == null || checkpoint < 0 || checkpoint > undoUTXOs.size()) {
+            throw new IllegalArgumentException("Checkpoint " + checkpoint + " is not in the journal.");
+        }
+        Set<UTXO> seenUTXO = new HashSet<UTXO>();
+        for (int i = checkpoint; i < undoUTXOs.size(); i++) {
+            if (seenUTXO.add(undoUTXOs.get(i))) {
+                action.accept(undoUTXOs.get(i), undoOutputs.get(i));
+            }
+        }
+    }
+
+    private void journal(UTXO utxo) {
+        if (undoUTXOs != null) {
+            undoUTXOs.add(utxo);
+            undoOutputs.add(getTxOutput(utxo));
+        }
+    }
+
+    private void remove(UTXO utxo) {
+        // Over a store, the removal must be recorded even if the store does not hold the UTXO yet,
+        // since it may receive it later
+        if (base != null && (base.storeLayer() != null || getFrozenTxOutput(utxo) != null)) {
+            H.put(utxo, null);
+        } else {
+            H.remove(utxo);
+        }
     }
 
     /**
@@ -34,21 +175,108 @@ public class UTXOPool {
      *         not in the pool.
      */
     public Transaction.Output getTxOutput(UTXO ut) {
-        return H.get(ut);
+        Transaction.Output txOut = H.get(ut);
+        if (txOut != null || H.containsKey(ut)) {
+            return txOut;
+        }
+        return getFrozenTxOutput(ut);
     }
 
     /** @return true if UTXO {@code utxo} is in the pool and false otherwise */
     public boolean contains(UTXO utxo) {
-        return H.containsKey(utxo);
+        return getTxOutput(utxo) != null;
     }
 
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
+        Set<UTXO> seenUTXO = new HashSet<UTXO>();
         ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
-        for (UTXO ut : setUTXO) {
-            allUTXO.add(ut);
+        collectUTXO(H, seenUTXO, allUTXO);
+        for (Layer layer = base; layer != null; layer = layer.parent) {
+            if (layer.store != null) {
+                layer.store.forEach((utxo, txOut) -> {
+                    if (seenUTXO.add(utxo)) {
+                        allUTXO.add(utxo);
+                    }
+                });
+            } else {
+                collectUTXO(layer.entries, seenUTXO, allUTXO);
+            }
         }
         return allUTXO;
     }
+
+    private static void collectUTXO(UTXOTable entries, Set<UTXO> seenUTXO, ArrayList<UTXO> allUTXO) {
+        entries.forEach((utxo, txOut) -> {
+            if (seenUTXO.add(utxo) && txOut != null) {
+                allUTXO.add(utxo);
+            }
+        });
+    }
+
+    private Transaction.Output getFrozenTxOutput(UTXO ut) {
+        for (Layer layer = base; layer != null; layer = layer.parent) {
+            if (layer.store != null) {
+                return layer.store.getTxOutput(ut);
+            }
+            Transaction.Output txOut = layer.entries.get(ut);
+            if (txOut != null || layer.entries.containsKey(ut)) {
+                return txOut;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves the pending changes of this pool into a new frozen layer, so they can be shared with a
+     * copy. A pool with no pending changes is left untouched, which keeps copying an already frozen
+     * pool free of writes.
+     */
+    private void freeze() {
+        if (H.isEmpty()) {
+            return;
+        }
+
+        base = new Layer(H, base);
+        H = new UTXOTable();
+
+        if (base.depth > MAX_LAYER_DEPTH) {
+            base = flatten(base);
+        }
+    }
+
+    /**
+     * Merges the newest layers from {@code top} down, at least two, and every older layer that
+     * holds no more entries than those merged above it. The large layers at the bottom are shared
+     * rather than copied until enough changes pile up above them, so each entry is copied about
+     * {@code log n} times in all, rather than the whole pool every few copies.
+     *
+     * @return a layer holding exactly the UTXOs visible through the merged layers, on top of the
+     *         unmerged ones
+     */
+    private static Layer flatten(Layer top) {
+        ArrayList<Layer> layers = new ArrayList<Layer>();
+        long mergedSize = 0;
+        Layer parent = top;
+        while (parent != null && parent.store == null
+                && (layers.size() < 2 || parent.entries.size() <= mergedSize)) {
+            layers.add(parent);
+            mergedSize += parent.entries.size();
+            parent = parent.parent;
+        }
+
+        // A removal only needs to be kept while there is a layer below that may hold the UTXO
+        boolean keepRemovals = parent != null;
+        UTXOTable entries = new UTXOTable();
+        for (int i = layers.size() - 1; i >= 0; i--) {
+            layers.get(i).entries.forEach((utxo, txOut) -> {
+                if (txOut == null && !keepRemovals) {
+                    entries.remove(utxo);
+                } else {
+                    entries.put(utxo, txOut);
+                }
+            });
+        }
+        return new Layer(entries, parent);
+    }
 }
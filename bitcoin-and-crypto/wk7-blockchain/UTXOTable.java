@@ -0,0 +1,228 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * An open-addressing map from UTXO to transaction output with the same contract as the
+ * {@code HashMap} it replaces in {@link UTXOPool}, including {@code null} values.
+ *
+ * <p>
+ * UTXOs whose transaction hash is a 32-byte SHA-256 digest are stored without any per-entry
+ * objects: the first 8 bytes of the hash and the output index sit in parallel primitive arrays and
+ * are all that a probe compares, and the full hash is kept in one flat byte array that is only
+ * consulted when those match. UTXOs with a hash of any other length fall back to a side map.
+ */
+class UTXOTable {
+
+    private static final int HASH_LENGTH = 32;
+    private static final int INITIAL_CAPACITY = 8;
+    private static final long HASH_MIXER = 0x9E3779B97F4A7C15L;
+
+    /** Stands in for a {@code null} output, since a {@code null} slot means the slot is empty */
+    private static final Object NULL_OUTPUT = new Object();
+
+    private long[] _prefixes;
+    private int[] _indices;
+    private byte[] _hashes;
+    private Object[] _outputs;
+    private int _size;
+
+    private Map<UTXO, Transaction.Output> _irregular;
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int size() {
+        return _size + (_irregular == null ? 0 : _irregular.size());
+    }
+
+    public boolean containsKey(UTXO utxo) {
+        if (utxo.getTxHash().length != HASH_LENGTH) {
+            return _irregular != null && _irregular.containsKey(utxo);
+        }
+        return findSlot(utxo.getTxHash(), utxo.getIndex()) >= 0;
+    }
+
+    /** @return the output mapped to {@code utxo}, or null if there is none or it is mapped to null */
+    public Transaction.Output get(UTXO utxo) {
+        if (utxo.getTxHash().length != HASH_LENGTH) {
+            return _irregular == null ? null : _irregular.get(utxo);
+        }
+
+        int slot = findSlot(utxo.getTxHash(), utxo.getIndex());
+        return slot < 0 ? null : unmask(_outputs[slot]);
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        byte[] txHash = utxo.getTxHash();
+        if (txHash.length != HASH_LENGTH) {
+            if (_irregular == null) {
+                _irregular = new HashMap<>();
+            }
+            _irregular.put(utxo, txOut);
+            return;
+        }
+
+        if (_outputs == null) {
+            allocate(INITIAL_CAPACITY);
+        } else if ((_size + 1) * 3 > _outputs.length * 2) {
+            resize(_outputs.length * 2);
+        }
+
+        long prefix = prefixOf(txHash);
+        int index = utxo.getIndex();
+        int mask = _outputs.length - 1;
+
+        for (int slot = slotOf(prefix, index, mask); ; slot = (slot + 1) & mask) {
+            if (_outputs[slot] == null) {
+                _prefixes[slot] = prefix;
+                _indices[slot] = index;
+                System.arraycopy(txHash, 0, _hashes, slot * HASH_LENGTH, HASH_LENGTH);
+                _outputs[slot] = mask(txOut);
+                _size++;
+                return;
+            }
+            if (matches(slot, prefix, index, txHash)) {
+                _outputs[slot] = mask(txOut);
+                return;
+            }
+        }
+    }
+
+    public void remove(UTXO utxo) {
+        if (utxo.getTxHash().length != HASH_LENGTH) {
+            if (_irregular != null) {
+                _irregular.remove(utxo);
+            }
+            return;
+        }
+
+        int slot = findSlot(utxo.getTxHash(), utxo.getIndex());
+        if (slot < 0) {
+            return;
+        }
+
+        // Backward-shift deletion: pull later entries of the probe run into the hole so that no
+        // tombstones are needed and lookups can stop at the first empty slot
+        int mask = _outputs.length - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; _outputs[next] != null; next = (next + 1) & mask) {
+            int home = slotOf(_prefixes[next], _indices[next], mask);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                moveSlot(next, hole);
+                hole = next;
+            }
+        }
+        _outputs[hole] = null;
+        _size--;
+    }
+
+    /** Calls {@code action} for every mapping, creating a {@code UTXO} for each one */
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        if (_outputs != null) {
+            for (int slot = 0; slot < _outputs.length; slot++) {
+                if (_outputs[slot] != null) {
+                    byte[] txHash = Arrays.copyOfRange(
+                            _hashes, slot * HASH_LENGTH, (slot + 1) * HASH_LENGTH);
+                    action.accept(new UTXO(txHash, _indices[slot]), unmask(_outputs[slot]));
+                }
+            }
+        }
+        if (_irregular != null) {
+            _irregular.forEach(action);
+        }
+    }
+
+    private int findSlot(byte[] txHash, int index) {
+        if (_outputs == null) {
+            return -1;
+        }
+
+        long prefix = prefixOf(txHash);
+        int mask = _outputs.length - 1;
+
+        for (int slot = slotOf(prefix, index, mask); _outputs[slot] != null; slot = (slot + 1) & mask) {
+            if (matches(slot, prefix, index, txHash)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private boolean matches(int slot, long prefix, int index, byte[] txHash) {
+        if (_prefixes[slot] != prefix || _indices[slot] != index) {
+            return false;
+        }
+
+        int offset = slot * HASH_LENGTH;
+        for (int i = 8; i < HASH_LENGTH; i++) {
+            if (_hashes[offset + i] != txHash[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void moveSlot(int from, int to) {
+        _prefixes[to] = _prefixes[from];
+        _indices[to] = _indices[from];
+        System.arraycopy(_hashes, from * HASH_LENGTH, _hashes, to * HASH_LENGTH, HASH_LENGTH);
+        _outputs[to] = _outputs[from];
+    }
+
+    private void allocate(int capacity) {
+        _prefixes = new long[capacity];
+        _indices = new int[capacity];
+        _hashes = new byte[capacity * HASH_LENGTH];
+        _outputs = new Object[capacity];
+    }
+
+    private void resize(int capacity) {
+        long[] prefixes = _prefixes;
+        int[] indices = _indices;
+        byte[] hashes = _hashes;
+        Object[] outputs = _outputs;
+
+        allocate(capacity);
+        int mask = capacity - 1;
+
+        for (int from = 0; from < outputs.length; from++) {
+            if (outputs[from] == null) {
+                continue;
+            }
+
+            int to = slotOf(prefixes[from], indices[from], mask);
+            while (_outputs[to] != null) {
+                to = (to + 1) & mask;
+            }
+            _prefixes[to] = prefixes[from];
+            _indices[to] = indices[from];
+            System.arraycopy(hashes, from * HASH_LENGTH, _hashes, to * HASH_LENGTH, HASH_LENGTH);
+            _outputs[to] = outputs[from];
+        }
+    }
+
+    private static int slotOf(long prefix, int index, int mask) {
+        long mixed = (prefix ^ index) * HASH_MIXER;
+        return (int) (mixed >>> 32) & mask;
+    }
+
+    /** @return the first 8 bytes of {@code txHash}, read big-endian */
+    private static long prefixOf(byte[] txHash) {
+        long prefix = 0;
+        for (int i = 0; i < 8; i++) {
+            prefix = (prefix << 8) | (txHash[i] & 0xFF);
+        }
+        return prefix;
+    }
+
+    private static Object mask(Transaction.Output txOut) {
+        return txOut == null ? NULL_OUTPUT : txOut;
+    }
+
+    private static Transaction.Output unmask(Object output) {
+        return output == NULL_OUTPUT ? null : (Transaction.Output) output;
+    }
+}
@@ -0,0 +1,378 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class BlockChainTest {
+
+    private static int _spendCount;
+
+    public static void main(String[] args) throws Exception {
+        TestSupport.run("orphans are added once their parent arrives", BlockChainTest::orphansConnectInOrder);
+        TestSupport.run("blocks on a pruned parent are rejected, not held as orphans",
+                BlockChainTest::blocksBelowCutoffAreRejected);
+        TestSupport.run("orphans waiting on a rejected block are dropped", BlockChainTest::orphansOfRejectedAreDropped);
+        TestSupport.run("a reorganization leaves exactly the UTXO set of the new chain",
+                BlockChainTest::reorganizationRestoresUTXOSet);
+        TestSupport.run("pruned blocks stay readable from the block store", BlockChainTest::keepsPrunedBlocksOnDisk);
+        TestSupport.run("a memory budget retains at least the max height", BlockChainTest::memoryBudgetKeepsTip);
+        TestSupport.run("keeping pruned blocks on disk needs a block store", BlockChainTest::keepOnDiskNeedsStore);
+        TestSupport.run("a chain over a UTXO store matches one on the heap",
+                BlockChainTest::utxoStoreMatchesHeap);
+        TestSupport.run("a chain resumes from its UTXO store", BlockChainTest::resumesFromUTXOStore);
+        TestSupport.run("a chain restored from its block store keeps the retained forks",
+                BlockChainTest::restoresRetainedWindow);
+        TestSupport.run("a tip snapshot keeps its block and UTXO set together", BlockChainTest::tipSnapshotIsConsistent);
+    }
+
+    private static void orphansConnectInOrder() {
+        Block genesis = genesis();
+        BlockChain blockChain = new BlockChain(genesis);
+        List<Block> chain = extend(genesis, 8, 1);
+
+        for (int i = chain.size() - 1; i >= 1; i--) {
+            TestSupport.check(!blockChain.addBlock(chain.get(i)), "block " + i + " waits for its parent");
+        }
+        TestSupport.check(blockChain.getOrphanBlockPool().size() == 7, "held as orphans");
+        TestSupport.check(blockChain.addBlock(chain.get(0)), "parent added");
+        TestSupport.check(Arrays.equals(blockChain.getMaxHeightBlock().getHash(), chain.get(7).getHash()),
+                "every orphan connected");
+        TestSupport.check(blockChain.getOrphanBlockPool().size() == 0, "orphan pool drained");
+    }
+
+    private static void blocksBelowCutoffAreRejected() throws InterruptedException {
+        Block genesis = genesis();
+        BlockChain blockChain = new BlockChain(genesis);
+        List<Block> chain = extend(genesis, BlockChain.CUT_OFF_AGE + 2, 1);
+        for (Block block : chain) {
+            TestSupport.check(blockChain.addBlock(block), "chain block added");
+        }
+        awaitPruned(blockChain, chain.get(0));
+
+        // chain.get(0) is at height 2, below the lowest retained height of 3. Block hashes leave out
+        // the coinbase, so the forks carry a transaction to differ from the chain's empty blocks.
+        Block onPruned = TestSupport.block(chain.get(0), 2, spendGenesis(genesis));
+        TestSupport.check(!blockChain.addBlock(onPruned), "block on a pruned parent rejected");
+        TestSupport.check(blockChain.getOrphanBlockPool().size() == 0, "and not held as an orphan");
+
+        Block onRejected = TestSupport.block(onPruned, 2);
+        TestSupport.check(!blockChain.addBlock(onRejected), "block on a rejected parent rejected");
+        TestSupport.check(blockChain.getOrphanBlockPool().size() == 0, "nor its child");
+
+        Block onRetained = TestSupport.block(chain.get(1), 2, spendGenesis(genesis));
+        TestSupport.check(blockChain.addBlock(onRetained), "block on the lowest retained height accepted");
+    }
+
+    private static void orphansOfRejectedAreDropped() throws InterruptedException {
+        Block genesis = genesis();
+        BlockChain blockChain = new BlockChain(genesis);
+        List<Block> chain = extend(genesis, BlockChain.CUT_OFF_AGE + 2, 1);
+        for (Block block : chain) {
+            blockChain.addBlock(block);
+        }
+        awaitPruned(blockChain, chain.get(0));
+
+        // The child arrives first, while its parent's fate is still unknown
+        Block tooOld = TestSupport.block(chain.get(0), 3, spendGenesis(genesis));
+        Block child = TestSupport.block(tooOld, 3);
+        Block grandchild = TestSupport.block(child, 3);
+        TestSupport.check(!blockChain.addBlock(grandchild), "grandchild waits");
+        TestSupport.check(!blockChain.addBlock(child), "child waits");
+        TestSupport.check(blockChain.getOrphanBlockPool().size() == 2, "both held");
+
+        TestSupport.check(!blockChain.addBlock(tooOld), "parent below the cutoff rejected");
+        TestSupport.check(blockChain.getOrphanBlockPool().size() == 0, "its descendants dropped with it");
+    }
+
+    private static void reorganizationRestoresUTXOSet() {
+        Block genesis = genesis();
+        BlockChain blockChain = new BlockChain(genesis);
+
+        // Fork a spends the genesis coinbase, fork b does not
+        Transaction spend = TestSupport.spend(0, genesis.getCoinbase().getHash(), 0, 1, 10, 15);
+        Block a1 = TestSupport.block(genesis, 1, spend);
+        Transaction spendChange = TestSupport.spend(1, spend.getHash(), 1, 3, 15);
+        List<Block> forkA = new ArrayList<>(Arrays.asList(a1, TestSupport.block(a1, 1, spendChange)));
+        List<Block> forkB = extend(genesis, 3, 2);
+
+        for (Block block : forkA) {
+            TestSupport.check(blockChain.addBlock(block), "fork a block added");
+        }
+        Map<UTXO, Transaction.Output> onA = utxos(blockChain.getMaxHeightUTXOPool());
+        TestSupport.check(onA.equals(utxosOf(genesis, forkA)), "UTXO set of fork a");
+
+        TestSupport.check(blockChain.addBlock(forkB.get(0)), "shorter fork b block added");
+        TestSupport.check(blockChain.addBlock(forkB.get(1)), "equal length fork b block added");
+        TestSupport.check(utxos(blockChain.getMaxHeightUTXOPool()).equals(onA), "tip stays on fork a");
+
+        TestSupport.check(blockChain.addBlock(forkB.get(2)), "longer fork b block added");
+        TestSupport.check(Arrays.equals(blockChain.getMaxHeightBlock().getHash(), forkB.get(2).getHash()),
+                "tip moved to fork b");
+        TestSupport.check(utxos(blockChain.getMaxHeightUTXOPool()).equals(utxosOf(genesis, forkB)),
+                "fork a undone and fork b applied");
+
+        forkA.addAll(extend(forkA.get(1), 2, 1));
+        TestSupport.check(blockChain.addBlock(forkA.get(2)) && blockChain.addBlock(forkA.get(3)),
+                "fork a extended past fork b");
+        TestSupport.check(utxos(blockChain.getMaxHeightUTXOPool()).equals(utxosOf(genesis, forkA)),
+                "fork b undone and fork a replayed");
+    }
+
+    private static void keepsPrunedBlocksOnDisk() throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("block-chain-test");
+        try (BlockStore blockStore = new BlockStore(directory)) {
+            Block genesis = genesis();
+            BlockChain blockChain = new BlockChain(genesis, blockStore, RetentionPolicy.keepOnDisk(3));
+            List<Block> chain = extend(genesis, 12, 1);
+            for (Block block : chain) {
+                TestSupport.check(blockChain.addBlock(block), "chain block added");
+            }
+            // The max height is 13, so heights 10 and up are retained and chain.get(8) is at 10.
+            // Pruned blocks read the same as retained ones, so pruning may or may not have run yet.
+            TestSupport.check(!blockChain.addBlock(TestSupport.block(chain.get(7), 2, spendGenesis(genesis))),
+                    "block below the retained heights rejected");
+            TestSupport.check(blockChain.addBlock(TestSupport.block(chain.get(8), 2, spendGenesis(genesis))),
+                    "block on the lowest retained height accepted");
+
+            TestSupport.check(Arrays.equals(blockChain.getBlock(genesis.getHash()).getHash(), genesis.getHash()),
+                    "genesis read from disk");
+            TestSupport.check(Arrays.equals(blockChain.getBlock(chain.get(2).getHash()).getHash(),
+                    chain.get(2).getHash()), "pruned block read from disk");
+            TestSupport.check(blockStore.getHeight(chain.get(2).getHash()) == 4, "and stored at its height");
+        } finally {
+            TestSupport.deleteRecursively(directory);
+        }
+    }
+
+    private static void memoryBudgetKeepsTip() throws InterruptedException {
+        Block genesis = genesis();
+        BlockChain blockChain = new BlockChain(genesis, null, RetentionPolicy.byMemoryBudget(1));
+        List<Block> chain = extend(genesis, 5, 1);
+        for (Block block : chain) {
+            TestSupport.check(blockChain.addBlock(block), "chain block added");
+        }
+        awaitPruned(blockChain, chain.get(3));
+
+        TestSupport.check(!blockChain.addBlock(TestSupport.block(chain.get(3), 2, spendGenesis(genesis))),
+                "fork below the tip rejected");
+        TestSupport.check(blockChain.getBlock(genesis.getHash()) == null, "genesis pruned without a block store");
+        TestSupport.check(blockChain.addBlock(TestSupport.block(chain.get(4), 1)), "tip still extended");
+    }
+
+    private static void keepOnDiskNeedsStore() {
+        try {
+            new BlockChain(genesis(), null, RetentionPolicy.keepOnDisk(3));
+            TestSupport.check(false, "chain created without a block store");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static void utxoStoreMatchesHeap() throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("block-chain-test");
+        try (DiskUTXOStore utxoStore = new DiskUTXOStore(directory, 16)) {
+            Block genesis = genesis();
+            BlockChain onHeap = new BlockChain(genesis);
+            BlockChain onStore = new BlockChain(genesis, null, RetentionPolicy.byDepth(BlockChain.CUT_OFF_AGE), utxoStore);
+
+            List<Block> chain = spendingChain(genesis, genesis.getCoinbase(), 0, 1, 14);
+            // Longer than the chain from where it forks, so adding it reorganizes
+            Block forkPoint = chain.get(9);
+            List<Block> fork = spendingChain(forkPoint, forkPoint.getTransactions().get(0), 1, 2, 6);
+
+            UTXOPool copy = null;
+            Map<UTXO, Transaction.Output> copyUTXOs = null;
+            for (Block block : concat(chain, fork)) {
+                TestSupport.check(onHeap.addBlock(block) && onStore.addBlock(block), "block added to both");
+                TestSupport.check(utxos(onStore.getMaxHeightUTXOPool()).equals(utxos(onHeap.getMaxHeightUTXOPool())),
+                        "same UTXO set after each block");
+                if (block == chain.get(5)) {
+                    copy = onStore.getMaxHeightUTXOPool();
+                    copyUTXOs = utxos(copy);
+                }
+            }
+
+            // The fork ends at height 17, so the lowest retained height is 7, that of chain.get(5)
+            awaitUTXOStoreHeight(utxoStore, 7);
+            TestSupport.check(Arrays.equals(utxoStore.getBlockHash(), chain.get(5).getHash()),
+                    "store on the lowest retained block");
+            TestSupport.check(utxos(onStore.getMaxHeightUTXOPool()).equals(utxos(onHeap.getMaxHeightUTXOPool())),
+                    "same UTXO set once flushed");
+            TestSupport.check(utxos(copy).equals(copyUTXOs), "a copy made on the flushed block does not change");
+        } finally {
+            TestSupport.deleteRecursively(directory);
+        }
+    }
+
+    private static void resumesFromUTXOStore() throws IOException, InterruptedException {
+        Path blockDirectory = Files.createTempDirectory("block-chain-test");
+        Path utxoDirectory = Files.createTempDirectory("block-chain-test");
+        try {
+            Block genesis = genesis();
+            Block tip;
+            Map<UTXO, Transaction.Output> tipUTXOs;
+            try (BlockStore blockStore = new BlockStore(blockDirectory);
+                    DiskUTXOStore utxoStore = new DiskUTXOStore(utxoDirectory, 16)) {
+                BlockChain blockChain = new BlockChain(genesis, blockStore, RetentionPolicy.byDepth(BlockChain.CUT_OFF_AGE), utxoStore);
+                for (Block block : spendingChain(genesis, genesis.getCoinbase(), 0, 1, 20)) {
+                    TestSupport.check(blockChain.addBlock(block), "block added");
+                }
+                tip = blockChain.getMaxHeightBlock();
+                tipUTXOs = utxos(blockChain.getMaxHeightUTXOPool());
+                awaitUTXOStoreHeight(utxoStore, 21 - BlockChain.CUT_OFF_AGE);
+            }
+
+            try (BlockStore blockStore = new BlockStore(blockDirectory);
+                    DiskUTXOStore utxoStore = new DiskUTXOStore(utxoDirectory, 16)) {
+                TestSupport.check(utxoStore.getHeight() == 21 - BlockChain.CUT_OFF_AGE, "store reopened at its block");
+                try {
+                    new BlockChain(genesis, null, RetentionPolicy.byDepth(BlockChain.CUT_OFF_AGE), utxoStore);
+                    TestSupport.check(false, "resumed without the blocks above the store");
+                } catch (IllegalArgumentException expected) {
+                }
+
+                BlockChain blockChain = new BlockChain(genesis, blockStore, RetentionPolicy.byDepth(BlockChain.CUT_OFF_AGE), utxoStore);
+                TestSupport.check(Arrays.equals(blockChain.getMaxHeightBlock().getHash(), tip.getHash()), "same tip");
+                TestSupport.check(blockChain.getMaxHeight() == 21, "same height");
+                TestSupport.check(utxos(blockChain.getMaxHeightUTXOPool()).equals(tipUTXOs), "same UTXO set");
+                TestSupport.check(blockChain.addBlock(spendingChain(tip, tip.getTransactions().get(0), 1, 2, 1).get(0)),
+                        "tip extended");
+                awaitUTXOStoreHeight(utxoStore, 22 - BlockChain.CUT_OFF_AGE);
+            }
+        } finally {
+            TestSupport.deleteRecursively(blockDirectory);
+            TestSupport.deleteRecursively(utxoDirectory);
+        }
+    }
+
+    private static void restoresRetainedWindow() throws IOException {
+        Path blockDirectory = Files.createTempDirectory("block-chain-test");
+        Path utxoDirectory = Files.createTempDirectory("block-chain-test");
+        try (BlockStore blockStore = new BlockStore(blockDirectory);
+                DiskUTXOStore utxoStore = new DiskUTXOStore(utxoDirectory, 16)) {
+            Block genesis = genesis();
+            List<Block> chain = spendingChain(genesis, genesis.getCoinbase(), 0, 1, 20);
+            // Branches off at height 15 and reaches height 18, the lowest retained at the end
+            List<Block> fork = extend(chain.get(13), 3, 2);
+            BlockChain blockChain = new BlockChain(genesis, blockStore, RetentionPolicy.byDepth(3));
+            for (Block block : concat(concat(chain.subList(0, 17), fork), chain.subList(17, 20))) {
+                TestSupport.check(blockChain.addBlock(block), "block added");
+            }
+            Map<UTXO, Transaction.Output> tipUTXOs = utxos(blockChain.getMaxHeightUTXOPool());
+
+            BlockChain restored = new BlockChain(genesis, blockStore, RetentionPolicy.byDepth(3));
+            TestSupport.check(Arrays.equals(restored.getMaxHeightBlock().getHash(), chain.get(19).getHash()), "same tip");
+            TestSupport.check(restored.getMaxHeight() == 21, "same height");
+            TestSupport.check(utxos(restored.getMaxHeightUTXOPool()).equals(tipUTXOs), "same UTXO set");
+            TestSupport.check(restored.addBlock(TestSupport.block(fork.get(2), 2)), "retained fork extended");
+
+            BlockChain overStore = new BlockChain(genesis, blockStore, RetentionPolicy.byDepth(3), utxoStore);
+            TestSupport.check(utxoStore.getHeight() == 15, "UTXO store at the fork point");
+            TestSupport.check(Arrays.equals(overStore.getMaxHeightBlock().getHash(), chain.get(19).getHash()),
+                    "same tip over the UTXO store");
+            TestSupport.check(utxos(overStore.getMaxHeightUTXOPool()).equals(tipUTXOs), "same UTXO set over the UTXO store");
+        } finally {
+            TestSupport.deleteRecursively(blockDirectory);
+            TestSupport.deleteRecursively(utxoDirectory);
+        }
+    }
+
+    private static void tipSnapshotIsConsistent() {
+        Block genesis = genesis();
+        BlockChain blockChain = new BlockChain(genesis);
+        BlockChain.ChainTip tip = blockChain.getMaxHeightTip();
+
+        Transaction tx = spendGenesis(genesis);
+        TestSupport.check(blockChain.addBlock(TestSupport.block(genesis, 1, tx)), "block added");
+        TestSupport.check(blockChain.getMaxHeight() == 2, "chain moved on");
+
+        UTXO genesisCoinbase = new UTXO(genesis.getCoinbase().getHash(), 0);
+        TestSupport.check(tip.getBlock() == genesis && tip.getBlockHeight() == 1, "snapshot still on genesis");
+        TestSupport.check(tip.getUTXOPool().contains(genesisCoinbase), "with the UTXO set on genesis");
+        TestSupport.check(!tip.getUTXOPool().contains(new UTXO(tx.getHash(), 0)), "and nothing from the new block");
+        TestSupport.check(!blockChain.getMaxHeightTip().getUTXOPool().contains(genesisCoinbase),
+                "a new snapshot has the block's UTXO set");
+    }
+
+    /**
+     * @return {@code count} blocks, each on the one before, starting on {@code parent}. The first
+     *         block's transaction pays output 0 of {@code spendable}, which belongs to {@code owner},
+     *         to {@code recipient}, and each later one passes the output of the one before on to
+     *         {@code recipient} again.
+     */
+    private static List<Block> spendingChain(Block parent, Transaction spendable, int owner, int recipient, int count) {
+        List<Block> chain = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Transaction tx = TestSupport.spend(i == 0 ? owner : recipient, spendable.getHash(), 0, recipient, 25);
+            parent = TestSupport.block(parent, recipient, tx);
+            chain.add(parent);
+            spendable = tx;
+        }
+        return chain;
+    }
+
+    private static List<Block> concat(List<Block> first, List<Block> second) {
+        List<Block> blocks = new ArrayList<>(first);
+        blocks.addAll(second);
+        return blocks;
+    }
+
+    /** Waits for the background pruning to bring {@code utxoStore} up to {@code height} */
+    private static void awaitUTXOStoreHeight(DiskUTXOStore utxoStore, int height) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (utxoStore.getHeight() < height) {
+            TestSupport.check(System.currentTimeMillis() < deadline, "UTXO store should reach height " + height);
+            Thread.sleep(5);
+        }
+    }
+
+    /** @return the UTXO set of a chain built from just {@code genesis} and {@code blocks} */
+    private static Map<UTXO, Transaction.Output> utxosOf(Block genesis, List<Block> blocks) {
+        BlockChain blockChain = new BlockChain(genesis);
+        for (Block block : blocks) {
+            TestSupport.check(blockChain.addBlock(block), "block replayed");
+        }
+        return utxos(blockChain.getMaxHeightUTXOPool());
+    }
+
+    private static Map<UTXO, Transaction.Output> utxos(UTXOPool utxoPool) {
+        Map<UTXO, Transaction.Output> utxos = new HashMap<>();
+        for (UTXO utxo : utxoPool.getAllUTXO()) {
+            utxos.put(utxo, utxoPool.getTxOutput(utxo));
+        }
+        return utxos;
+    }
+
+    /** @return a valid transaction, unique to each call, spending the genesis coinbase */
+    private static Transaction spendGenesis(Block genesis) {
+        return TestSupport.spend(0, genesis.getCoinbase().getHash(), 0, 1, ++_spendCount);
+    }
+
+    static Block genesis() {
+        Block genesis = new Block(null, TestSupport.address(0));
+        genesis.finalize();
+        return genesis;
+    }
+
+    /** @return {@code count} empty blocks, each on the one before, starting on {@code parent} */
+    static List<Block> extend(Block parent, int count, int miner) {
+        List<Block> chain = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            parent = TestSupport.block(parent, miner);
+            chain.add(parent);
+        }
+        return chain;
+    }
+
+    /** Waits for the background pruning to drop {@code block} */
+    static void awaitPruned(BlockChain blockChain, Block block) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (blockChain.getBlock(block.getHash()) != null) {
+            TestSupport.check(System.currentTimeMillis() < deadline, "block should be pruned");
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class BlockStoreTest {
+
+    public static void main(String[] args) throws Exception {
+        TestSupport.run("a block decodes to the block that was encoded", BlockStoreTest::codecRoundTrip);
+        TestSupport.run("stored blocks survive reopening and a torn index tail",
+                BlockStoreTest::blocksSurviveReopening);
+        TestSupport.run("blocks appended after a read are read back", BlockStoreTest::readsBlocksAppendedAfterReads);
+        TestSupport.run("a corrupt record is detected", BlockStoreTest::detectsCorruptRecord);
+        TestSupport.run("a record that does not hash to its index entry is detected",
+                BlockStoreTest::detectsHashMismatch);
+    }
+
+    private static void codecRoundTrip() {
+        Block genesis = BlockChainTest.genesis();
+        Transaction tx = TestSupport.spend(0, genesis.getCoinbase().getHash(), 0, 1, 10, 15);
+        Block block = TestSupport.block(genesis, 2, tx);
+
+        Block decoded = BlockCodec.decodeBlock(BlockCodec.encodeBlock(block));
+        TestSupport.check(Arrays.equals(block.getHash(), decoded.getHash()), "same hash");
+        TestSupport.check(Arrays.equals(block.getRawBlock(), decoded.getRawBlock()), "same raw block");
+        TestSupport.check(Arrays.equals(block.getCoinbase().getHash(), decoded.getCoinbase().getHash()),
+                "same coinbase");
+        TestSupport.check(Arrays.equals(tx.getHash(), decoded.getTransactions().get(0).getHash()), "same transaction hash");
+
+        Transaction.Output output = BlockCodec.decodeOutput(BlockCodec.encodeOutput(tx.getOutput(1)));
+        TestSupport.check(output.value == 15 && output.address.equals(TestSupport.address(1)), "same output");
+    }
+
+    private static void blocksSurviveReopening() throws IOException {
+        Path directory = Files.createTempDirectory("block-store-test");
+        try {
+            Block genesis = BlockChainTest.genesis();
+            List<Block> chain = BlockChainTest.extend(genesis, 30, 1);
+            Block fork = TestSupport.block(genesis, 2, TestSupport.spend(0, genesis.getCoinbase().getHash(), 0, 2, 25));
+            try (BlockStore blockStore = new BlockStore(directory, 2000)) {
+                blockStore.append(genesis, 1);
+                for (int i = 0; i < chain.size(); i++) {
+                    blockStore.append(chain.get(i), i + 2);
+                }
+                blockStore.append(fork, 2);
+                blockStore.append(fork, 2);
+                checkStored(blockStore, genesis, chain, fork);
+
+                Block tip = chain.get(chain.size() - 1);
+                ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+                long length = blockStore.transferBlock(tip.getHash(), Channels.newChannel(transferred));
+                ByteBuffer encoded = BlockCodec.encodeBlock(tip);
+                TestSupport.check(length == transferred.size()
+                        && Arrays.equals(Arrays.copyOf(encoded.array(), encoded.remaining()), transferred.toByteArray()),
+                        "transferred bytes are the encoded block");
+                TestSupport.check(blockStore.transferBlock(new byte[32], Channels.newChannel(transferred)) < 0,
+                        "nothing transferred for an unknown block");
+            }
+            try (Stream<Path> paths = Files.list(directory)) {
+                TestSupport.check(paths.filter(path -> path.toString().endsWith(".log")).count() > 1,
+                        "blocks spread over several segments");
+            }
+
+            Files.write(directory.resolve("blocks.idx"), new byte[] {9, 9, 9}, StandardOpenOption.APPEND);
+            try (BlockStore blockStore = new BlockStore(directory, 2000)) {
+                checkStored(blockStore, genesis, chain, fork);
+            }
+        } finally {
+            TestSupport.deleteRecursively(directory);
+        }
+    }
+
+    private static void readsBlocksAppendedAfterReads() throws IOException {
+        Path directory = Files.createTempDirectory("block-store-test");
+        try (BlockStore blockStore = new BlockStore(directory)) {
+            Block parent = BlockChainTest.genesis();
+            blockStore.append(parent, 1);
+            for (int height = 2; height <= 10; height++) {
+                TestSupport.check(Arrays.equals(blockStore.getBlock(parent.getHash()).getHash(), parent.getHash()),
+                        "block read at height " + (height - 1));
+                parent = TestSupport.block(parent, 1);
+                blockStore.append(parent, height);
+            }
+            TestSupport.check(blockStore.getBlocksAtHeight(10).size() == 1, "last block read");
+        } finally {
+            TestSupport.deleteRecursively(directory);
+        }
+    }
+
+    private static void detectsCorruptRecord() throws IOException {
+        Path directory = Files.createTempDirectory("block-store-test");
+        try {
+            Block genesis = BlockChainTest.genesis();
+            try (BlockStore blockStore = new BlockStore(directory)) {
+                blockStore.append(genesis, 1);
+            }
+            try (FileChannel segment = FileChannel.open(segmentFile(directory), StandardOpenOption.WRITE)) {
+                segment.write(ByteBuffer.wrap(new byte[] {1}), segment.size() - 1);
+            }
+            try (BlockStore blockStore = new BlockStore(directory)) {
+                TestSupport.check(blockStore.contains(genesis.getHash()), "index entry kept");
+                expectUnreadable(blockStore, genesis, "is corrupt");
+            }
+        } finally {
+            TestSupport.deleteRecursively(directory);
+        }
+    }
+
+    private static void detectsHashMismatch() throws IOException {
+        Path directory = Files.createTempDirectory("block-store-test");
+        try {
+            List<Block> chain = BlockChainTest.extend(BlockChainTest.genesis(), 2, 1);
+            long recordLength;
+            try (BlockStore blockStore = new BlockStore(directory)) {
+                blockStore.append(chain.get(0), 2);
+                recordLength = Files.size(segmentFile(directory));
+                blockStore.append(chain.get(1), 3);
+            }
+
+            // Both records have the same length, so the second one, checksum and all, fits over the first
+            byte[] segment = Files.readAllBytes(segmentFile(directory));
+            TestSupport.check(segment.length == 2 * recordLength, "records of the same length");
+            System.arraycopy(segment, (int) recordLength, segment, 0, (int) recordLength);
+            Files.write(segmentFile(directory), segment);
+
+            try (BlockStore blockStore = new BlockStore(directory)) {
+                expectUnreadable(blockStore, chain.get(0), "does not hash to its index entry");
+                TestSupport.check(Arrays.equals(blockStore.getBlock(chain.get(1).getHash()).getHash(), chain.get(1).getHash()),
+                        "intact record still read");
+            }
+        } finally {
+            TestSupport.deleteRecursively(directory);
+        }
+    }
+
+    private static void checkStored(BlockStore blockStore, Block genesis, List<Block> chain, Block fork) {
+        TestSupport.check(blockStore.getMaxHeight() == chain.size() + 1, "max height");
+        TestSupport.check(blockStore.getHeight(genesis.getHash()) == 1, "genesis height");
+        TestSupport.check(blockStore.getHeight(new byte[32]) < 0, "unknown block has no height");
+        TestSupport.check(blockStore.getBlock(new byte[32]) == null, "unknown block not found");
+        for (int i = 0; i < chain.size(); i++) {
+            Block block = blockStore.getBlock(chain.get(i).getHash());
+            TestSupport.check(block != null && Arrays.equals(block.getRawBlock(), chain.get(i).getRawBlock()),
+                    "block at height " + (i + 2) + " read back");
+            TestSupport.check(blockStore.getHeight(block.getHash()) == i + 2, "height of block " + (i + 2));
+        }
+
+        List<byte[]> atHeight2 = new ArrayList<>();
+        blockStore.getBlocksAtHeight(2).forEach(block -> atHeight2.add(block.getHash()));
+        TestSupport.check(atHeight2.size() == 2, "fork stored once beside the chain");
+        TestSupport.check(Arrays.equals(atHeight2.get(0), chain.get(0).getHash())
+                && Arrays.equals(atHeight2.get(1), fork.getHash()), "blocks at a height in the order stored");
+    }
+
+    private static void expectUnreadable(BlockStore blockStore, Block block, String reason) {
+        try {
+            blockStore.getBlock(block.getHash());
+            TestSupport.check(false, "record read although it " + reason);
+        } catch (UncheckedIOException expected) {
+            TestSupport.check(expected.getCause().getMessage().contains(reason), "record " + reason);
+        }
+    }
+
+    private static Path segmentFile(Path directory) {
+        return directory.resolve("blocks-00000.log");
+    }
+}
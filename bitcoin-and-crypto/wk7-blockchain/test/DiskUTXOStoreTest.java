@@ -0,0 +1,237 @@
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+public class DiskUTXOStoreTest {
+
+    private static final Transaction OWNER = new Transaction();
+
+    public static void main(String[] args) throws Exception {
+        TestSupport.run("flushed changes survive reopening, unflushed ones do not",
+                DiskUTXOStoreTest::flushedChangesSurviveReopening);
+        TestSupport.run("a complete journal left by a crash is replayed", DiskUTXOStoreTest::replaysCompleteJournal);
+        TestSupport.run("a torn journal left by a crash is discarded", DiskUTXOStoreTest::discardsTornJournal);
+        TestSupport.run("a crash while the index is being written is recovered from",
+                DiskUTXOStoreTest::recoversFromCrashWritingIndex);
+        TestSupport.run("a pool over the store keeps its own removals", DiskUTXOStoreTest::poolKeepsItsRemovals);
+    }
+
+    private static void flushedChangesSurviveReopening() throws Exception {
+        Path directory = Files.createTempDirectory("utxo-store-test");
+        try {
+            Random random = new Random(3);
+            Map<UTXO, Transaction.Output> expected = new HashMap<>();
+            DiskUTXOStore utxoStore = new DiskUTXOStore(directory, 100);
+            for (int round = 1; round <= 30; round++) {
+                randomChanges(random, utxoStore, expected, 500);
+                utxoStore.flush(blockHash(round), round);
+                if (round % 5 == 0) {
+                    utxoStore.close();
+                    utxoStore = new DiskUTXOStore(directory, 100);
+                }
+                checkStore(utxoStore, expected);
+            }
+
+            utxoStore.addUTXO(utxo(200, 0), output(1));
+            utxoStore.removeUTXO(expected.keySet().iterator().next());
+            utxoStore.close();
+            utxoStore = new DiskUTXOStore(directory, 10);
+            checkStore(utxoStore, expected);
+            TestSupport.check(utxoStore.getHeight() == 30, "height of the last flush");
+            TestSupport.check(utxoStore.getBlockHash()[0] == 30, "block hash of the last flush");
+            utxoStore.close();
+        } finally {
+            TestSupport.deleteRecursively(directory);
+        }
+    }
+
+    private static void replaysCompleteJournal() throws Exception {
+        Path directory = Files.createTempDirectory("utxo-store-test");
+        try {
+            Map<UTXO, Transaction.Output> expected = new HashMap<>();
+            DiskUTXOStore utxoStore = new DiskUTXOStore(directory, 10);
+            randomChanges(new Random(4), utxoStore, expected, 300);
+            utxoStore.flush(blockHash(1), 1);
+            utxoStore.close();
+
+            // The process died after writing the journal of a flush that removes some UTXOs, but
+            // before the index and header were updated: the store is as of the previous flush
+            List<UTXO> removed = new ArrayList<>(expected.keySet()).subList(0, 40);
+            writeRemovalJournal(directory, removed, 2);
+            removed.forEach(expected::remove);
+
+            utxoStore = new DiskUTXOStore(directory, 10);
+            checkStore(utxoStore, expected);
+            TestSupport.check(utxoStore.getHeight() == 2, "at the journaled height");
+            TestSupport.check(!Files.exists(directory.resolve("utxo.journal")), "journal removed");
+            utxoStore.close();
+
+            // Replaying over a store the flush had already updated changes nothing more
+            writeRemovalJournal(directory, removed, 2);
+            utxoStore = new DiskUTXOStore(directory, 10);
+            checkStore(utxoStore, expected);
+            utxoStore.close();
+        } finally {
+            TestSupport.deleteRecursively(directory);
+        }
+    }
+
+    private static void discardsTornJournal() throws Exception {
+        Path directory = Files.createTempDirectory("utxo-store-test");
+        try {
+            Map<UTXO, Transaction.Output> expected = new HashMap<>();
+            DiskUTXOStore utxoStore = new DiskUTXOStore(directory, 10);
+            randomChanges(new Random(5), utxoStore, expected, 300);
+            utxoStore.flush(blockHash(1), 1);
+            utxoStore.close();
+
+            // Cut short, as if the process died while writing it
+            writeRemovalJournal(directory, new ArrayList<>(expected.keySet()).subList(0, 40), 2);
+            byte[] journal = Files.readAllBytes(directory.resolve("utxo.journal"));
+            Files.write(directory.resolve("utxo.journal"), Arrays.copyOf(journal, journal.length - 9));
+
+            utxoStore = new DiskUTXOStore(directory, 10);
+            checkStore(utxoStore, expected);
+            TestSupport.check(utxoStore.getHeight() == 1, "still at the previous flush");
+            TestSupport.check(!Files.exists(directory.resolve("utxo.journal")), "journal removed");
+            utxoStore.close();
+        } finally {
+            TestSupport.deleteRecursively(directory);
+        }
+    }
+
+    private static void recoversFromCrashWritingIndex() throws Exception {
+        Path directory = Files.createTempDirectory("utxo-store-test");
+        try {
+            Random random = new Random(7);
+            Map<UTXO, Transaction.Output> expected = new HashMap<>();
+            DiskUTXOStore utxoStore = new DiskUTXOStore(directory, 10);
+            randomChanges(random, utxoStore, expected, 400);
+            utxoStore.flush(blockHash(1), 1);
+
+            // Crash at points spread over the slot writes of flushes that mostly remove, so that some
+            // land between the steps of a backward shift
+            int height = 1;
+            for (long slotWrites : new long[] {0, 1, 2, 5, 17, 40, 99, 150, 400}) {
+                height++;
+                randomChanges(random, utxoStore, expected, 150);
+                utxoStore.crashAfterSlotWrites(slotWrites);
+                try {
+                    utxoStore.flush(blockHash(height), height);
+                } catch (IllegalStateException crashed) {
+                    TestSupport.check(Files.exists(directory.resolve("utxo.journal")), "journal left by the crash");
+                }
+                utxoStore.close();
+
+                utxoStore = new DiskUTXOStore(directory, 10);
+                checkStore(utxoStore, expected);
+                TestSupport.check(utxoStore.getHeight() == height, "at the journaled height " + height);
+            }
+            utxoStore.close();
+        } finally {
+            TestSupport.deleteRecursively(directory);
+        }
+    }
+
+    private static void poolKeepsItsRemovals() throws Exception {
+        Path directory = Files.createTempDirectory("utxo-store-test");
+        try (DiskUTXOStore utxoStore = new DiskUTXOStore(directory, 10)) {
+            Map<UTXO, Transaction.Output> expected = new HashMap<>();
+            randomChanges(new Random(6), utxoStore, expected, 100);
+            utxoStore.flush(blockHash(1), 1);
+
+            UTXOPool utxoPool = new UTXOPool(utxoStore);
+            UTXO spent = expected.keySet().iterator().next();
+            utxoPool.removeUTXO(spent);
+            UTXOPool copy = new UTXOPool(utxoPool);
+            TestSupport.check(!utxoPool.contains(spent) && !copy.contains(spent), "removed from the pools");
+            TestSupport.check(utxoStore.contains(spent), "but not from the store");
+            TestSupport.check(copy.getAllUTXO().size() == expected.size() - 1, "listed without it");
+
+            // Removed in the pool before the store received it
+            UTXO later = utxo(200, 1);
+            copy.removeUTXO(later);
+            utxoStore.addUTXO(later, output(1));
+            TestSupport.check(!copy.contains(later), "removal shadows the store");
+            TestSupport.check(utxoPool.contains(later), "store shows through where the pool made no change");
+        } finally {
+            TestSupport.deleteRecursively(directory);
+        }
+    }
+
+    /** Makes {@code count} random changes to {@code utxoStore}, and the same to {@code expected} */
+    private static void randomChanges(Random random, DiskUTXOStore utxoStore, Map<UTXO, Transaction.Output> expected,
+            int count) {
+        for (int i = 0; i < count; i++) {
+            byte[] txHash = new byte[32];
+            txHash[0] = (byte) random.nextInt(4);
+            txHash[15] = (byte) random.nextInt(8);
+            txHash[31] = (byte) random.nextInt(256);
+            UTXO utxo = new UTXO(txHash, random.nextInt(2));
+            if (random.nextInt(3) > 0) {
+                Transaction.Output txOut = OWNER.new Output(random.nextInt(100), TestSupport.address(random.nextInt(3)));
+                utxoStore.addUTXO(utxo, txOut);
+                expected.put(utxo, txOut);
+            } else {
+                utxoStore.removeUTXO(utxo);
+                expected.remove(utxo);
+            }
+        }
+    }
+
+    private static void checkStore(DiskUTXOStore utxoStore, Map<UTXO, Transaction.Output> expected) {
+        Map<UTXO, Transaction.Output> stored = new HashMap<>();
+        utxoStore.forEach((utxo, txOut) -> TestSupport.check(stored.put(utxo, txOut) == null, "each UTXO once"));
+        TestSupport.check(stored.equals(expected), "store holds exactly the expected UTXOs");
+        for (Map.Entry<UTXO, Transaction.Output> entry : expected.entrySet()) {
+            TestSupport.check(entry.getValue().equals(utxoStore.getTxOutput(entry.getKey())), "output read back");
+        }
+    }
+
+    /**
+     * Writes a journal of removals only, which refer to no records in the data file, in the layout
+     * the store documents: entry count, data length, height, hash length, hash, entries, checksum
+     */
+    private static void writeRemovalJournal(Path directory, List<UTXO> removed, int height) throws Exception {
+        int length = 4 + 8 + 4 + 4 + 32 + removed.size() * (1 + 4 + 32 + 8) + 8;
+        ByteBuffer journal = ByteBuffer.allocate(length);
+        journal.putInt(removed.size());
+        journal.putLong(Files.size(directory.resolve("utxo.dat")));
+        journal.putInt(height);
+        journal.putInt(32);
+        journal.put(blockHash(height));
+        for (UTXO utxo : removed) {
+            journal.put((byte) 0);
+            journal.putInt(utxo.getIndex());
+            journal.put(utxo.getTxHash());
+            journal.putLong(0);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(journal.array(), 0, length - 8);
+        journal.putLong(crc.getValue());
+        Files.write(directory.resolve("utxo.journal"), journal.array());
+    }
+
+    private static byte[] blockHash(int height) {
+        byte[] hash = new byte[32];
+        hash[0] = (byte) height;
+        return hash;
+    }
+
+    private static UTXO utxo(int hash, int index) {
+        byte[] txHash = new byte[32];
+        txHash[0] = (byte) hash;
+        return new UTXO(txHash, index);
+    }
+
+    private static Transaction.Output output(double value) {
+        return OWNER.new Output(value, TestSupport.address(0));
+    }
+}
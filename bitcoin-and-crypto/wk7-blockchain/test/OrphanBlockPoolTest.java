@@ -0,0 +1,53 @@
+import java.util.List;
+
+public class OrphanBlockPoolTest {
+
+    public static void main(String[] args) throws Exception {
+        TestSupport.run("the oldest orphan is evicted over the count bound", OrphanBlockPoolTest::evictsOldestOverCount);
+        TestSupport.run("orphans expire with age", OrphanBlockPoolTest::evictsByAge);
+        TestSupport.run("children are removed with their descendants left in place",
+                OrphanBlockPoolTest::removesOnlyChildren);
+    }
+
+    private static void evictsOldestOverCount() {
+        OrphanBlockPool pool = new OrphanBlockPool(2, 1 << 20, 60000);
+        Block x = onParent(1);
+        Block y = onParent(2);
+        Block z = onParent(3);
+        TestSupport.check(pool.add(x) && pool.add(y) && pool.add(z), "all added");
+        TestSupport.check(pool.size() == 2, "bounded to two, was " + pool.size());
+        TestSupport.check(!pool.contains(x.getHash()), "oldest evicted");
+        TestSupport.check(pool.contains(y.getHash()) && pool.contains(z.getHash()), "newest kept");
+        TestSupport.check(!pool.add(y), "duplicate not added");
+    }
+
+    private static void evictsByAge() throws InterruptedException {
+        OrphanBlockPool pool = new OrphanBlockPool(8, 1 << 20, 50);
+        Block x = onParent(1);
+        TestSupport.check(pool.add(x), "added");
+        Thread.sleep(80);
+        TestSupport.check(pool.removeChildren(x.getPrevBlockHash()).isEmpty(), "expired orphan not returned");
+        TestSupport.check(pool.size() == 0, "and evicted");
+    }
+
+    private static void removesOnlyChildren() {
+        OrphanBlockPool pool = new OrphanBlockPool();
+        Block child = onParent(1);
+        Block grandchild = TestSupport.block(child, 0);
+        pool.add(child);
+        pool.add(grandchild);
+
+        List<Block> children = pool.removeChildren(child.getPrevBlockHash());
+        TestSupport.check(children.size() == 1 && children.get(0) == child, "only the child returned");
+        TestSupport.check(pool.contains(grandchild.getHash()), "grandchild still held");
+    }
+
+    /** @return an empty block on a parent nobody has, told apart by {@code tag} */
+    private static Block onParent(int tag) {
+        byte[] parentHash = new byte[32];
+        parentHash[0] = (byte) tag;
+        Block block = new Block(parentHash, TestSupport.address(0));
+        block.finalize();
+        return block;
+    }
+}
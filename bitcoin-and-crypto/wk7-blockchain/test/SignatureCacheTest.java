@@ -0,0 +1,92 @@
+import java.security.PublicKey;
+import java.util.stream.IntStream;
+
+public class SignatureCacheTest {
+
+    public static void main(String[] args) throws Exception {
+        TestSupport.run("a cached signature only vouches for the same key, message and signature",
+                SignatureCacheTest::matchesWholeKey);
+        TestSupport.run("a tampered transaction with a copied hash is rejected",
+                SignatureCacheTest::rejectsTamperedTxWithCopiedHash);
+        TestSupport.run("the clock keeps recently looked up entries", SignatureCacheTest::evictsUnreferenced);
+        TestSupport.run("concurrent inserts stay within capacity", SignatureCacheTest::staysBoundedUnderContention);
+    }
+
+    private static void matchesWholeKey() {
+        PublicKey address = TestSupport.address(0);
+        byte[] message = {1, 2, 3};
+        byte[] signature = TestSupport.sign(0, message);
+        SignatureCache cache = new SignatureCache(8);
+        cache.putVerified(address, message, signature);
+
+        TestSupport.check(cache.isVerified(address, message.clone(), signature.clone()), "same check");
+        TestSupport.check(!cache.isVerified(TestSupport.address(1), message, signature), "other key");
+        TestSupport.check(!cache.isVerified(address, new byte[] {1, 2, 4}, signature), "other message");
+        TestSupport.check(!cache.isVerified(address, message, TestSupport.sign(0, new byte[] {9})), "other signature");
+        TestSupport.check(!cache.isVerified(address, message, null), "no signature");
+    }
+
+    private static void rejectsTamperedTxWithCopiedHash() {
+        Block genesis = new Block(null, TestSupport.address(0));
+        genesis.finalize();
+        Transaction coinbase = genesis.getCoinbase();
+        UTXOPool utxoPool = new UTXOPool();
+        utxoPool.addUTXO(new UTXO(coinbase.getHash(), 0), coinbase.getOutput(0));
+
+        // Verifying the genuine transaction puts its signature in the shared cache
+        Transaction genuine = TestSupport.spend(0, coinbase.getHash(), 0, 1, 25);
+        TestSupport.check(new TxHandler(utxoPool).isValidTx(genuine), "genuine transaction is valid");
+
+        // Same input and hash, but paying someone else under a junk signature
+        Transaction junkSignature = new Transaction();
+        junkSignature.addInput(coinbase.getHash(), 0);
+        junkSignature.addOutput(25, TestSupport.address(2));
+        junkSignature.addSignature(new byte[128], 0);
+        junkSignature.setHash(genuine.getHash());
+
+        // Same input, hash and signature, but a different output than the one signed
+        Transaction replayedSignature = new Transaction();
+        replayedSignature.addInput(coinbase.getHash(), 0);
+        replayedSignature.addOutput(25, TestSupport.address(2));
+        replayedSignature.addSignature(genuine.getInput(0).signature, 0);
+        replayedSignature.setHash(genuine.getHash());
+
+        for (Transaction tampered : new Transaction[] {junkSignature, replayedSignature}) {
+            TestSupport.check(!new TxHandler(utxoPool).isValidTx(tampered), "isValidTx rejects the tampered copy");
+            TestSupport.check(new TxHandler(utxoPool).handleTxs(new Transaction[] {tampered}).length == 0,
+                    "handleTxs rejects the tampered copy");
+        }
+        TestSupport.check(new TxHandler(utxoPool).handleTxs(new Transaction[] {genuine}).length == 1,
+                "the genuine transaction is still accepted");
+    }
+
+    private static void evictsUnreferenced() {
+        PublicKey address = TestSupport.address(0);
+        byte[] signature = {7};
+        SignatureCache cache = new SignatureCache(4);
+        for (int i = 0; i < 4; i++) {
+            cache.putVerified(address, new byte[] {(byte) i}, signature);
+        }
+
+        TestSupport.check(cache.isVerified(address, new byte[] {0}, signature), "entry 0 cached");
+        cache.putVerified(address, new byte[] {9}, signature);
+
+        // The hand passes over entry 0, which was looked up, and evicts entry 1, which was not
+        TestSupport.check(cache.size() == 4, "size stays at capacity, was " + cache.size());
+        TestSupport.check(cache.isVerified(address, new byte[] {0}, signature), "entry 0 kept");
+        TestSupport.check(!cache.isVerified(address, new byte[] {1}, signature), "entry 1 evicted");
+        TestSupport.check(cache.isVerified(address, new byte[] {9}, signature), "new entry cached");
+    }
+
+    private static void staysBoundedUnderContention() {
+        PublicKey address = TestSupport.address(0);
+        SignatureCache cache = new SignatureCache(1000);
+        IntStream.range(0, 200000).parallel().forEach(i -> {
+            byte[] message = {(byte) i, (byte) (i >> 8), (byte) (i >> 16)};
+            byte[] signature = {(byte) (i & 3)};
+            cache.putVerified(address, message, signature);
+            cache.isVerified(address, message, signature);
+        });
+        TestSupport.check(cache.size() == 1000, "size " + cache.size());
+    }
+}
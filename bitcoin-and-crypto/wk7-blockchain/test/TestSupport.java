@@ -0,0 +1,113 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/** Keys, signed transactions and checks shared by the tests */
+final class TestSupport {
+
+    private static final List<KeyPair> KEY_PAIRS = new ArrayList<>();
+    private static SecureRandom keyRandom;
+
+    private TestSupport() {
+    }
+
+    /** @return the {@code i}th of a fixed sequence of RSA key pairs, the same on every run */
+    static synchronized KeyPair keyPair(int i) {
+        try {
+            if (keyRandom == null) {
+                keyRandom = SecureRandom.getInstance("SHA1PRNG");
+                keyRandom.setSeed(42);
+            }
+            while (KEY_PAIRS.size() <= i) {
+                KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+                generator.initialize(1024, keyRandom);
+                KEY_PAIRS.add(generator.generateKeyPair());
+            }
+            return KEY_PAIRS.get(i);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static PublicKey address(int i) {
+        return keyPair(i).getPublic();
+    }
+
+    static byte[] sign(int signer, byte[] message) {
+        try {
+            Signature signature = Signature.getInstance("SHA256withRSA");
+            signature.initSign(keyPair(signer).getPrivate());
+            signature.update(message);
+            return signature.sign();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return a finalized transaction, signed by {@code signer}, that spends output
+     *         {@code outputIndex} of {@code prevTxHash} into one output of each of {@code values},
+     *         all to {@code recipient}
+     */
+    static Transaction spend(int signer, byte[] prevTxHash, int outputIndex, int recipient, double... values) {
+        Transaction tx = new Transaction();
+        tx.addInput(prevTxHash, outputIndex);
+        for (double value : values) {
+            tx.addOutput(value, address(recipient));
+        }
+        tx.addSignature(sign(signer, tx.getRawDataToSign(0)), 0);
+        tx.finalize();
+        return tx;
+    }
+
+    /** @return a new block over {@code parent} holding {@code txs}, finalized */
+    static Block block(Block parent, int miner, Transaction... txs) {
+        Block block = new Block(parent.getHash(), address(miner));
+        for (Transaction tx : txs) {
+            block.addTransaction(tx);
+        }
+        block.finalize();
+        return block;
+    }
+
+    /** Deletes {@code directory} and everything in it */
+    static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    static <T> List<T> toList(Iterator<T> iterator) {
+        List<T> list = new ArrayList<>();
+        iterator.forEachRemaining(list::add);
+        return list;
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    /** Runs {@code test}, reporting it under {@code name} */
+    static void run(String name, ThrowingRunnable test) throws Exception {
+        test.run();
+        System.out.println("ok   " + name);
+    }
+
+    interface ThrowingRunnable {
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,111 @@
+import java.util.Arrays;
+import java.util.List;
+
+public class TransactionPoolTest {
+
+    public static void main(String[] args) throws Exception {
+        TestSupport.run("verified signatures are vouched for only while the encoding matches",
+                TransactionPoolTest::verifiedAddressesFollowEncoding);
+        TestSupport.run("a child paying for its parents is selected after them", TransactionPoolTest::childPaysForParents);
+        TestSupport.run("a package that does not fit is passed over for smaller ones",
+                TransactionPoolTest::passesOverPackagesThatDoNotFit);
+        TestSupport.run("of two conflicting transactions only the better package is selected",
+                TransactionPoolTest::leavesOutConflicts);
+    }
+
+    private static void verifiedAddressesFollowEncoding() {
+        Block genesis = new Block(null, TestSupport.address(0));
+        genesis.finalize();
+        BlockChain blockChain = new BlockChain(genesis);
+        TransactionPool txPool = blockChain.getTransactionPool();
+
+        Transaction tx = TestSupport.spend(0, genesis.getCoinbase().getHash(), 0, 1, 20);
+        blockChain.addTransaction(tx);
+        TestSupport.check(txPool.getVerifiedAddresses(tx) != null, "admitted transaction is verified");
+        TestSupport.check(txPool.getVerifiedAddresses(new Transaction(tx)) != null, "so is an identical copy");
+
+        // Changed in place after admission, without changing its hash
+        tx.getInput(0).signature = new byte[128];
+        TestSupport.check(txPool.getVerifiedAddresses(tx) == null, "changed transaction is no longer vouched for");
+        TestSupport.check(new TransactionPool(txPool).getVerifiedAddresses(tx) == null, "nor in a copy of the pool");
+
+        Block block = new BlockHandler(blockChain).createBlock(TestSupport.address(1));
+        TestSupport.check(block != null && block.getTransactions().isEmpty(),
+                "block assembly checks the changed signature and leaves it out");
+    }
+
+    private static void childPaysForParents() {
+        Transaction parent = TestSupport.spend(0, new byte[32], 0, 1, 25);
+        Transaction child = TestSupport.spend(1, parent.getHash(), 0, 0, 24);
+        Transaction grandchild = TestSupport.spend(0, child.getHash(), 0, 1, 14);
+        Transaction unrelated = TestSupport.spend(0, outpoint(1), 0, 1, 5);
+        TransactionPool txPool = new TransactionPool();
+        txPool.addTransaction(grandchild, 10);
+        txPool.addTransaction(unrelated, 2);
+        txPool.addTransaction(child, 1);
+        txPool.addTransaction(parent, 0);
+
+        TestSupport.check(select(txPool, 1 << 20).equals(Arrays.asList(parent, child, grandchild, unrelated)),
+                "grandchild's package first, in topological order");
+
+        txPool.removeTransaction(parent.getHash());
+        List<Transaction> remaining = select(txPool, 1 << 20);
+        TestSupport.check(remaining.equals(Arrays.asList(child, grandchild, unrelated)), "package rescored on removal");
+        TestSupport.check(select(new TransactionPool(txPool), 1 << 20).equals(remaining), "a copy selects the same");
+    }
+
+    private static void passesOverPackagesThatDoNotFit() {
+        Transaction large = TestSupport.spend(0, outpoint(1), 0, 1, 1, 1, 1, 1, 1, 1, 1, 1);
+        Transaction small = TestSupport.spend(0, outpoint(2), 0, 1, 1);
+        Transaction smallChild = TestSupport.spend(1, small.getHash(), 0, 1, 1);
+        TransactionPool txPool = new TransactionPool();
+        txPool.addTransaction(large, 100);
+        txPool.addTransaction(small, 1);
+        txPool.addTransaction(smallChild, 1);
+
+        int smallSize = small.getRawTx().length + smallChild.getRawTx().length;
+        TestSupport.check(large.getRawTx().length > smallSize, "large transaction is larger");
+        TestSupport.check(select(txPool, smallSize).equals(Arrays.asList(small, smallChild)),
+                "smaller packages fill the space the large one leaves");
+        TestSupport.check(select(txPool, 1 << 20).equals(Arrays.asList(large, small, smallChild)),
+                "large one first when it fits");
+    }
+
+    private static void leavesOutConflicts() {
+        Transaction high = TestSupport.spend(0, outpoint(1), 0, 1, 20);
+        Transaction low = TestSupport.spend(0, outpoint(1), 0, 2, 10);
+        Transaction other = TestSupport.spend(0, outpoint(2), 0, 1, 5);
+        TransactionPool txPool = new TransactionPool();
+        txPool.addTransaction(high, 5);
+        txPool.addTransaction(low, 1);
+        txPool.addTransaction(other, 2);
+        TestSupport.check(select(txPool, 1 << 20).equals(Arrays.asList(high, other)), "lower paying double spend left out");
+
+        // A child can make the lower paying double spend the better package
+        Transaction lowChild = TestSupport.spend(2, low.getHash(), 0, 1, 9);
+        txPool.addTransaction(lowChild, 100);
+        TestSupport.check(select(txPool, 1 << 20).equals(Arrays.asList(low, lowChild, other)),
+                "double spend with a paying child wins");
+
+        // A transaction joining both double spends can never be valid
+        Transaction joined = new Transaction();
+        joined.addInput(high.getHash(), 0);
+        joined.addInput(low.getHash(), 0);
+        joined.addOutput(30, TestSupport.address(1));
+        joined.finalize();
+        txPool.addTransaction(joined, 1000);
+        List<Transaction> selected = select(txPool, 1 << 20);
+        TestSupport.check(!selected.contains(joined), "transaction spending both sides left out");
+        TestSupport.check(selected.contains(high) != selected.contains(low), "exactly one side selected");
+    }
+
+    private static List<Transaction> select(TransactionPool txPool, int maxBytes) {
+        return TestSupport.toList(txPool.iterateByFeeRate(maxBytes));
+    }
+
+    private static byte[] outpoint(int tag) {
+        byte[] hash = new byte[32];
+        hash[0] = (byte) tag;
+        return hash;
+    }
+}
@@ -0,0 +1,85 @@
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+public class TransactionTest {
+
+    public static void main(String[] args) throws Exception {
+        TestSupport.run("finalize hashes changes made through public fields",
+                TransactionTest::finalizeSeesFieldChanges);
+        TestSupport.run("finalize hashes changes made through the live lists",
+                TransactionTest::finalizeSeesListChanges);
+        TestSupport.run("a copy does not share inputs or outputs with its original",
+                TransactionTest::copyIsIndependent);
+        TestSupport.run("a block hash follows changes to its transactions", TransactionTest::blockHashIsFresh);
+    }
+
+    private static void finalizeSeesFieldChanges() {
+        Transaction tx = TestSupport.spend(0, new byte[32], 0, 1, 10);
+        byte[] before = tx.getHash();
+
+        tx.getInput(0).outputIndex = 1;
+        tx.getOutput(0).value = 11;
+        tx.finalize();
+
+        Transaction expected = new Transaction();
+        expected.addInput(new byte[32], 1);
+        expected.addOutput(11, TestSupport.address(1));
+        expected.addSignature(tx.getInput(0).signature, 0);
+        expected.finalize();
+
+        TestSupport.check(!Arrays.equals(before, tx.getHash()), "hash changed");
+        TestSupport.check(Arrays.equals(expected.getRawTx(), tx.getRawTx()), "encoding follows the fields");
+        TestSupport.check(Arrays.equals(expected.getHash(), tx.getHash()), "hash follows the fields");
+    }
+
+    private static void finalizeSeesListChanges() {
+        Transaction tx = TestSupport.spend(0, new byte[32], 0, 1, 10, 5);
+        byte[] before = tx.getRawTx();
+
+        tx.getOutputs().remove(1);
+        tx.finalize();
+
+        TestSupport.check(before.length > tx.getRawTx().length, "encoding shrank");
+        Transaction expected = new Transaction();
+        expected.addInput(new byte[32], 0);
+        expected.addOutput(10, TestSupport.address(1));
+        expected.addSignature(tx.getInput(0).signature, 0);
+        expected.finalize();
+        TestSupport.check(Arrays.equals(expected.getHash(), tx.getHash()), "hash follows the list");
+    }
+
+    private static void copyIsIndependent() {
+        Transaction original = TestSupport.spend(0, new byte[32], 0, 1, 10);
+        byte[] rawTx = original.getRawTx();
+        byte[] hash = original.getHash();
+
+        Transaction copy = new Transaction(original);
+        copy.addSignature(new byte[] {1, 2, 3}, 0);
+        copy.getInput(0).outputIndex = 7;
+        copy.getOutput(0).value = 3;
+        copy.finalize();
+
+        TestSupport.check(Arrays.equals(rawTx, original.getRawTx()), "original encoding unchanged");
+        TestSupport.check(original.getInput(0).outputIndex == 0, "original input unchanged");
+        TestSupport.check(original.getOutput(0).value == 10, "original output unchanged");
+        original.finalize();
+        TestSupport.check(Arrays.equals(hash, original.getHash()), "original hash unchanged");
+        TestSupport.check(!Arrays.equals(hash, copy.getHash()), "copy hashed its own changes");
+    }
+
+    private static void blockHashIsFresh() {
+        Block genesis = new Block(null, TestSupport.address(0));
+        genesis.finalize();
+        Transaction tx = TestSupport.spend(0, genesis.getCoinbase().getHash(), 0, 1, 25);
+        Block block = TestSupport.block(genesis, 1, tx);
+        byte[] before = block.getHash();
+
+        tx.getOutput(0).value = 24;
+        block.finalize();
+
+        TestSupport.check(!Arrays.equals(before, block.getHash()), "block hash changed");
+        MessageDigest md = Crypto.getHashDigest();
+        md.update(block.getRawBlock());
+        TestSupport.check(Arrays.equals(md.digest(), block.getHash()), "block hash is the hash of its raw bytes");
+    }
+}
@@ -0,0 +1,121 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class UTXOPoolTest {
+
+    private static final Transaction OWNER = new Transaction();
+
+    public static void main(String[] args) throws Exception {
+        TestSupport.run("rollback restores exactly the pool at the checkpoint", UTXOPoolTest::rollbackRestoresPool);
+        TestSupport.run("copies stay independent across many generations", UTXOPoolTest::copiesStayIndependent);
+    }
+
+    private static void rollbackRestoresPool() {
+        Random random = new Random(5);
+        for (int trial = 0; trial < 100; trial++) {
+            UTXOPool utxoPool = new UTXOPool();
+            Map<UTXO, Transaction.Output> expected = new HashMap<>();
+            Deque<Integer> checkpoints = new ArrayDeque<>();
+            Deque<Map<UTXO, Transaction.Output>> expectedAtCheckpoints = new ArrayDeque<>();
+            List<UTXOPool> copies = new ArrayList<>();
+            List<Map<UTXO, Transaction.Output>> expectedCopies = new ArrayList<>();
+
+            for (int step = 0; step < 200; step++) {
+                UTXO utxo = utxo(random.nextInt(8), random.nextInt(4));
+                int op = random.nextInt(10);
+                if (op < 4) {
+                    Transaction.Output txOut = output(random.nextInt(100));
+                    utxoPool.addUTXO(utxo, txOut);
+                    expected.put(utxo, txOut);
+                } else if (op < 7) {
+                    utxoPool.removeUTXO(utxo);
+                    expected.remove(utxo);
+                } else if (op == 7) {
+                    checkpoints.push(utxoPool.checkpoint());
+                    expectedAtCheckpoints.push(new HashMap<>(expected));
+                } else if (op == 8 && !checkpoints.isEmpty()) {
+                    utxoPool.rollback(checkpoints.pop());
+                    expected = expectedAtCheckpoints.pop();
+                } else {
+                    // Copying freezes the changes into a layer the rollback has to see through
+                    copies.add(new UTXOPool(utxoPool));
+                    expectedCopies.add(new HashMap<>(expected));
+                }
+                checkPool(utxoPool, expected, 8);
+            }
+            utxoPool.commit();
+            for (int i = 0; i < copies.size(); i++) {
+                checkPool(copies.get(i), expectedCopies.get(i), 8);
+            }
+        }
+    }
+
+    private static void copiesStayIndependent() {
+        Random random = new Random(7);
+        UTXOPool utxoPool = new UTXOPool();
+        Map<UTXO, Transaction.Output> expected = new HashMap<>();
+        List<UTXOPool> generations = new ArrayList<>();
+        List<Map<UTXO, Transaction.Output>> expectedGenerations = new ArrayList<>();
+
+        // Far more generations than layers are kept, with the pool growing, so layers get merged
+        for (int generation = 0; generation < 300; generation++) {
+            for (int change = 0; change < 20; change++) {
+                UTXO utxo = utxo(random.nextInt(64), random.nextInt(8));
+                if (random.nextInt(3) == 0) {
+                    utxoPool.removeUTXO(utxo);
+                    expected.remove(utxo);
+                } else {
+                    Transaction.Output txOut = output(generation);
+                    utxoPool.addUTXO(utxo, txOut);
+                    expected.put(utxo, txOut);
+                }
+            }
+            // A copy changed on its own must not show through the pool or its other copies
+            UTXOPool copy = new UTXOPool(utxoPool);
+            Map<UTXO, Transaction.Output> expectedCopy = new HashMap<>(expected);
+            UTXO removed = utxo(random.nextInt(64), random.nextInt(8));
+            copy.removeUTXO(removed);
+            expectedCopy.remove(removed);
+            Transaction.Output added = output(-1);
+            copy.addUTXO(utxo(64, generation % 8), added);
+            expectedCopy.put(utxo(64, generation % 8), added);
+            generations.add(copy);
+            expectedGenerations.add(expectedCopy);
+
+            utxoPool = new UTXOPool(utxoPool);
+            checkPool(utxoPool, expected, 65);
+        }
+        for (int i = 0; i < generations.size(); i++) {
+            checkPool(generations.get(i), expectedGenerations.get(i), 65);
+        }
+    }
+
+    /** Checks {@code utxoPool} holds exactly {@code expected}, over the first {@code hashes} hashes */
+    private static void checkPool(UTXOPool utxoPool, Map<UTXO, Transaction.Output> expected, int hashes) {
+        for (int h = 0; h < hashes; h++) {
+            for (int i = 0; i < 8; i++) {
+                UTXO utxo = utxo(h, i);
+                TestSupport.check(utxoPool.getTxOutput(utxo) == expected.get(utxo), "output of " + h + ":" + i);
+            }
+        }
+        List<UTXO> all = utxoPool.getAllUTXO();
+        TestSupport.check(all.size() == expected.size() && new HashSet<>(all).equals(expected.keySet()),
+                "all UTXOs listed once");
+    }
+
+    private static UTXO utxo(int hash, int index) {
+        byte[] txHash = new byte[32];
+        txHash[0] = (byte) hash;
+        return new UTXO(txHash, index);
+    }
+
+    private static Transaction.Output output(double value) {
+        return OWNER.new Output(value, TestSupport.address(0));
+    }
+}
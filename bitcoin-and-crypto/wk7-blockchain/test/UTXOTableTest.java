@@ -0,0 +1,82 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class UTXOTableTest {
+
+    private static final Transaction OWNER = new Transaction();
+
+    public static void main(String[] args) throws Exception {
+        TestSupport.run("the table behaves as a HashMap through growth and removals", UTXOTableTest::matchesHashMap);
+        TestSupport.run("iterated UTXOs keep their hash after the table changes",
+                UTXOTableTest::iteratedUTXOsAreIndependent);
+    }
+
+    private static void matchesHashMap() {
+        Random random = new Random(11);
+        UTXO[] keys = new UTXO[600];
+        for (int i = 0; i < keys.length; i++) {
+            // Hashes that share their first 8 bytes, and some of another length that go to the side map
+            byte[] txHash = new byte[i % 10 == 0 ? 20 : 32];
+            txHash[txHash.length - 1] = (byte) (i / 4);
+            txHash[txHash.length - 2] = (byte) (i / 1024);
+            keys[i] = new UTXO(txHash, i % 4);
+        }
+
+        UTXOTable table = new UTXOTable();
+        Map<UTXO, Transaction.Output> expected = new HashMap<>();
+        for (int step = 0; step < 20000; step++) {
+            UTXO utxo = keys[random.nextInt(step < 10000 ? keys.length : 64)];
+            int op = random.nextInt(10);
+            if (op < 5) {
+                Transaction.Output txOut = op == 0 ? null : output(step);
+                table.put(utxo, txOut);
+                expected.put(utxo, txOut);
+            } else if (op < 9) {
+                table.remove(utxo);
+                expected.remove(utxo);
+            }
+            TestSupport.check(table.size() == expected.size(), "size at step " + step);
+            TestSupport.check(table.get(utxo) == expected.get(utxo), "get at step " + step);
+            TestSupport.check(table.containsKey(utxo) == expected.containsKey(utxo), "containsKey at step " + step);
+        }
+        for (UTXO utxo : keys) {
+            TestSupport.check(table.get(utxo) == expected.get(utxo), "get after all steps");
+            TestSupport.check(table.containsKey(utxo) == expected.containsKey(utxo), "containsKey after all steps");
+        }
+        TestSupport.check(iterate(table).equals(expected), "forEach yields every mapping once");
+    }
+
+    private static void iteratedUTXOsAreIndependent() {
+        UTXOTable table = new UTXOTable();
+        Map<UTXO, Transaction.Output> expected = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] txHash = new byte[32];
+            txHash[0] = (byte) i;
+            Transaction.Output txOut = output(i);
+            table.put(new UTXO(txHash, i), txOut);
+            expected.put(new UTXO(txHash, i), txOut);
+        }
+
+        Map<UTXO, Transaction.Output> iterated = iterate(table);
+        for (int i = 0; i < 100; i += 2) {
+            byte[] txHash = new byte[32];
+            txHash[0] = (byte) i;
+            table.remove(new UTXO(txHash, i));
+        }
+        TestSupport.check(iterated.equals(expected), "UTXOs from before the removals are unchanged");
+    }
+
+    private static Map<UTXO, Transaction.Output> iterate(UTXOTable table) {
+        Map<UTXO, Transaction.Output> iterated = new HashMap<>();
+        table.forEach((utxo, txOut) -> {
+            TestSupport.check(!iterated.containsKey(utxo), "each UTXO once");
+            iterated.put(utxo, txOut);
+        });
+        return iterated;
+    }
+
+    private static Transaction.Output output(double value) {
+        return OWNER.new Output(value, TestSupport.address(0));
+    }
+}
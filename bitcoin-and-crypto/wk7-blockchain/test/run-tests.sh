@@ -0,0 +1,17 @@
+# usage: test/run-tests.sh [TestClass ...]
+# Compiles the sources together with the tests and runs the named test classes,
+# or every *Test class in test/ if none are named.
+cd "$(dirname "$0")/.." || exit 1
+classes=$(mktemp -d)
+trap 'rm -rf "$classes"' EXIT
+
+javac -d "$classes" *.java test/*.java || exit 1
+
+tests=${*:-$(cd test && ls *Test.java | sed 's/\.java$//')}
+status=0
+for test in $tests
+do
+    echo "$test"
+    java -ea -cp "$classes" "$test" || status=1
+done
+exit $status